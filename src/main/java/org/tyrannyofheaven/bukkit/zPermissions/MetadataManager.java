@@ -16,15 +16,18 @@
 package org.tyrannyofheaven.bukkit.zPermissions;
 
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallback;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionStrategy;
@@ -33,47 +36,54 @@ import org.tyrannyofheaven.bukkit.zPermissions.PermissionsResolver.MetadataResul
 /**
  * Manager for resolved metadata.
  * 
+ * <p>Even though we're supposed to be single-threaded, many MANY chat plugins
+ * are inherently broken and call Bukkit/Vault methods outside the main
+ * thread. So the cache is entirely lock-free for readers, and misses for
+ * different players/groups are resolved concurrently.
+ * 
+ * <p>Eviction uses a CLOCK-style sweep where each hit earns an entry another
+ * pass (up to a limit), so frequently-used entries survive longer.
+ * 
  * @author zerothangel
  */
 public class MetadataManager {
 
-    private static final int PLAYER_CACHE_SIZE = 1000;
-    
-    private static final int GROUP_CACHE_SIZE = 1000;
+    // Max number of additional sweeps an entry can survive
+    private static final int MAX_FREQUENCY = 3;
 
     private final PermissionsResolver resolver;
 
     private final TransactionStrategy transactionStrategy;
 
-    // Simple brain-dead caches instead of Guava Caches because manual management
-    // in Guava <11 is hard without a CacheLoader.
-    private final Map<UUID, CacheEntry> playerCache = new LinkedHashMap<UUID, CacheEntry>() {
-        private static final long serialVersionUID = -3392138700819296598L;
+    private final int maxSize;
 
-        @Override
-        protected boolean removeEldestEntry(Entry<UUID, CacheEntry> eldest) {
-            return size() > PLAYER_CACHE_SIZE;
-        }
-    };
-    
-    private final Map<String, CacheEntry> groupCache = new LinkedHashMap<String, CacheEntry>() {
-        private static final long serialVersionUID = 535803145911477635L;
+    // Keyed by UUID for players and lowercase name for groups
+    private final ConcurrentMap<Object, CacheEntry> cache = new ConcurrentHashMap<>();
 
-        @Override
-        protected boolean removeEldestEntry(Entry<String, CacheEntry> eldest) {
-            return size() > GROUP_CACHE_SIZE;
-        }
-    };
+    // Lowercase group name -> keys of cache entries that depend on the group
+    private final ConcurrentMap<String, Set<Object>> dependents = new ConcurrentHashMap<>();
+
+    // Eviction order. May contain entries that are no longer cached.
+    private final Queue<CacheEntry> clock = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    // Only one thread sweeps at a time
+    private final Lock sweepLock = new ReentrantLock();
+
+    // Bumped on every invalidation so that in-flight misses don't cache stale results
+    private final AtomicLong generation = new AtomicLong();
 
-    // Lock for both of the above. Even though we're supposed to be
-    // single-threaded, many MANY chat plugins are inherently broken and
-    // call Bukkit/Vault methods outside the main thread.
-    private final ReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    private final AtomicLong hits = new AtomicLong();
 
-    public MetadataManager(PermissionsResolver resolver, TransactionStrategy transactionStrategy) {
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MetadataManager(PermissionsResolver resolver, TransactionStrategy transactionStrategy, int maxSize) {
         this.resolver = resolver;
         this.transactionStrategy = transactionStrategy;
-        
+        this.maxSize = Math.max(1, maxSize);
     }
 
     private PermissionsResolver getResolver() {
@@ -88,68 +98,148 @@ public class MetadataManager {
         if (!group && uuid == null)
             throw new IllegalArgumentException("uuid cannot be null");
 
+        return getEntry(name, uuid, group).getMetadata().get(metadataName.toLowerCase());
+    }
+
+    /**
+     * Retrieve a value derived from a player's metadata (e.g. a formatted
+     * prefix), computing it if necessary. The value is cached along with the
+     * player's metadata and so is discarded whenever the player's metadata,
+     * groups, or any of their groups' metadata is invalidated.
+     * 
+     * @param uuid the player's UUID
+     * @param key identifies the derived value
+     * @param loader computes the value, if not cached
+     * @return the derived value
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getDerivedPlayerValue(UUID uuid, String key, DerivedValueLoader<T> loader) {
+        if (uuid == null)
+            throw new IllegalArgumentException("uuid cannot be null");
+
+        long startGeneration = generation.get();
+
+        CacheEntry entry = getEntry("ignored", uuid, false);
+        Object value = entry.getDerivedValues().get(key);
+        if (value != null)
+            return (T)value;
+
+        T result = loader.load();
+        // Only keep it if nothing was invalidated in the meantime
+        if (result != null && generation.get() == startGeneration)
+            entry.getDerivedValues().putIfAbsent(key, result);
+        return result;
+    }
+
+    // Retrieve cache entry, resolving & caching it if missing
+    private CacheEntry getEntry(String name, final UUID uuid, final boolean group) {
         final String lname = name.toLowerCase();
+        Object key = group ? lname : uuid;
+
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            entry.touch();
+            return entry;
+        }
+        misses.incrementAndGet();
+
+        long startGeneration = generation.get();
+
+        // Not in cache, look it up
+        MetadataResult metadataResult = getTransactionStrategy().execute(new TransactionCallback<MetadataResult>() {
+            @Override
+            public MetadataResult doInTransaction() throws Exception {
+                if (group)
+                    return getResolver().resolveGroupMetadata(lname);
+                else
+                    return getResolver().resolvePlayerMetadata(uuid);
+            }
+        });
+        entry = new CacheEntry(key, metadataResult.getMetadata(), metadataResult.getGroups());
+
+        // Stuff in cache
+        cache.put(key, entry);
+        for (String groupName : entry.getGroups()) {
+            Set<Object> keys = dependents.get(groupName);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+                Set<Object> existing = dependents.putIfAbsent(groupName, keys);
+                if (existing != null)
+                    keys = existing;
+            }
+            keys.add(key);
+        }
+        clock.add(entry);
+        clockSize.incrementAndGet();
+
+        // Invalidated while we were resolving? Then don't trust it.
+        if (generation.get() != startGeneration)
+            removeEntry(key, entry);
 
-        Map<String, Object> metadata;
+        sweep();
 
-        cacheLock.readLock().lock();
+        return entry;
+    }
+
+    // Evict entries while over capacity. Also drops stale clock entries.
+    private void sweep() {
+        if (cache.size() <= maxSize && clockSize.get() <= 2 * maxSize)
+            return;
+        if (!sweepLock.tryLock())
+            return; // Someone else is on it
         try {
-            metadata = getCachedMetadata(lname, uuid, group);
-
-            if (metadata == null) {
-                cacheLock.readLock().unlock(); // Can't upgrade
-                cacheLock.writeLock().lock();
-                try {
-                    // Re-test
-                    metadata = getCachedMetadata(lname, uuid, group);
-
-                    if (metadata == null) {
-                        // Not in cache, look it up
-                        MetadataResult metadataResult = getTransactionStrategy().execute(new TransactionCallback<MetadataResult>() {
-                            @Override
-                            public MetadataResult doInTransaction() throws Exception {
-                                if (group)
-                                    return getResolver().resolveGroupMetadata(lname);
-                                else
-                                    return getResolver().resolvePlayerMetadata(uuid);
-                            }
-                        });
-                        CacheEntry pe = new CacheEntry(metadataResult.getMetadata(), metadataResult.getGroups());
-
-                        if (group) {
-                            // Stuff in cache
-                            groupCache.put(lname, pe);
-                        }
-                        else {
-                            // Stuff in cache
-                            playerCache.put(uuid, pe);
-                        }
-                        metadata = metadataResult.getMetadata();
+            // Forget entries that are no longer cached
+            if (clockSize.get() > 2 * maxSize) {
+                for (int i = clockSize.get(); i > 0; i--) {
+                    CacheEntry entry = clock.poll();
+                    if (entry == null) break;
+                    clockSize.decrementAndGet();
+                    if (cache.get(entry.getKey()) == entry) {
+                        clock.add(entry);
+                        clockSize.incrementAndGet();
                     }
                 }
-                finally {
-                    cacheLock.readLock().lock(); // Downgrade lock
-                    cacheLock.writeLock().unlock();
-                }
             }
 
-            return metadata.get(metadataName.toLowerCase());
+            while (cache.size() > maxSize) {
+                CacheEntry entry = clock.poll();
+                if (entry == null) break;
+                clockSize.decrementAndGet();
+                if (cache.get(entry.getKey()) != entry)
+                    continue; // Already gone
+
+                if (entry.decay()) {
+                    // Used since last time, give it another pass
+                    clock.add(entry);
+                    clockSize.incrementAndGet();
+                }
+                else if (removeEntry(entry.getKey(), entry)) {
+                    evictions.incrementAndGet();
+                }
+            }
         }
         finally {
-            cacheLock.readLock().unlock();
+            sweepLock.unlock();
         }
     }
 
-    private Map<String, Object> getCachedMetadata(final String lname, UUID uuid, boolean group) {
-        // Check cache first
-        CacheEntry pe;
-        if (group) {
-            pe = groupCache.get(lname);
-        }
-        else {
-            pe = playerCache.get(uuid);
+    // Remove an entry along with its reverse index entries
+    private boolean removeEntry(Object key, CacheEntry entry) {
+        if (!cache.remove(key, entry))
+            return false;
+        for (String groupName : entry.getGroups()) {
+            Set<Object> keys = dependents.get(groupName);
+            if (keys != null)
+                keys.remove(key);
         }
-        return pe != null ? pe.getMetadata() : null;
+        return true;
+    }
+
+    private void removeKey(Object key) {
+        CacheEntry entry = cache.get(key);
+        if (entry != null)
+            removeEntry(key, entry);
     }
 
     public void invalidateMetadata(String name, UUID uuid, boolean group) {
@@ -158,52 +248,69 @@ public class MetadataManager {
 
         name = name.toLowerCase();
 
-        cacheLock.writeLock().lock();
-        try {
-            if (group) {
-                groupCache.remove(name);
-                // Also invalidate related players
-                for (Iterator<Map.Entry<UUID, CacheEntry>> i = playerCache.entrySet().iterator(); i.hasNext();) {
-                    Map.Entry<UUID, CacheEntry> me = i.next();
-                    if (me.getValue().getGroups().contains(name)) {
-                        i.remove();
-                    }
-                }
-                // And related groups
-                for (Iterator<Map.Entry<String, CacheEntry>> i = groupCache.entrySet().iterator(); i.hasNext();) {
-                    Map.Entry<String, CacheEntry> me = i.next();
-                    if (me.getValue().getGroups().contains(name)) {
-                        i.remove();
-                    }
+        generation.incrementAndGet();
+        if (group) {
+            removeKey(name);
+            // Also invalidate related players and groups
+            Set<Object> keys = dependents.remove(name);
+            if (keys != null) {
+                for (Object key : keys) {
+                    removeKey(key);
                 }
             }
-            else {
-                playerCache.remove(uuid);
-            }
         }
-        finally {
-            cacheLock.writeLock().unlock();
+        else {
+            removeKey(uuid);
         }
     }
     
     public void invalidateAllMetadata() {
-        cacheLock.writeLock().lock();
-        try {
-            playerCache.clear();
-            groupCache.clear();
-        }
-        finally {
-            cacheLock.writeLock().unlock();
-        }
+        generation.incrementAndGet();
+        cache.clear();
+        dependents.clear();
+        clock.clear();
+        clockSize.set(0);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Computes a value derived from a player's metadata.
+     */
+    public static interface DerivedValueLoader<T> {
+
+        public T load();
+
     }
 
     private static class CacheEntry {
         
+        private final Object key;
+
         private final Map<String, Object> metadata;
         
         private final Set<String> groups;
 
-        public CacheEntry(Map<String, Object> metadata, Set<String> groups) {
+        private final AtomicInteger frequency = new AtomicInteger();
+
+        private final ConcurrentMap<String, Object> derivedValues = new ConcurrentHashMap<>();
+
+        public CacheEntry(Object key, Map<String, Object> metadata, Set<String> groups) {
+            this.key = key;
             this.metadata = Collections.unmodifiableMap(metadata);
 
             // Lowercase groups
@@ -214,6 +321,10 @@ public class MetadataManager {
             this.groups = Collections.unmodifiableSet(groupsCopy);
         }
 
+        public Object getKey() {
+            return key;
+        }
+
         public Map<String, Object> getMetadata() {
             return metadata;
         }
@@ -221,7 +332,28 @@ public class MetadataManager {
         public Set<String> getGroups() {
             return groups;
         }
-        
+
+        public ConcurrentMap<String, Object> getDerivedValues() {
+            return derivedValues;
+        }
+
+        public void touch() {
+            if (frequency.get() < MAX_FREQUENCY)
+                frequency.incrementAndGet();
+        }
+
+        // Returns true if the entry had been used since the last sweep
+        public boolean decay() {
+            int current;
+            do {
+                current = frequency.get();
+                if (current <= 0)
+                    return false;
+            }
+            while (!frequency.compareAndSet(current, current - 1));
+            return true;
+        }
+
     }
 
 }
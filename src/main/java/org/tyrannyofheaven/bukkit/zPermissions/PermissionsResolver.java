@@ -16,23 +16,31 @@
 package org.tyrannyofheaven.bukkit.zPermissions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.tyrannyofheaven.bukkit.util.ToHLoggingUtils;
 import org.tyrannyofheaven.bukkit.util.uuid.UuidUtils;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemoryStateDiff;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionServiceListener;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.util.GlobPattern;
@@ -47,6 +55,15 @@ public class PermissionsResolver {
 
     private static final Object NULL_ALIAS = new Object();
 
+    // Upper bound on distinct (groups, world) combinations kept in the group cache
+    private static final int MAX_GROUP_CACHE_SIZE = 1000;
+
+    // Upper bound on players kept in the base layer cache
+    private static final int MAX_PLAYER_BASE_CACHE_SIZE = 1000;
+
+    // Number of region combinations whose results are remembered per player
+    private static final int MAX_PLAYER_RESULTS = 8;
+
     private final ZPermissionsPlugin plugin;
 
     private final PermissionService permissionService;
@@ -65,7 +82,60 @@ public class PermissionsResolver {
 
     private final Map<String, List<Pattern>> worldAliases = new LinkedHashMap<>(); // target -> [world1, world2, ...]
 
-    private final Map<String, Object> worldAliasCache = new HashMap<>(); // world -> target
+    private final Map<String, Object> worldAliasCache = new ConcurrentHashMap<>(); // world -> target (may be read by resolver threads)
+
+    // Flattened & layered group permissions, shared by all players with the
+    // same groups. Least recently used first, synchronized on itself.
+    private final Map<GroupCacheKey, LayeredPermissions> groupCache = new LinkedHashMap<GroupCacheKey, LayeredPermissions>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<GroupCacheKey, LayeredPermissions> eldest) {
+            return size() > MAX_GROUP_CACHE_SIZE;
+        }
+    };
+
+    // Bumped on every invalidation so that in-flight resolutions don't cache stale results
+    private final AtomicLong groupCacheGeneration = new AtomicLong();
+
+    // Non-region permissions of each recently-resolved player, so that region
+    // changes only need to apply region-specific permissions. Least recently
+    // used first, synchronized on itself.
+    private final Map<UUID, PlayerBase> playerBaseCache = new LinkedHashMap<UUID, PlayerBase>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, PlayerBase> eldest) {
+            return size() > MAX_PLAYER_BASE_CACHE_SIZE;
+        }
+    };
+
+    private final AtomicLong resultCacheHits = new AtomicLong();
+
+    private final AtomicLong resultCacheMisses = new AtomicLong();
+
+    // The PermissionService groupCacheInvalidator is currently registered with
+    private InMemoryPermissionService listenedPermissionService;
+
+    private final PermissionServiceListener groupCacheInvalidator = new PermissionServiceListener() {
+        @Override
+        public void groupChanged(String groupName) {
+            invalidateGroupCache(groupName);
+        }
+
+        @Override
+        public void playerChanged(UUID uuid) {
+            invalidatePlayerCache(uuid);
+        }
+
+        @Override
+        public void memoryStateChanged(MemoryStateDiff diff) {
+            for (String groupName : diff.getGroups()) {
+                invalidateGroupCache(groupName);
+            }
+            for (UUID uuid : diff.getPlayers()) {
+                invalidatePlayerCache(uuid);
+            }
+        }
+    };
 
     // For plugin use
     PermissionsResolver(ZPermissionsPlugin plugin) {
@@ -89,6 +159,7 @@ public class PermissionsResolver {
         this.groupPermissionFormats.clear();
         if (groupPermissionFormats != null)
             this.groupPermissionFormats.addAll(groupPermissionFormats);
+        invalidateGroupCache();
     }
 
     /**
@@ -101,6 +172,7 @@ public class PermissionsResolver {
         this.assignedGroupPermissionFormats.clear();
         if (assignedGroupPermissionFormats != null)
             this.assignedGroupPermissionFormats.addAll(assignedGroupPermissionFormats);
+        invalidateGroupCache();
     }
 
     /**
@@ -110,6 +182,7 @@ public class PermissionsResolver {
      */
     public void setDefaultGroup(String defaultGroup) {
         this.defaultGroup = defaultGroup;
+        invalidateGroupCache();
     }
 
     // Get PermissionService, accounting for decoupling from plugin
@@ -142,6 +215,7 @@ public class PermissionsResolver {
 
     public void setOpaqueInheritance(boolean opaqueInheritance) {
         this.opaqueInheritance = opaqueInheritance;
+        invalidateGroupCache();
     }
 
     private boolean isInterleavedPlayerPermissions() {
@@ -150,6 +224,7 @@ public class PermissionsResolver {
 
     public void setInterleavedPlayerPermissions(boolean interleavedPlayerPermissions) {
         this.interleavedPlayerPermissions = interleavedPlayerPermissions;
+        invalidateGroupCache();
     }
 
     // Returns whether or not default group should be included in assigned permissions
@@ -166,6 +241,7 @@ public class PermissionsResolver {
      */
     public void setIncludeDefaultInAssigned(boolean includeDefaultInAssigned) {
         this.includeDefaultInAssigned = includeDefaultInAssigned;
+        invalidateGroupCache();
     }
 
     public void addWorldAlias(String world, String target) {
@@ -176,11 +252,82 @@ public class PermissionsResolver {
             worldAliases.put(target, patterns);
         }
         patterns.add(GlobPattern.compile(world.toLowerCase()));
+        worldAliasCache.clear();
+        invalidateGroupCache();
     }
 
     public void clearWorldAliases() {
         worldAliases.clear();
         worldAliasCache.clear();
+        invalidateGroupCache();
+    }
+
+    /**
+     * Discard all cached group resolution results.
+     */
+    public void invalidateGroupCache() {
+        groupCacheGeneration.incrementAndGet();
+        synchronized (groupCache) {
+            groupCache.clear();
+        }
+        synchronized (playerBaseCache) {
+            playerBaseCache.clear();
+        }
+    }
+
+    /**
+     * Discard the cached base layer of a player, e.g. when they log off or
+     * their permissions change.
+     * 
+     * @param uuid the player's UUID
+     */
+    public void invalidatePlayerCache(UUID uuid) {
+        groupCacheGeneration.incrementAndGet();
+        synchronized (playerBaseCache) {
+            playerBaseCache.remove(uuid);
+        }
+    }
+
+    /**
+     * Returns the number of player resolutions answered from the cache.
+     * 
+     * @return number of hits
+     */
+    public long getResultCacheHits() {
+        return resultCacheHits.get();
+    }
+
+    /**
+     * Returns the number of player resolutions that had to be computed.
+     * 
+     * @return number of misses
+     */
+    public long getResultCacheMisses() {
+        return resultCacheMisses.get();
+    }
+
+    /**
+     * Discard cached group resolution results that depend on the given group,
+     * i.e. those where the group is assigned or appears in the resolution
+     * order.
+     * 
+     * @param groupName the name of the group
+     */
+    public void invalidateGroupCache(String groupName) {
+        groupCacheGeneration.incrementAndGet();
+        String lname = groupName.toLowerCase();
+        synchronized (groupCache) {
+            for (Iterator<LayeredPermissions> i = groupCache.values().iterator(); i.hasNext();) {
+                if (i.next().dependsOn(lname))
+                    i.remove();
+            }
+        }
+        synchronized (playerBaseCache) {
+            for (Iterator<PlayerBase> i = playerBaseCache.values().iterator(); i.hasNext();) {
+                if (i.next().groupPermissions.dependsOn(lname))
+                    i.remove();
+            }
+        }
     }
 
     // Output debug message
@@ -200,7 +347,8 @@ public class PermissionsResolver {
      * @param regions the name of the regions containing the destination, all
      *   in lowercase
      * @param playerName the player's name
-     * @return effective permissions for this player
+     * @return effective permissions for this player. The result may be shared
+     *   and must not be modified.
      */
     public ResolverResult resolvePlayer(UUID uuid, String world, Set<String> regions) {
         String playerName = UuidUtils.canonicalizeUuid(uuid);
@@ -214,30 +362,193 @@ public class PermissionsResolver {
         // Resolve each group in turn (highest priority resolved last)
         debug("Groups for %s: %s", playerName, groups);
 
-        List<String> resolveOrder = new ArrayList<>();
-        for (String group : groups) {
-            calculateResolutionOrder(resolveOrder, group);
+        PlayerBase base = getPlayerBase(uuid, playerName, groups, world);
+        debug("Resolution order for %s: %s", playerName, base.groupPermissions.getResolveOrder());
+
+        // Been here recently?
+        List<String> regionList = new ArrayList<>(regions); // NB order is significant
+        ResolverResult result = base.getResult(regionList);
+        if (result != null) {
+            resultCacheHits.incrementAndGet();
+            return result;
         }
-        debug("Resolution order for %s: %s", playerName, resolveOrder);
+        resultCacheMisses.incrementAndGet();
 
-        List<Entry> entries = new ArrayList<>();
-        resolveGroupHelper(entries, groups, resolveOrder);
-        
+        // Only region-specific permissions remain to be applied
         Map<String, Boolean> permissions;
-        if (isInterleavedPlayerPermissions()) {
+        Map<String, Boolean> groupLayer = null;
+        Map<String, Boolean> playerLayer = null;
+        if (base.interleaved) {
             // Player-specific permissions overrides group permissions (at same level)
-            entries.addAll(getPermissionService().getEntries(playerName, uuid, false));
-
-            permissions = applyPermissions(entries, regions, world);
+            permissions = new LinkedHashMap<>(base.permissions);
+            applyRegionLayers(permissions, base.groupPermissions, base.playerPermissions, regions);
         }
         else {
             // Apply all player-specific permissions at the end
-            permissions = applyPermissions(entries, regions, world);
-            
-            permissions.putAll(applyPermissions(getPermissionService().getEntries(playerName, uuid, false), regions, world));
+            // (NB if the player has none, interleaving makes no difference)
+            groupLayer = new LinkedHashMap<>(base.permissions);
+            applyRegionLayers(groupLayer, base.groupPermissions, null, regions);
+            playerLayer = new LinkedHashMap<>(base.playerOnlyPermissions);
+            applyRegionLayers(playerLayer, base.playerPermissions, null, regions);
+
+            permissions = new LinkedHashMap<>(groupLayer);
+            permissions.putAll(playerLayer);
+        }
+
+        result = new ResolverResult(permissions, new LinkedHashSet<>(base.groupPermissions.getResolveOrder()), base.groups, groupLayer, playerLayer);
+        base.putResult(regionList, result);
+        return result;
+    }
+
+    /**
+     * Determine the value of a single permission for a player, as it would
+     * appear in the result of {@link #resolvePlayer(UUID, String, Set)}.
+     * Layers are searched from highest to lowest priority, stopping at the
+     * first match, so the player's full permissions are never built.
+     * NB: world and regions should all be in lowercase!
+     * 
+     * @param uuid the player's UUID
+     * @param world the destination world name in lowercase or null
+     * @param regions the name of the regions containing the destination, all
+     *   in lowercase
+     * @param permission the permission
+     * @return the permission's value, or null if not explicitly set
+     */
+    public Boolean resolvePlayerPermission(UUID uuid, String world, Set<String> regions, String permission) {
+        String playerName = UuidUtils.canonicalizeUuid(uuid);
+        // Get this player's groups
+        List<String> groups = Utils.toGroupNames(Utils.filterExpired(getPermissionService().getGroups(uuid)));
+        if (groups.isEmpty()) {
+            // If no groups, use the default group
+            groups.add(getDefaultGroup());
+        }
+
+        String lpermission = permission.toLowerCase();
+        List<String> regionList = new ArrayList<>(regions);
+
+        // Already resolved?
+        PlayerBase base = getCachedPlayerBase(uuid, groups, world);
+        if (base != null) {
+            ResolverResult result = base.getResult(regionList);
+            if (result != null)
+                return result.getPermissions().get(lpermission);
+        }
+
+        // NB Group layers are shared, but the player's own are looked up as
+        // needed rather than building (and caching) their base
+        LayeredPermissions groupPermissions = getGroupPermissions(groups, world);
+        String worldAlias = world != null ? getWorldAlias(world) : null;
+        Collection<String> worlds = getEntryWorlds(world, worldAlias);
+
+        Boolean value;
+        if (isInterleavedPlayerPermissions()) {
+            value = lookupPermission(groupPermissions, playerName, uuid, worlds, worldAlias, regionList, lpermission);
+        }
+        else {
+            // Player-specific permissions were applied last
+            value = lookupPermission(null, playerName, uuid, worlds, worldAlias, regionList, lpermission);
+            if (value == null)
+                value = lookupPermission(groupPermissions, null, null, worlds, worldAlias, regionList, lpermission);
+        }
+        return value;
+    }
+
+    // Search layers in reverse order of application (see applyPermissions())
+    // and return the first value found, if any. At each layer, the player's
+    // own entries (if playerName is non-null) take precedence over those of
+    // groupPermissions (if non-null).
+    private Boolean lookupPermission(LayeredPermissions groupPermissions, String playerName, UUID uuid, Collection<String> worlds, String worldAlias, List<String> regions, String permission) {
+        // Region-specific: world, world alias, then universal
+        for (String world : worlds) {
+            for (ListIterator<String> i = regions.listIterator(regions.size()); i.hasPrevious();) {
+                Boolean value = lookupLayerPermission(groupPermissions, playerName, uuid, world, worldAlias, i.previous(), permission);
+                if (value != null)
+                    return value;
+            }
+        }
+        for (ListIterator<String> i = regions.listIterator(regions.size()); i.hasPrevious();) {
+            Boolean value = lookupLayerPermission(groupPermissions, playerName, uuid, null, worldAlias, i.previous(), permission);
+            if (value != null)
+                return value;
+        }
+
+        // Non-region-specific, same order
+        for (String world : worlds) {
+            Boolean value = lookupLayerPermission(groupPermissions, playerName, uuid, world, worldAlias, null, permission);
+            if (value != null)
+                return value;
+        }
+        return lookupLayerPermission(groupPermissions, playerName, uuid, null, worldAlias, null, permission);
+    }
+
+    private Boolean lookupLayerPermission(LayeredPermissions groupPermissions, String playerName, UUID uuid, String world, String worldAlias, String region, String permission) {
+        if (playerName != null) {
+            Boolean value = getPermissionService().getPermission(playerName, uuid, false, region, world, permission);
+            if (value != null)
+                return value;
         }
+        if (groupPermissions != null) {
+            // NB LayeredPermissions files a world's entries under its alias layer if the two are the same
+            if (world == null)
+                return region == null ? groupPermissions.universal.get(permission) : getRegionPermission(groupPermissions.regionUniversal, region, permission);
+            else if (world.equals(worldAlias))
+                return region == null ? groupPermissions.worldAlias.get(permission) : getRegionPermission(groupPermissions.regionWorldAlias, region, permission);
+            else
+                return region == null ? groupPermissions.world.get(permission) : getRegionPermission(groupPermissions.regionWorld, region, permission);
+        }
+        return null;
+    }
+
+    private static Boolean getRegionPermission(Map<String, Map<String, Boolean>> regionPermissions, String region, String permission) {
+        Map<String, Boolean> regionPerms = regionPermissions.get(region);
+        return regionPerms == null ? null : regionPerms.get(permission);
+    }
+
+    // Cached base of a player, if still valid for the given groups & world
+    private PlayerBase getCachedPlayerBase(UUID uuid, List<String> groups, String world) {
+        if (!checkGroupCacheListener())
+            return null;
 
-        return new ResolverResult(permissions, new LinkedHashSet<>(resolveOrder));
+        PlayerBase cached;
+        synchronized (playerBaseCache) {
+            cached = playerBaseCache.get(uuid);
+        }
+        if (cached != null && cached.isValid(groups, world))
+            return cached;
+        return null;
+    }
+
+    // Retrieve the player's non-region permissions for the given groups &
+    // world, using the cache if possible
+    private PlayerBase getPlayerBase(UUID uuid, String playerName, List<String> groups, String world) {
+        boolean cacheable = checkGroupCacheListener();
+
+        // NB Noted before resolving, so anything changed while resolving makes the result stale
+        long generation = groupCacheGeneration.get();
+
+        if (cacheable) {
+            PlayerBase cached = getCachedPlayerBase(uuid, groups, world);
+            if (cached != null)
+                return cached;
+        }
+
+        LayeredPermissions groupPermissions = getGroupPermissions(groups, world);
+
+        String worldAlias = world != null ? getWorldAlias(world) : null;
+        LayeredPermissions playerPermissions = new LayeredPermissions(getPermissionService().getEntries(playerName, uuid, false, getEntryWorlds(world, worldAlias)), world, worldAlias, null, null);
+
+        PlayerBase result = new PlayerBase(groups, world, groupPermissions, playerPermissions,
+                isInterleavedPlayerPermissions() && !playerPermissions.isEmpty());
+
+        if (cacheable) {
+            synchronized (playerBaseCache) {
+                // Invalidated while we were resolving? Then don't trust it.
+                if (groupCacheGeneration.get() == generation)
+                    playerBaseCache.put(uuid, result);
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -252,13 +563,68 @@ public class PermissionsResolver {
      * @return effective permissions for this group
      */
     public Map<String, Boolean> resolveGroup(String groupName, String world, Set<String> regions) {
+        return applyPermissions(getGroupPermissions(Collections.singletonList(groupName), world), null, regions);
+    }
+
+    // Retrieve the layered permissions of the given (ordered) groups, using
+    // the cache if possible
+    private LayeredPermissions getGroupPermissions(List<String> groups, String world) {
+        boolean cacheable = checkGroupCacheListener();
+
+        GroupCacheKey key = new GroupCacheKey(groups, world);
+        if (cacheable) {
+            LayeredPermissions cached;
+            synchronized (groupCache) {
+                cached = groupCache.get(key);
+            }
+            if (cached != null)
+                return cached;
+        }
+
+        long generation = groupCacheGeneration.get();
+
         List<String> resolveOrder = new ArrayList<>();
-        calculateResolutionOrder(resolveOrder, groupName);
+        for (String group : groups) {
+            calculateResolutionOrder(resolveOrder, group);
+        }
+
+        String worldAlias = world != null ? getWorldAlias(world) : null;
 
         List<Entry> entries = new ArrayList<>();
-        resolveGroupHelper(entries, Collections.singletonList(groupName), resolveOrder);
+        resolveGroupHelper(entries, groups, resolveOrder, getEntryWorlds(world, worldAlias));
+
+        LayeredPermissions result = new LayeredPermissions(entries, world, worldAlias, groups, resolveOrder);
+
+        if (cacheable) {
+            synchronized (groupCache) {
+                // Invalidated while we were resolving? Then don't trust it.
+                if (groupCacheGeneration.get() == generation)
+                    groupCache.put(key, result);
+            }
+        }
+
+        return result;
+    }
 
-        return applyPermissions(entries, regions, world);
+    // Ensure the cache invalidator is registered with the current PermissionService.
+    // Returns false if the PermissionService cannot notify us of changes, in
+    // which case nothing should be cached.
+    private boolean checkGroupCacheListener() {
+        PermissionService permissionService = getPermissionService();
+        synchronized (groupCacheInvalidator) {
+            if (permissionService != listenedPermissionService) {
+                if (listenedPermissionService != null)
+                    listenedPermissionService.removeListener(groupCacheInvalidator);
+                listenedPermissionService = null;
+                invalidateGroupCache();
+
+                if (permissionService instanceof InMemoryPermissionService) {
+                    listenedPermissionService = (InMemoryPermissionService)permissionService;
+                    listenedPermissionService.addListener(groupCacheInvalidator);
+                }
+            }
+            return listenedPermissionService != null;
+        }
     }
 
     // Determine the order in which groups should be resolved
@@ -285,7 +651,7 @@ public class PermissionsResolver {
     }
 
     // Add ancillary permissions and permissions from each resolved group
-    private void resolveGroupHelper(List<Entry> entries, List<String> assignedGroups, List<String> resolveOrder) {
+    private void resolveGroupHelper(List<Entry> entries, List<String> assignedGroups, List<String> resolveOrder, Collection<String> worlds) {
         Set<String> assigned = new HashSet<>(assignedGroups); // for contains()
 
         for (String group : resolveOrder) {
@@ -309,10 +675,20 @@ public class PermissionsResolver {
                 entries.add(groupPerm);
             }
 
-            entries.addAll(getPermissionService().getEntries(group, null, true));
+            entries.addAll(getPermissionService().getEntries(group, null, true, worlds));
         }
     }
 
+    // Worlds whose entries are relevant when resolving for the given world
+    private Collection<String> getEntryWorlds(String world, String worldAlias) {
+        if (world == null)
+            return Collections.emptyList();
+        else if (worldAlias == null || worldAlias.equals(world))
+            return Collections.singletonList(world);
+        else
+            return Arrays.asList(world, worldAlias);
+    }
+
     // Fetches target world, if aliased
     private String getWorldAlias(String world) {
         Object alias = worldAliasCache.get(world); // NB Should only contain Strings or NULL_ALIAS
@@ -342,82 +718,46 @@ public class PermissionsResolver {
         return alias != NULL_ALIAS ? (String)alias : null;
     }
 
-    // Apply an entity's permissions to the permission map. Universal permissions
+    // Apply layered permissions to a new permission map. Universal permissions
     // (ones not assigned to any specific world) are applied first. They are
-    // then overridden by any world-specific permissions.
-    private Map<String, Boolean> applyPermissions(List<Entry> entries, Set<String> regions, String world) {
-        String worldAlias = world != null ? getWorldAlias(world) : null;
+    // then overridden by any world-specific permissions. If overlay is
+    // non-null, each of its layers is applied immediately after the
+    // corresponding base layer.
+    private Map<String, Boolean> applyPermissions(LayeredPermissions base, LayeredPermissions overlay, Set<String> regions) {
+        Map<String, Boolean> permissions = applyBaseLayers(base, overlay);
+        applyRegionLayers(permissions, base, overlay, regions);
+        return permissions;
+    }
 
+    // Apply the non-region-specific layers to a new permission map
+    private Map<String, Boolean> applyBaseLayers(LayeredPermissions base, LayeredPermissions overlay) {
         Map<String, Boolean> permissions = new LinkedHashMap<>();
 
-        Map<String, Map<String, Boolean>> regionPermissions = new HashMap<>();
-        List<Entry> worldPermissions = new ArrayList<>();
+        // Apply non-region-specific permissions first, world-specific last
+        applyLayer(permissions, base.universal, overlay == null ? null : overlay.universal);
+        applyLayer(permissions, base.worldAlias, overlay == null ? null : overlay.worldAlias);
+        applyLayer(permissions, base.world, overlay == null ? null : overlay.world);
 
-        // Apply non-region-specific, non-world-specific permissions first
-        for (Entry e : entries) {
-            if (e.getRegion() == null && e.getWorld() == null) {
-                permissions.put(e.getPermission(), e.isValue());
-            }
-            else if (e.getRegion() != null && e.getWorld() == null) {
-                // Universal region-specific (should these really be supported?)
-                if (regions.contains(e.getRegion().getName())) {
-                    addRegionPermission(regionPermissions, e);
-                }
-            }
-            else if (e.getWorld().getName().equals(world) || e.getWorld().getName().equals(worldAlias)) {
-                worldPermissions.add(e);
-            }
-        }
-
-        // Then override with world-specific permissions
-        Map<String, Boolean> specificWorldPermissions = new LinkedHashMap<>();
-        Map<String, Map<String, Boolean>> regionWorldAliasPermissions = new HashMap<>();
-        Map<String, Map<String, Boolean>> regionWorldPermissions = new HashMap<>();
-        for (Entry e : worldPermissions) {
-            if (e.getRegion() == null) {
-                // Non region-specific
-                if (e.getWorld().getName().equals(worldAlias)) {
-                    permissions.put(e.getPermission(), e.isValue());
-                }
-                else {
-                    specificWorldPermissions.put(e.getPermission(), e.isValue());
-                }
-            }
-            else {
-                if (regions.contains(e.getRegion().getName())) {
-                    if (e.getWorld().getName().equals(worldAlias)) {
-                        addRegionPermission(regionWorldAliasPermissions, e);
-                    }
-                    else {
-                        addRegionPermission(regionWorldPermissions, e);
-                    }
-                }
-            }
-        }
-        
-        permissions.putAll(specificWorldPermissions);
+        return permissions;
+    }
 
+    // Apply the region-specific layers on top of the base layers
+    private void applyRegionLayers(Map<String, Boolean> permissions, LayeredPermissions base, LayeredPermissions overlay, Set<String> regions) {
         // Override with universal, region-specific permissions
-        applyRegionPermissions(permissions, regionPermissions, regions);
+        applyRegionPermissions(permissions, base.regionUniversal, overlay == null ? null : overlay.regionUniversal, regions);
 
         // Finally, override with region- and world-specific permissions
-        applyRegionPermissions(permissions, regionWorldAliasPermissions, regions);
-        applyRegionPermissions(permissions, regionWorldPermissions, regions);
-        
-        return permissions;
+        applyRegionPermissions(permissions, base.regionWorldAlias, overlay == null ? null : overlay.regionWorldAlias, regions);
+        applyRegionPermissions(permissions, base.regionWorld, overlay == null ? null : overlay.regionWorld, regions);
     }
 
-    private void addRegionPermission(Map<String, Map<String, Boolean>> regionPermissions, Entry e) {
-        String region = e.getRegion().getName();
-        Map<String, Boolean> regionPerms = regionPermissions.get(region);
-        if (regionPerms == null) {
-            regionPerms = new LinkedHashMap<>();
-            regionPermissions.put(region, regionPerms);
-        }
-        regionPerms.put(e.getPermission(), e.isValue());
+    private void applyLayer(Map<String, Boolean> permissions, Map<String, Boolean> layer, Map<String, Boolean> overlay) {
+        permissions.putAll(layer);
+        if (overlay != null)
+            permissions.putAll(overlay);
     }
 
-    private void applyRegionPermissions(Map<String, Boolean> permissions, Map<String, Map<String, Boolean>> regionPermissions, Set<String> regions) {
+    private void applyRegionPermissions(Map<String, Boolean> permissions, Map<String, Map<String, Boolean>> regionPermissions, Map<String, Map<String, Boolean>> overlay, Set<String> regions) {
         // Depends on iteration order of regions set.
         // If ordering matters, pass a LinkedHashSet to resolvePlayer/resolveGroup
         // NB Ordering must be lowest to highest priority
@@ -425,6 +765,11 @@ public class PermissionsResolver {
             Map<String, Boolean> regionPerms = regionPermissions.get(region);
             if (regionPerms != null)
                 permissions.putAll(regionPerms);
+            if (overlay != null) {
+                regionPerms = overlay.get(region);
+                if (regionPerms != null)
+                    permissions.putAll(regionPerms);
+            }
         }
     }
 
@@ -479,15 +824,198 @@ public class PermissionsResolver {
         return result;
     }
 
+    // Entries of one or more entities for a particular world, pre-sorted into
+    // the layers applied by applyPermissions(). Regions are not filtered, so
+    // the same instance may be shared regardless of the player's location.
+    private static class LayeredPermissions {
+
+        private final List<String> resolveOrder;
+
+        private final Set<String> dependencies = new HashSet<>(); // lowercase assigned & resolved group names
+
+        private final Map<String, Boolean> universal = new LinkedHashMap<>();
+
+        private final Map<String, Boolean> worldAlias = new LinkedHashMap<>();
+
+        private final Map<String, Boolean> world = new LinkedHashMap<>();
+
+        private final Map<String, Map<String, Boolean>> regionUniversal = new HashMap<>();
+
+        private final Map<String, Map<String, Boolean>> regionWorldAlias = new HashMap<>();
+
+        private final Map<String, Map<String, Boolean>> regionWorld = new HashMap<>();
+
+        private LayeredPermissions(List<Entry> entries, String world, String worldAlias, List<String> groups, List<String> resolveOrder) {
+            this.resolveOrder = resolveOrder != null ? Collections.unmodifiableList(resolveOrder) : Collections.<String>emptyList();
+            // Assigned groups too, they may not exist (yet)
+            if (groups != null) {
+                for (String group : groups) {
+                    dependencies.add(group.toLowerCase());
+                }
+            }
+            for (String group : this.resolveOrder) {
+                dependencies.add(group.toLowerCase());
+            }
+
+            for (Entry e : entries) {
+                if (e.getWorld() == null) {
+                    if (e.getRegion() == null)
+                        this.universal.put(e.getPermission(), e.isValue());
+                    else
+                        // Universal region-specific (should these really be supported?)
+                        addRegionPermission(regionUniversal, e);
+                }
+                else if (e.getWorld().getName().equals(worldAlias)) {
+                    if (e.getRegion() == null)
+                        this.worldAlias.put(e.getPermission(), e.isValue());
+                    else
+                        addRegionPermission(regionWorldAlias, e);
+                }
+                else if (e.getWorld().getName().equals(world)) {
+                    if (e.getRegion() == null)
+                        this.world.put(e.getPermission(), e.isValue());
+                    else
+                        addRegionPermission(regionWorld, e);
+                }
+            }
+        }
+
+        private static void addRegionPermission(Map<String, Map<String, Boolean>> regionPermissions, Entry e) {
+            String region = e.getRegion().getName();
+            Map<String, Boolean> regionPerms = regionPermissions.get(region);
+            if (regionPerms == null) {
+                regionPerms = new LinkedHashMap<>();
+                regionPermissions.put(region, regionPerms);
+            }
+            regionPerms.put(e.getPermission(), e.isValue());
+        }
+
+        public List<String> getResolveOrder() {
+            return resolveOrder;
+        }
+
+        public boolean isEmpty() {
+            return universal.isEmpty() && worldAlias.isEmpty() && world.isEmpty() &&
+                    regionUniversal.isEmpty() && regionWorldAlias.isEmpty() && regionWorld.isEmpty();
+        }
+
+        public boolean dependsOn(String lname) {
+            return dependencies.contains(lname);
+        }
+
+    }
+
+    // A player's resolved non-region permissions, valid as long as their
+    // groups and world are unchanged. Dropped from the cache when the player
+    // or any group they depend on changes.
+    private class PlayerBase {
+
+        private final List<String> groups;
+
+        private final String world;
+
+        private final LayeredPermissions groupPermissions;
+
+        private final LayeredPermissions playerPermissions;
+
+        private final boolean interleaved;
+
+        private final Map<String, Boolean> permissions; // group (& interleaved player) base layers
+
+        private final Map<String, Boolean> playerOnlyPermissions; // player base layers, if not interleaved
+
+        private final Map<List<String>, ResolverResult> results = new LinkedHashMap<List<String>, ResolverResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, ResolverResult> eldest) {
+                return size() > MAX_PLAYER_RESULTS;
+            }
+        }; // regions -> result, synchronized on itself
+
+        private PlayerBase(List<String> groups, String world, LayeredPermissions groupPermissions, LayeredPermissions playerPermissions, boolean interleaved) {
+            this.groups = new ArrayList<>(groups);
+            this.world = world;
+            this.groupPermissions = groupPermissions;
+            this.playerPermissions = playerPermissions;
+            this.interleaved = interleaved;
+            if (interleaved) {
+                permissions = applyBaseLayers(groupPermissions, playerPermissions);
+                playerOnlyPermissions = null;
+            }
+            else {
+                permissions = applyBaseLayers(groupPermissions, null);
+                playerOnlyPermissions = applyBaseLayers(playerPermissions, null);
+            }
+        }
+
+        private boolean isValid(List<String> groups, String world) {
+            return this.groups.equals(groups) &&
+                    (this.world == null ? world == null : this.world.equals(world));
+        }
+
+        private ResolverResult getResult(List<String> regions) {
+            synchronized (results) {
+                return results.get(regions);
+            }
+        }
+
+        private void putResult(List<String> regions, ResolverResult result) {
+            synchronized (results) {
+                results.put(regions, result);
+            }
+        }
+
+    }
+
+    private static class GroupCacheKey {
+
+        private final List<String> groups;
+
+        private final String world;
+
+        private GroupCacheKey(List<String> groups, String world) {
+            this.groups = new ArrayList<>(groups);
+            this.world = world;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof GroupCacheKey)) return false;
+            GroupCacheKey o = (GroupCacheKey)obj;
+            return groups.equals(o.groups) &&
+                    (world == null ? o.world == null : world.equals(o.world));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + groups.hashCode();
+            result = 37 * result + (world == null ? 0 : world.hashCode());
+            return result;
+        }
+
+    }
+
     public static class ResolverResult {
         
         private final Map<String, Boolean> permissions;
         
         private final Set<String> groups;
-        
-        private ResolverResult(Map<String, Boolean> permissions, Set<String> groups) {
-            this.permissions = permissions;
-            this.groups = groups;
+
+        private final List<String> assignedGroups;
+
+        private final Map<String, Boolean> groupPermissions;
+
+        private final Map<String, Boolean> playerPermissions;
+
+        private ResolverResult(Map<String, Boolean> permissions, Set<String> groups, List<String> assignedGroups, Map<String, Boolean> groupPermissions, Map<String, Boolean> playerPermissions) {
+            // NB Results may be cached and shared
+            this.permissions = Collections.unmodifiableMap(permissions);
+            this.groups = Collections.unmodifiableSet(groups);
+            this.assignedGroups = Collections.unmodifiableList(assignedGroups);
+            this.groupPermissions = groupPermissions != null ? Collections.unmodifiableMap(groupPermissions) : null;
+            this.playerPermissions = playerPermissions != null ? Collections.unmodifiableMap(playerPermissions) : null;
         }
 
         public Map<String, Boolean> getPermissions() {
@@ -497,7 +1025,41 @@ public class PermissionsResolver {
         public Set<String> getGroups() {
             return groups;
         }
-        
+
+        /**
+         * Returns the groups the player is assigned to, in order. Together with
+         * the world and regions, these determine {@link #getGroupPermissions()}
+         * (the resolution order alone does not, due to assigned group
+         * permissions).
+         * 
+         * @return the assigned groups
+         */
+        public List<String> getAssignedGroups() {
+            return assignedGroups;
+        }
+
+        /**
+         * Returns the permissions contributed by the player's groups alone, if
+         * the effective permissions are simply these followed by
+         * {@link #getPlayerPermissions()}. Otherwise (i.e. player permissions
+         * are interleaved), returns null.
+         * 
+         * @return the group permissions or null
+         */
+        public Map<String, Boolean> getGroupPermissions() {
+            return groupPermissions;
+        }
+
+        /**
+         * Returns the player-specific permissions applied after
+         * {@link #getGroupPermissions()}, or null if not separable.
+         * 
+         * @return the player permissions or null
+         */
+        public Map<String, Boolean> getPlayerPermissions() {
+            return playerPermissions;
+        }
+
     }
 
     public static class MetadataResult {
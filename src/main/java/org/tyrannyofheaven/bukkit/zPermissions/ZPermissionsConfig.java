@@ -18,6 +18,8 @@ package org.tyrannyofheaven.bukkit.zPermissions;
 import java.io.File;
 import java.util.List;
 
+import org.tyrannyofheaven.bukkit.zPermissions.service.PlayerPrefixFormat;
+
 /**
  * Holds configuration data used by other modules, namely the command handlers.
  * 
@@ -49,14 +51,16 @@ public interface ZPermissionsConfig {
 
     public boolean isInheritedMetadata();
 
-    public String getVaultPlayerPrefixFormat();
+    public PlayerPrefixFormat getVaultPlayerPrefixFormat();
     
-    public String getVaultPlayerSuffixFormat();
+    public PlayerPrefixFormat getVaultPlayerSuffixFormat();
 
     public int getSearchBatchSize();
     
     public int getSearchDelay();
 
+    public int getSearchThreads();
+
     public boolean isServiceMetadataPrefixHack();
 
 }
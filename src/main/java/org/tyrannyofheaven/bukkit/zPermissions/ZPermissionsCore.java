@@ -41,6 +41,8 @@ public interface ZPermissionsCore {
 
     public boolean refreshAffectedPlayers(String groupName); // Also invalidates metadata cache of refreshed players
 
+    public void refreshChangedPlayers(); // Only those affected by storage refreshes since the last call
+
     // Refreshing the temporary group membership timer
 
     public void refreshExpirations();
@@ -69,6 +71,8 @@ public interface ZPermissionsCore {
 
     public void updateDisplayName(UUID uuid, String displayName);
 
+    public void preloadPlayer(UUID uuid); // May block, so call from an async thread
+
     public void handleExplicitDefaultGroupMembership(final UUID uuid, final String displayName);
 
     // Metadata cache management
@@ -29,13 +29,17 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -77,8 +81,11 @@ import org.tyrannyofheaven.bukkit.zPermissions.command.DirTypeCompleter;
 import org.tyrannyofheaven.bukkit.zPermissions.command.GroupTypeCompleter;
 import org.tyrannyofheaven.bukkit.zPermissions.command.RootCommands;
 import org.tyrannyofheaven.bukkit.zPermissions.command.TrackTypeCompleter;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemoryStateDiff;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.MissingGroupException;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionServiceListener;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsFallbackListener;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsPlayerListener;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsRegionPlayerListener;
@@ -86,17 +93,20 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.DataVersion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.JournalEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 import org.tyrannyofheaven.bukkit.zPermissions.model.UuidDisplayNameCache;
+import org.tyrannyofheaven.bukkit.zPermissions.region.CachingRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.FactionsRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.FactoidRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.RegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.ResidenceRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.WorldGuardRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.service.DefaultPlayerPrefixHandler;
+import org.tyrannyofheaven.bukkit.zPermissions.service.PlayerPrefixFormat;
 import org.tyrannyofheaven.bukkit.zPermissions.service.PlayerPrefixHandler;
 import org.tyrannyofheaven.bukkit.zPermissions.service.ZPermissionsServiceImpl;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.AvajeStorageStrategy;
@@ -104,7 +114,9 @@ import org.tyrannyofheaven.bukkit.zPermissions.storage.FileStorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.StorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.util.ExpirationRefreshHandler;
 import org.tyrannyofheaven.bukkit.zPermissions.util.ModelDumper;
+import org.tyrannyofheaven.bukkit.zPermissions.util.MovementRefreshScheduler;
 import org.tyrannyofheaven.bukkit.zPermissions.util.RefreshTask;
+import org.tyrannyofheaven.bukkit.zPermissions.util.SearchTask;
 import org.tyrannyofheaven.bukkit.zPermissions.uuid.AvajeBulkUuidConverter;
 import org.tyrannyofheaven.bukkit.zPermissions.uuid.YamlBulkUuidConverter;
 import org.tyrannyofheaven.bukkit.zPermissions.vault.VaultChatBridge;
@@ -153,6 +165,33 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Default number of ticks to wait between permissions refreshes of all players
     private static final int DEFAULT_BULK_REFRESH_DELAY = 5;
 
+    // Default max milliseconds of main thread time per tick spent on bulk refreshes
+    private static final int DEFAULT_BULK_REFRESH_BUDGET = 5;
+
+    // Default number of threads used to resolve permissions off the main thread (0 to disable)
+    private static final int DEFAULT_RESOLVER_THREADS = 2;
+
+    // Max times an async resolution is retried because data changed underneath it
+    private static final int MAX_RESOLUTION_ATTEMPTS = 3;
+
+    // Default max number of players and groups with cached metadata
+    private static final int DEFAULT_METADATA_CACHE_SIZE = 2000;
+
+    // Default min milliseconds between movement-based updates of a player
+    private static final int DEFAULT_MOVEMENT_REFRESH_INTERVAL = 250;
+
+    // Default region cache cell size in blocks (1 to only cache per block)
+    private static final int DEFAULT_REGION_CACHE_CELL_SIZE = 16;
+
+    // Default region cache TTL in seconds (0 to disable)
+    private static final int DEFAULT_REGION_CACHE_TTL = 5;
+
+    // Default max number of cells (and blocks) held by the region cache
+    private static final int DEFAULT_REGION_CACHE_SIZE = 4096;
+
+    // Default shared permission nodes
+    private static final boolean DEFAULT_SHARED_PERMISSION_NODES = false;
+
     // Default opaque inheritance
     private static final boolean DEFAULT_OPAQUE_INHERITANCE = true;
 
@@ -204,18 +243,24 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Prefix for each player's dynamic permission
     public static final String DYNAMIC_PERMISSION_PREFIX = "zPermissions_player.";
 
+    // Prefix for each shared group permission layer
+    public static final String SHARED_PERMISSION_PREFIX = "zPermissions_layer.";
+
     // Initial delay after initialization failure (ms)
     private static final int STARTING_INITIALIZATION_RETRY_DELAY = 30 * 1000;
 
     // Maximum delay after initialization failure (ms)
     private static final int MAX_INITIALIZATION_RETRY_DELAY = 8 * 60 * 1000;
 
-    // Search batch size
-    private static final int DEFAULT_SEARCH_BATCH_SIZE = 1;
+    // Max entities checked by each search worker task
+    private static final int DEFAULT_SEARCH_BATCH_SIZE = 100;
     
-    // Search delay in ticks
+    // Search result delivery interval in ticks
     private static final int DEFAULT_SEARCH_DELAY = 5;
 
+    // Number of worker threads per effective search
+    private static final int DEFAULT_SEARCH_THREADS = 2;
+
     // Whether or not to attempt UUID migration
     private static final boolean DEFAULT_UUID_MIGRATE = true;
 
@@ -243,6 +288,39 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Multi-user refreshing
     private final RefreshTask refreshTask = new RefreshTask(getZPermissionsCore(), this);
 
+    // Rate-limits movement-based updates
+    private final MovementRefreshScheduler movementRefreshScheduler = new MovementRefreshScheduler(getZPermissionsCore(), this);
+
+    // Groups (incl. descendants) and players changed by storage refreshes, pending refreshChangedPlayers()
+    private final Set<String> changedGroups = new HashSet<>();
+
+    private final Set<UUID> changedPlayers = new HashSet<>();
+
+    // Whether or not the above are being tracked (if not, refresh everyone)
+    private boolean trackingChanges;
+
+    // Collects changes made to the permission service by storage refreshes
+    private final PermissionServiceListener changeTracker = new PermissionServiceListener() {
+        @Override
+        public void groupChanged(String groupName) {
+            // Local changes are refreshed by whoever made them
+        }
+
+        @Override
+        public void playerChanged(UUID uuid) {
+            // Local changes are refreshed by whoever made them
+        }
+
+        @Override
+        public void memoryStateChanged(MemoryStateDiff diff) {
+            synchronized (changedGroups) {
+                changedGroups.addAll(diff.getGroups());
+                changedGroups.addAll(diff.getDescendants());
+                changedPlayers.addAll(diff.getPlayers());
+            }
+        }
+    };
+
     // Our own Configuration (don't bother with JavaPlugin's)
     private FileConfiguration config;
 
@@ -305,11 +383,11 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Whether Vault getPlayerGroups() should use assigned groups only
     private boolean vaultGetGroupsUsesAssignedOnly;
 
-    // Custom player prefix format
-    private String vaultPlayerPrefixFormat;
+    // Custom player prefix format, compiled (null if unset)
+    private PlayerPrefixFormat vaultPlayerPrefixFormat;
 
-    // Custom player suffix format
-    private String vaultPlayerSuffixFormat;
+    // Custom player suffix format, compiled (null if unset)
+    private PlayerPrefixFormat vaultPlayerSuffixFormat;
 
     // Whether to log Vault changes at INFO level
     private boolean logVaultChanges;
@@ -350,6 +428,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Search delay
     private int searchDelay;
 
+    // Search worker threads
+    private int searchThreads;
+
     // Size of UUID resolver cache
     private int uuidResolverCacheSize;
 
@@ -365,6 +446,37 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Async Executor for CommandUuidResolver
     private ExecutorService commandUuidResolverExecutor;
 
+    // Metadata cache size
+    private int metadataCacheSize;
+
+    // Region cache cell size
+    private int regionCacheCellSize;
+
+    // Region cache TTL (seconds)
+    private int regionCacheTtl;
+
+    // Region cache max size
+    private int regionCacheSize;
+
+    // Whether players with the same groups/location share a dynamic permission
+    private boolean sharedPermissionNodes;
+
+    // Shared group permission layers, by groups/world/regions. Main thread only.
+    private final Map<SharedPermissionKey, SharedPermission> sharedPermissions = new HashMap<>();
+
+    // Used to name shared permission layers
+    private long sharedPermissionCounter;
+
+    // Number of threads for async permission resolution
+    private int resolverThreads;
+
+    // Async Executor for permission resolution
+    private ExecutorService resolverExecutor;
+
+    // Outstanding async resolutions, keyed by player UUID. Only the latest
+    // request for a player is ever applied.
+    private final ConcurrentMap<UUID, PendingResolution> pendingResolutions = new ConcurrentHashMap<>();
+
     // Whether ZPermissionService#getPlayerMetadata() should be aware of prefix/suffix
     private boolean serviceMetadataPrefixHack;
 
@@ -431,6 +543,16 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             commandUuidResolverExecutor = null;
         }
 
+        // Shutdown async permission resolution
+        if (resolverExecutor != null) {
+            resolverExecutor.shutdownNow();
+            resolverExecutor = null;
+        }
+        pendingResolutions.clear();
+
+        // Stop any running searches
+        SearchTask.cancelAll();
+
         // Shut down region manager
         if (regionStrategy != null) {
             regionStrategy.shutdown();
@@ -445,6 +567,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
         // Kill pending refresh, if any
         refreshTask.stop();
+        movementRefreshScheduler.stop();
 
         // Really shut off all async tasks
         getServer().getScheduler().cancelTasks(this);
@@ -461,6 +584,11 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         for (Player player : Bukkit.getOnlinePlayers()) {
             removeBukkitPermissions(player, true);
         }
+        // Any shared layers should be unreferenced by now
+        for (SharedPermission sharedPermission : sharedPermissions.values()) {
+            Bukkit.getPluginManager().removePermission(sharedPermission.permission);
+        }
+        sharedPermissions.clear();
 
         log(this, "%s disabled.", versionInfo.getVersionString());
     }
@@ -561,7 +689,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
                     }
 
                     log(this, "Using database storage strategy.");
-                    storageStrategy = new AvajeStorageStrategy(this, txnMaxRetries, databaseReadOnly);
+                    storageStrategy = new AvajeStorageStrategy(getZPermissionsCore(), this, txnMaxRetries, databaseReadOnly);
                 }
             }
             
@@ -582,6 +710,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             Map<String, Object> configMap = config.getValues(true);
             storageStrategy.init(configMap);
 
+            // Track what subsequent refreshes actually change
+            if (storageStrategy.getPermissionService() instanceof InMemoryPermissionService) {
+                ((InMemoryPermissionService)storageStrategy.getPermissionService()).addListener(changeTracker);
+                trackingChanges = true;
+            }
+
             // Set up UuidResolver cascade if StorageStrategy implementation happens
             // to also implement UuidResolver
             if (storageStrategy instanceof UuidResolver) {
@@ -606,6 +740,10 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             commandUuidResolverExecutor = Executors.newSingleThreadExecutor();
             CommandUuidResolver commandUuidResolver = new CommandUuidResolver(this, uuidResolver, commandUuidResolverExecutor, false /* TODO true after 1.3 */);
 
+            // Initialize async permission resolution
+            if (resolverThreads > 0)
+                resolverExecutor = Executors.newFixedThreadPool(resolverThreads);
+
             // Install our commands
             (new ToHCommandExecutor<ZPermissionsPlugin>(this, new RootCommands(getZPermissionsCore(), storageStrategy, getResolver(), getModelDumper(), getZPermissionsConfig(), this, commandUuidResolver, uuidResolver)))
                 .registerTypeCompleter("group", new GroupTypeCompleter(getPermissionService()))
@@ -624,12 +762,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             expirationRefreshHandler = new ExpirationRefreshHandler(getZPermissionsCore(), storageStrategy, this);
             Bukkit.getPluginManager().registerEvents(new ZPermissionsPlayerListener(getZPermissionsCore(), this, uuidResolver), this);
             if (regionSupport) {
-                Bukkit.getPluginManager().registerEvents(new ZPermissionsRegionPlayerListener(getZPermissionsCore()), this);
+                Bukkit.getPluginManager().registerEvents(new ZPermissionsRegionPlayerListener(movementRefreshScheduler), this);
                 log(this, "%s region support: %s", regionStrategy.getName(), regionStrategy.isEnabled() ? "Enabled" : "Waiting");
             }
 
             // Set up MetadataManager
-            metadataManager = new MetadataManager(getResolver(), getRetryingTransactionStrategy());
+            metadataManager = new MetadataManager(getResolver(), getRetryingTransactionStrategy(), metadataCacheSize);
 
             // Set up service API
             PlayerPrefixHandler prefixHandler = new DefaultPlayerPrefixHandler(getZPermissionsConfig());
@@ -700,6 +838,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             if (regionStrategy.isPresent()) {
                 debug(this, "Found region manager %s", regionStrategy.getName());
                 regionStrategy.init();
+                // Memoize lookups, if possible
+                if (regionCacheTtl > 0 && regionStrategy.isCacheable())
+                    regionStrategy = new CachingRegionStrategy(this, regionStrategy, regionCacheCellSize, regionCacheTtl * 1000L, regionCacheSize);
                 this.regionStrategy = regionStrategy;
                 return;
             }
@@ -726,6 +867,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         result.add(Membership.class);
         result.add(EntityMetadata.class);
         result.add(DataVersion.class);
+        result.add(JournalEntry.class);
         result.add(UuidDisplayNameCache.class);
         return result;
     }
@@ -737,8 +879,15 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         // NB Attachment is recycled along with the player instance
 
         // Disassociate PlayerState
+        PlayerState playerState = getPlayerState(player);
         player.removeMetadata(PLAYER_METADATA_KEY, this);
 
+        // Abandon any outstanding async resolution
+        pendingResolutions.remove(player.getUniqueId());
+
+        // Forget cached base layer
+        getResolver().invalidatePlayerCache(player.getUniqueId());
+
         // Remove dynamic permission and recalculate, if wanted
         final String permName = DYNAMIC_PERMISSION_PREFIX + player.getUniqueId().toString();
         Bukkit.getPluginManager().removePermission(permName);
@@ -747,74 +896,215 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
                 p.recalculatePermissions();
             }
         }
+
+        // Let go of shared layer
+        if (playerState != null && playerState.getSharedPermission() != null)
+            releaseSharedPermission(playerState.getSharedPermission());
     }
     
     // Update state about a player, resolving effective permissions and
     // creating/updating their attachment
     @Override
     public void setBukkitPermissions(Player player, Location location, boolean force, RefreshCause eventCause) {
+        // Logins/joins (no event cause) must be resolved before returning.
+        // Everything else may be resolved in the background.
+        if (eventCause != null && resolverExecutor != null) {
+            setBukkitPermissionsAsync(player, location, force, eventCause);
+            return;
+        }
+
+        // Any outstanding async resolution is now out of date
+        pendingResolutions.remove(player.getUniqueId());
+
         boolean changed = false;
         try {
-            changed = setBukkitPermissionsInternal(player, location, force);
+            changed = setBukkitPermissionsInternal(player, location, force, eventCause);
         }
         catch (Error e) {
             throw e; // Never catch errors
         }
         catch (Throwable t) {
-            error(this, "Exception while updating permissions for %s", player.getName(), t);
-            broadcastAdmin(this, colorize("{RED}SEVERE error while determining permissions; see server.log!"));
-            
-            // Kick the player, if configured to do so
-            if (kickOnError && (kickOpsOnError || !player.isOp())) {
-                // Probably safer to do this synchronously
-                final UUID playerUuid = player.getUniqueId();
-                getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
-                    @Override
-                    public void run() {
-                        Player player = getServer().getPlayer(playerUuid);
-                        if (player != null)
-                            player.kickPlayer("Error determining your permissions");
-                    }
-                });
-            }
-            else {
-                // Ensure player has no permissions
-                removeBukkitPermissions(player, true);
-                sendMessage(player, colorize("{RED}Error determining your permissions; all permissions removed!"));
-            }
+            handleBukkitPermissionsError(player, t);
         }
         
         // Fire off event if requested and changed
-        if (eventCause != null && changed) {
+        if (eventCause != null && changed)
+            fireUpdateEvent(player, eventCause);
+    }
+
+    // Deal with failure to determine a player's permissions
+    private void handleBukkitPermissionsError(Player player, Throwable t) {
+        error(this, "Exception while updating permissions for %s", player.getName(), t);
+        broadcastAdmin(this, colorize("{RED}SEVERE error while determining permissions; see server.log!"));
+
+        // Kick the player, if configured to do so
+        if (kickOnError && (kickOpsOnError || !player.isOp())) {
+            // Probably safer to do this synchronously
             final UUID playerUuid = player.getUniqueId();
-            // Translate RefreshEvent to ZPermissionsPlayerPermissionsChangeEvent.Cause
-            // Kinda dumb, but I don't want internal code to depend on the event class.
-            final ZPermissionsPlayerUpdateEvent.Cause cause;
-            switch (eventCause) {
-            case COMMAND:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.COMMAND;
-                break;
-            case GROUP_CHANGE:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.GROUP_CHANGE;
-                break;
-            case MOVEMENT:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.MOVEMENT;
-                break;
-            default:
-                throw new AssertionError("Unhandled RefreshCause: " + eventCause);
-            }
-            // Fire it off on the following tick
-            Bukkit.getScheduler().runTask(this, new Runnable() {
+            getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
                 @Override
                 public void run() {
-                    Player player = Bukkit.getPlayer(playerUuid);
-                    if (player != null) {
-                        ZPermissionsPlayerUpdateEvent event = new ZPermissionsPlayerUpdateEvent(player, cause);
-                        Bukkit.getPluginManager().callEvent(event);
-                    }
+                    Player player = getServer().getPlayer(playerUuid);
+                    if (player != null)
+                        player.kickPlayer("Error determining your permissions");
                 }
             });
         }
+        else {
+            // Ensure player has no permissions
+            removeBukkitPermissions(player, true);
+            sendMessage(player, colorize("{RED}Error determining your permissions; all permissions removed!"));
+        }
+    }
+
+    // Fire off ZPermissionsPlayerUpdateEvent on the following tick
+    private void fireUpdateEvent(Player player, RefreshCause eventCause) {
+        final UUID playerUuid = player.getUniqueId();
+        // Translate RefreshEvent to ZPermissionsPlayerPermissionsChangeEvent.Cause
+        // Kinda dumb, but I don't want internal code to depend on the event class.
+        final ZPermissionsPlayerUpdateEvent.Cause cause;
+        switch (eventCause) {
+        case COMMAND:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.COMMAND;
+            break;
+        case GROUP_CHANGE:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.GROUP_CHANGE;
+            break;
+        case MOVEMENT:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.MOVEMENT;
+            break;
+        default:
+            throw new AssertionError("Unhandled RefreshCause: " + eventCause);
+        }
+        Bukkit.getScheduler().runTask(this, new Runnable() {
+            @Override
+            public void run() {
+                Player player = Bukkit.getPlayer(playerUuid);
+                if (player != null) {
+                    ZPermissionsPlayerUpdateEvent event = new ZPermissionsPlayerUpdateEvent(player, cause);
+                    Bukkit.getPluginManager().callEvent(event);
+                }
+            }
+        });
+    }
+
+    // Gather world/regions on the main thread, then resolve on a resolver
+    // thread. The result is applied on the main thread later.
+    private void setBukkitPermissionsAsync(Player player, Location location, boolean force, RefreshCause eventCause) {
+        Set<String> regions = getRegions(location, player);
+        String world = location.getWorld().getName();
+
+        if (!force) {
+            PendingResolution pending = pendingResolutions.get(player.getUniqueId());
+            if (pending != null) {
+                // Already resolving for this world/regions
+                if (pending.world.equals(world) && pending.regions.equals(regions))
+                    return;
+            }
+            else if (!isUpdateNeeded(player, world, regions)) {
+                // No need to update yet (most likely called by movement-based event)
+                return;
+            }
+        }
+
+        debug(this, "Queueing permissions update for %s", player.getName());
+        debug(this, "  location = %s", location);
+        debug(this, "  regions = %s", regions);
+
+        submitResolution(new PendingResolution(player.getUniqueId(), world, regions, eventCause, 1));
+    }
+
+    // Hand off a resolution to the resolver threads, superseding any previous
+    // request for the same player
+    private void submitResolution(final PendingResolution request) {
+        pendingResolutions.put(request.uuid, request);
+        // Note version before resolving so we can tell if the result is stale
+        final long dataVersion = getPermissionService().getDataVersion();
+        resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Don't bother if already superseded
+                if (pendingResolutions.get(request.uuid) != request) return;
+
+                ResolverResult resolverResult = null;
+                Throwable failure = null;
+                try {
+                    resolverResult = resolvePlayer(request.uuid, request.world.toLowerCase(), request.regions);
+                }
+                catch (Error e) {
+                    throw e; // Never catch errors
+                }
+                catch (Throwable t) {
+                    failure = t;
+                }
+
+                // Disabled meanwhile? Then there's no one to hand it to.
+                if (!isEnabled()) return;
+
+                final ResolverResult result = resolverResult;
+                final Throwable t = failure;
+                Bukkit.getScheduler().runTask(ZPermissionsPlugin.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        applyResolution(request, result, t, dataVersion);
+                    }
+                });
+            }
+        });
+    }
+
+    // Apply the result of an async resolution. Must be called on the main thread.
+    private void applyResolution(PendingResolution request, ResolverResult resolverResult, Throwable failure, long dataVersion) {
+        // Superseded by a newer request (or the player left)?
+        if (pendingResolutions.get(request.uuid) != request) return;
+
+        Player player = Bukkit.getPlayer(request.uuid);
+        if (player == null) {
+            pendingResolutions.remove(request.uuid, request);
+            return;
+        }
+
+        // Data changed while resolving? Then the result may be stale.
+        if (failure == null && getPermissionService().getDataVersion() != dataVersion) {
+            if (request.attempts < MAX_RESOLUTION_ATTEMPTS && resolverExecutor != null) {
+                debug(this, "Data changed while resolving permissions for %s; resolving again", player.getName());
+                submitResolution(request.retry());
+                return;
+            }
+
+            // Keeps changing, so settle it here rather than apply a stale result
+            debug(this, "Data still changing after %d attempts; resolving permissions for %s synchronously", request.attempts, player.getName());
+            try {
+                resolverResult = resolvePlayer(request.uuid, request.world.toLowerCase(), request.regions);
+            }
+            catch (Error e) {
+                throw e; // Never catch errors
+            }
+            catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        pendingResolutions.remove(request.uuid, request);
+
+        if (failure != null) {
+            handleBukkitPermissionsError(player, failure);
+            return;
+        }
+
+        boolean changed = false;
+        try {
+            changed = applyBukkitPermissions(player, request.world, request.regions, resolverResult, request.cause);
+        }
+        catch (Error e) {
+            throw e; // Never catch errors
+        }
+        catch (Throwable t) {
+            handleBukkitPermissionsError(player, t);
+        }
+
+        if (changed)
+            fireUpdateEvent(player, request.cause);
     }
 
     // Simulate failures probabilistically
@@ -826,81 +1116,223 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
     // Update state about a player, resolving effective permissions and
     // creating/updating their attachment
-    private boolean setBukkitPermissionsInternal(final Player player, Location location, boolean force) {
+    private boolean setBukkitPermissionsInternal(final Player player, Location location, boolean force, RefreshCause eventCause) {
         final Set<String> regions = getRegions(location, player);
 
-        // Fetch existing state
-        final String permName = DYNAMIC_PERMISSION_PREFIX + player.getUniqueId().toString();
-        Permission perm = Bukkit.getPluginManager().getPermission(permName);
-
-        PlayerState playerState = getPlayerState(player);
-
-        boolean hasPermissionAttachment = player.isPermissionSet(permName) && player.hasPermission(permName);
-
         // Check if the player is missing any state or changed worlds/regions
-        if (!force) {
-            force = perm == null || 
-                    playerState == null ||
-                    !hasPermissionAttachment ||
-                    !regions.equals(playerState.getRegions()) ||
-                    !location.getWorld().getName().equals(playerState.getWorld());
-        }
-
         // No need to update yet (most likely called by movement-based event)
-        if (!force) return false;
+        if (!force && !isUpdateNeeded(player, location.getWorld().getName(), regions)) return false;
 
         debug(this, "Updating permissions for %s", player.getName());
         debug(this, "  location = %s", location);
         debug(this, "  regions = %s", regions);
 
         // Resolve effective permissions
-        final String world = location.getWorld().getName().toLowerCase();
-        ResolverResult resolverResult = getRetryingTransactionStrategy().execute(new TransactionCallback<ResolverResult>() {
+        ResolverResult resolverResult = resolvePlayer(player.getUniqueId(), location.getWorld().getName().toLowerCase(), regions);
+
+        return applyBukkitPermissions(player, location.getWorld().getName(), regions, resolverResult, eventCause);
+    }
+
+    // Check if the player is missing any state or changed worlds/regions
+    private boolean isUpdateNeeded(Player player, String world, Set<String> regions) {
+        final String permName = DYNAMIC_PERMISSION_PREFIX + player.getUniqueId().toString();
+        PlayerState playerState = getPlayerState(player);
+        return Bukkit.getPluginManager().getPermission(permName) == null ||
+                playerState == null ||
+                !(player.isPermissionSet(permName) && player.hasPermission(permName)) ||
+                !regions.equals(playerState.getRegions()) ||
+                !world.equals(playerState.getWorld());
+    }
+
+    // Resolve a player's effective permissions. Safe to call from any thread.
+    private ResolverResult resolvePlayer(final UUID uuid, final String world, final Set<String> regions) {
+        return getRetryingTransactionStrategy().execute(new TransactionCallback<ResolverResult>() {
             @Override
             public ResolverResult doInTransaction() throws Exception {
 //                fakeFailureChance();
-                return getResolver().resolvePlayer(player.getUniqueId(), world, regions);
+                return getResolver().resolvePlayer(uuid, world, regions);
             }
         }, true);
+    }
+
+    // Update the player's dynamic permission, PlayerState, and attachment
+    // with freshly-resolved permissions. Must be called on the main thread.
+    // Returns true only if the player's permissions or groups actually changed.
+    private boolean applyBukkitPermissions(Player player, String world, Set<String> regions, ResolverResult resolverResult, RefreshCause eventCause) {
+        if (eventCause == RefreshCause.MOVEMENT)
+            movementRefreshScheduler.applied();
+
+        // Fetch existing state
+        final String permName = DYNAMIC_PERMISSION_PREFIX + player.getUniqueId().toString();
+        Permission perm = Bukkit.getPluginManager().getPermission(permName);
+
+        PlayerState playerState = getPlayerState(player);
+
+        boolean hasPermissionAttachment = player.isPermissionSet(permName) && player.hasPermission(permName);
 
         debug(this, "(Existing Permission: %s, PlayerState: %s, PermissionAttachment: %s)", perm != null, playerState != null, hasPermissionAttachment);
 
+        boolean changed = playerState == null || !hasPermissionAttachment ||
+                !playerState.getGroups().equals(lowercase(resolverResult.getGroups()));
+
+        // If possible, the player's permission simply refers to a layer shared
+        // by all players with the same assigned groups & location, followed by
+        // player-specific permissions.
+        Map<String, Boolean> permissions = resolverResult.getPermissions();
+        SharedPermission oldSharedPermission = playerState != null ? playerState.getSharedPermission() : null;
+        SharedPermission sharedPermission = null;
+        if (sharedPermissionNodes && resolverResult.getGroupPermissions() != null) {
+            sharedPermission = updateSharedPermission(new SharedPermissionKey(resolverResult.getAssignedGroups(), world.toLowerCase(), regions), resolverResult.getGroupPermissions());
+            if (sharedPermission != oldSharedPermission || sharedPermission.revision != playerState.getSharedPermissionRevision())
+                changed = true;
+
+            permissions = new LinkedHashMap<>();
+            permissions.put(sharedPermission.permission.getName(), Boolean.TRUE);
+            permissions.putAll(resolverResult.getPlayerPermissions());
+        }
+        if (sharedPermission != oldSharedPermission && sharedPermission != null)
+            sharedPermission.refCount++;
+
         // Create dynamic permission to hold all permissions this player should have at this moment
         if (perm == null) {
             // NB This implicitly calls recalculatePermissibles(). However, since it has not been
             // added yet, permissibles will not pick up its children.
-            perm = new Permission(permName, PermissionDefault.FALSE, resolverResult.getPermissions());
+            perm = new Permission(permName, PermissionDefault.FALSE, permissions);
             Bukkit.getPluginManager().addPermission(perm);
+            changed = true;
+        }
+        else if (updateChildren(perm.getChildren(), permissions)) {
+            // If player already has an attachment, then it will recalculate here.
+            // Otherwise subscribers will be empty and nothing really happens. The
+            // recalculation will then occur when the attachment is added below.
+            perm.recalculatePermissibles();
+            changed = true;
         }
         else {
-            perm.getChildren().clear();
-            perm.getChildren().putAll(resolverResult.getPermissions());
+            debug(this, "(Permissions unchanged)");
         }
-        // If player already has an attachment, then it will recalculate here.
-        // Otherwise subscribers will be empty and nothing really happens. The
-        // recalculation will then occur when the attachment is added below.
-        perm.recalculatePermissibles();
 
         if (playerState != null) {
             // Update values
             playerState.setRegions(regions);
-            playerState.setWorld(location.getWorld().getName());
+            playerState.setWorld(world);
             playerState.setGroups(resolverResult.getGroups());
         }
         else {
             // Create brand new PlayerState
-            playerState = new PlayerState(regions, location.getWorld().getName(), resolverResult.getGroups());
+            playerState = new PlayerState(regions, world, resolverResult.getGroups());
             player.setMetadata(PLAYER_METADATA_KEY, new FixedMetadataValue(this, playerState));
         }
+        playerState.setSharedPermission(sharedPermission);
         
         // Finally, create attachment if missing
         if (!hasPermissionAttachment) {
             player.addAttachment(this, perm.getName(), true);
         }
 
+        // No longer referenced by this player
+        if (oldSharedPermission != null && oldSharedPermission != sharedPermission)
+            releaseSharedPermission(oldSharedPermission);
+
+        return changed;
+    }
+
+    // Find or create the shared layer for the given key, bringing its
+    // permissions up to date. Subscribers (i.e. every player referencing it)
+    // are recalculated if its permissions changed.
+    private SharedPermission updateSharedPermission(SharedPermissionKey key, Map<String, Boolean> permissions) {
+        SharedPermission sharedPermission = sharedPermissions.get(key);
+        if (sharedPermission == null) {
+            Permission perm = new Permission(SHARED_PERMISSION_PREFIX + (++sharedPermissionCounter), PermissionDefault.FALSE, permissions);
+            Bukkit.getPluginManager().addPermission(perm);
+            sharedPermission = new SharedPermission(perm);
+            sharedPermissions.put(key, sharedPermission);
+            debug(this, "Created shared permission %s for %s", perm.getName(), key);
+        }
+        else if (updateChildren(sharedPermission.permission.getChildren(), permissions)) {
+            sharedPermission.permission.recalculatePermissibles();
+            sharedPermission.revision++;
+            debug(this, "Updated shared permission %s", sharedPermission.permission.getName());
+        }
+        return sharedPermission;
+    }
+
+    // Drop a reference to a shared layer, removing it once unreferenced
+    private void releaseSharedPermission(SharedPermission sharedPermission) {
+        if (--sharedPermission.refCount <= 0) {
+            for (Iterator<SharedPermission> i = sharedPermissions.values().iterator(); i.hasNext();) {
+                if (i.next() == sharedPermission) {
+                    i.remove();
+                    break;
+                }
+            }
+            Bukkit.getPluginManager().removePermission(sharedPermission.permission);
+            debug(this, "Removed shared permission %s", sharedPermission.permission.getName());
+        }
+    }
+
+    // Bring a dynamic permission's children up to date with as few changes as
+    // possible. Returns true if anything changed.
+    static boolean updateChildren(Map<String, Boolean> children, Map<String, Boolean> permissions) {
+        // Order is significant (later children override the descendants of
+        // earlier ones), so additions may only be appended if no existing
+        // child comes after them, and retained children must keep their
+        // relative order (e.g. group nodes swapped by a priority change).
+        boolean inOrder = true;
+        boolean seenAddition = false;
+        Iterator<String> retained = children.keySet().iterator();
+        for (String permission : permissions.keySet()) {
+            if (!children.containsKey(permission)) {
+                seenAddition = true;
+                continue;
+            }
+            if (seenAddition) {
+                inOrder = false;
+                break;
+            }
+
+            // Must be the next existing child that is kept
+            String next = null;
+            while (retained.hasNext()) {
+                String child = retained.next();
+                if (permissions.containsKey(child)) {
+                    next = child;
+                    break;
+                }
+            }
+            if (!permission.equals(next)) {
+                inOrder = false;
+                break;
+            }
+        }
+
+        // NB Map equality ignores order
+        if (inOrder && children.equals(permissions)) return false;
+
+        if (!inOrder) {
+            children.clear();
+            children.putAll(permissions);
+            return true;
+        }
+
+        // Removals and value changes keep the position of everything else
+        children.keySet().retainAll(permissions.keySet());
+        for (Map.Entry<String, Boolean> me : permissions.entrySet()) {
+            if (!me.getValue().equals(children.get(me.getKey())))
+                children.put(me.getKey(), me.getValue());
+        }
         return true;
     }
 
+    // Lowercase copy of a set of names
+    private static Set<String> lowercase(Set<String> names) {
+        Set<String> result = new HashSet<>(names.size());
+        for (String name : names) {
+            result.add(name.toLowerCase());
+        }
+        return result;
+    }
+
     /**
      * Returns names of regions that contain the location
      * 
@@ -981,10 +1413,16 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     @Override
     public boolean refreshAffectedPlayers(String groupName) {
         groupName = groupName.toLowerCase();
+
+        // The group itself and everything inheriting from it
+        Set<String> affectedGroups = new HashSet<>();
+        affectedGroups.add(groupName);
+        affectedGroups.addAll(getPermissionService().getDescendants(groupName));
+
         Set<UUID> toRefresh = new HashSet<>();
         for (Player player : Bukkit.getOnlinePlayers()) {
             PlayerState playerState = getPlayerState(player);
-            if (playerState == null || playerState.getGroups().contains(groupName)) {
+            if (playerState == null || !Collections.disjoint(playerState.getGroups(), affectedGroups)) {
                 toRefresh.add(player.getUniqueId());
             }
         }
@@ -999,6 +1437,50 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         return true;
     }
 
+    /**
+     * Refresh all players affected by storage refreshes since the last call.
+     * Falls back to refreshing everyone if changes aren't being tracked.
+     */
+    @Override
+    public void refreshChangedPlayers() {
+        if (!trackingChanges) {
+            invalidateMetadataCache();
+            refreshPlayers();
+            return;
+        }
+
+        Set<String> affectedGroups;
+        Set<UUID> affectedPlayers;
+        synchronized (changedGroups) {
+            affectedGroups = new HashSet<>(changedGroups);
+            affectedPlayers = new HashSet<>(changedPlayers);
+            changedGroups.clear();
+            changedPlayers.clear();
+        }
+
+        for (String groupName : affectedGroups) {
+            invalidateMetadataCache(groupName, null, true);
+        }
+        for (UUID uuid : affectedPlayers) {
+            invalidateMetadataCache(uuid.toString(), uuid, false);
+        }
+
+        Set<UUID> toRefresh = new HashSet<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            PlayerState playerState = getPlayerState(player);
+            if (playerState == null || affectedPlayers.contains(player.getUniqueId()) || !Collections.disjoint(playerState.getGroups(), affectedGroups)) {
+                toRefresh.add(player.getUniqueId());
+            }
+        }
+
+        if (toRefresh.isEmpty())
+            return; // Nothing to do
+
+        if (getLogger().isLoggable(Level.CONFIG))
+            debug(this, "Refreshing changed players: %s", ToHStringUtils.delimitedString(", ", toRefresh));
+        refreshTask.start(toRefresh);
+    }
+
     /**
      * Retrieve the configured default track.
      * 
@@ -1220,6 +1702,14 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
         // FIXME currently hidden option
         refreshTask.setDelay(config.getInt("bulk-refresh-delay", DEFAULT_BULK_REFRESH_DELAY));
+        refreshTask.setBudget(config.getInt("bulk-refresh-budget", DEFAULT_BULK_REFRESH_BUDGET));
+        resolverThreads = config.getInt("resolver-threads", DEFAULT_RESOLVER_THREADS);
+        movementRefreshScheduler.setInterval(config.getInt("movement-refresh-interval", DEFAULT_MOVEMENT_REFRESH_INTERVAL));
+        sharedPermissionNodes = config.getBoolean("shared-permission-nodes", DEFAULT_SHARED_PERMISSION_NODES);
+        metadataCacheSize = config.getInt("metadata-cache-size", DEFAULT_METADATA_CACHE_SIZE);
+        regionCacheCellSize = config.getInt("region-cache-cell-size", DEFAULT_REGION_CACHE_CELL_SIZE);
+        regionCacheTtl = config.getInt("region-cache-ttl", DEFAULT_REGION_CACHE_TTL);
+        regionCacheSize = config.getInt("region-cache-size", DEFAULT_REGION_CACHE_SIZE);
         autoRefreshInterval = config.getInt("auto-refresh-interval", DEFAULT_AUTO_REFRESH_INTERVAL);
         autoRefreshForce = config.getBoolean("auto-refresh-force", DEFAULT_AUTO_REFRESH_FORCE);
         nativeVaultBridges = config.getBoolean("native-vault-bridges", DEFAULT_NATIVE_VAULT_BRIDGES);
@@ -1227,14 +1717,15 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         vaultMetadataIncludesGroup = config.getBoolean("vault-metadata-includes-group", DEFAULT_VAULT_METADATA_INCLUDES_GROUP);
         vaultGroupTestUsesAssignedOnly = config.getBoolean("vault-group-test-uses-assigned-only", DEFAULT_VAULT_GROUP_TEST_USES_ASSIGNED_ONLY);
         vaultGetGroupsUsesAssignedOnly = config.getBoolean("vault-get-groups-uses-assigned-only", DEFAULT_VAULT_GET_GROUPS_USES_ASSIGNED_ONLY);
-        vaultPlayerPrefixFormat = config.getString("vault-player-prefix-format", "");
-        vaultPlayerSuffixFormat = config.getString("vault-player-suffix-format", "");
+        vaultPlayerPrefixFormat = compilePlayerPrefixFormat("vault-player-prefix-format", config.getString("vault-player-prefix-format", ""));
+        vaultPlayerSuffixFormat = compilePlayerPrefixFormat("vault-player-suffix-format", config.getString("vault-player-suffix-format", ""));
         logVaultChanges = config.getBoolean("log-vault-changes", DEFAULT_LOG_VAULT_CHANGES);
         inheritedMetadata = config.getBoolean("inherited-metadata", DEFAULT_INHERITED_METADATA);
         serviceMetadataPrefixHack = config.getBoolean("service-metadata-prefix-hack", DEFAULT_SERVICE_METADATA_PREFIX_HACK);
         // FIXME More hidden options
         searchBatchSize = config.getInt("search-batch-size", DEFAULT_SEARCH_BATCH_SIZE);
         searchDelay = config.getInt("search-delay", DEFAULT_SEARCH_DELAY);
+        searchThreads = config.getInt("search-threads", DEFAULT_SEARCH_THREADS);
         // FIXME UUID options, all hidden for now
         uuidResolverCacheSize = config.getInt("uuid-cache-size", DEFAULT_UUID_CACHE_SIZE);
         uuidResolverCacheTtl = config.getLong("uuid-cache-ttl", DEFAULT_UUID_CACHE_TTL);
@@ -1273,6 +1764,19 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         storageStrategyClassName = config.getString("custom-storage-strategy");
     }
 
+    // Compile a custom prefix/suffix format. Returns null if unset or invalid.
+    private PlayerPrefixFormat compilePlayerPrefixFormat(String option, String format) {
+        if (format == null || format.isEmpty())
+            return null;
+        try {
+            return new PlayerPrefixFormat(format);
+        }
+        catch (IllegalArgumentException e) {
+            warn(this, "Ignoring %s: %s", option, e.getMessage());
+            return null;
+        }
+    }
+
     private void configureWorldMirrors() {
         getResolver().clearWorldAliases();
         ConfigurationSection mirrors = config.getConfigurationSection("mirrors");
@@ -1307,6 +1811,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         config = ToHFileUtils.getConfig(this);
         readConfig();
         startAutoRefreshTask();
+        // Regions may have been redefined as well
+        if (regionStrategy instanceof CachingRegionStrategy)
+            ((CachingRegionStrategy)regionStrategy).invalidate();
         refresh(true, new Runnable() {
             @Override
             public void run() {
@@ -1344,8 +1851,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
                         public void run() {
                             // This is executed after the storage refresh is done.
                             log(plugin, "Refresh done.");
-                            invalidateMetadataCache();
-                            refreshPlayers();
+                            refreshChangedPlayers();
                             refreshExpirations();
                         }
                     });
@@ -1373,6 +1879,10 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
         private Set<String> groups;
 
+        private SharedPermission sharedPermission;
+
+        private long sharedPermissionRevision;
+
         public PlayerState(Set<String> regions, String world, Set<String> groups) {
             setRegions(regions);
             setWorld(world);
@@ -1410,6 +1920,107 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             this.groups = Collections.unmodifiableSet(this.groups);
         }
 
+        public SharedPermission getSharedPermission() {
+            return sharedPermission;
+        }
+
+        public long getSharedPermissionRevision() {
+            return sharedPermissionRevision;
+        }
+
+        // Also notes the layer's current revision
+        public void setSharedPermission(SharedPermission sharedPermission) {
+            this.sharedPermission = sharedPermission;
+            this.sharedPermissionRevision = sharedPermission != null ? sharedPermission.revision : 0L;
+        }
+
+    }
+
+    // A dynamic permission holding group permissions, shared by all players
+    // with the same assigned groups, world, and regions
+    private static class SharedPermission {
+
+        private final Permission permission;
+
+        private int refCount;
+
+        private long revision; // bumped whenever children change
+
+        public SharedPermission(Permission permission) {
+            this.permission = permission;
+        }
+
+    }
+
+    private static class SharedPermissionKey {
+
+        private final List<String> groups; // assigned, NB order is significant
+
+        private final String world;
+
+        private final List<String> regions; // NB order is significant
+
+        public SharedPermissionKey(List<String> groups, String world, Set<String> regions) {
+            this.groups = new ArrayList<>(groups.size());
+            for (String group : groups) {
+                this.groups.add(group.toLowerCase());
+            }
+            this.world = world;
+            this.regions = new ArrayList<>(regions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof SharedPermissionKey)) return false;
+            SharedPermissionKey o = (SharedPermissionKey)obj;
+            return groups.equals(o.groups) &&
+                    world.equals(o.world) &&
+                    regions.equals(o.regions);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + groups.hashCode();
+            result = 37 * result + world.hashCode();
+            result = 37 * result + regions.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s/%s/%s", groups, world, regions);
+        }
+
+    }
+
+    // An outstanding async resolution
+    private static class PendingResolution {
+        
+        private final UUID uuid;
+        
+        private final String world;
+        
+        private final Set<String> regions;
+        
+        private final RefreshCause cause;
+        
+        private final int attempts;
+        
+        public PendingResolution(UUID uuid, String world, Set<String> regions, RefreshCause cause, int attempts) {
+            this.uuid = uuid;
+            this.world = world;
+            this.regions = regions;
+            this.cause = cause;
+            this.attempts = attempts;
+        }
+
+        // A new request for the same world/regions
+        public PendingResolution retry() {
+            return new PendingResolution(uuid, world, regions, cause, attempts + 1);
+        }
+
     }
 
     @Override
@@ -1450,13 +2061,17 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         return searchDelay;
     }
 
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
     @Override
-    public String getVaultPlayerPrefixFormat() {
+    public PlayerPrefixFormat getVaultPlayerPrefixFormat() {
         return vaultPlayerPrefixFormat;
     }
 
     @Override
-    public String getVaultPlayerSuffixFormat() {
+    public PlayerPrefixFormat getVaultPlayerSuffixFormat() {
         return vaultPlayerSuffixFormat;
     }
 
@@ -1481,6 +2096,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         });
     }
 
+    @Override
+    public void preloadPlayer(UUID uuid) {
+        // Brings the player into memory if the storage strategy loads players on demand
+        getPermissionService().getEntity("ignored", uuid, false);
+    }
+
     @Override
     public boolean isServiceMetadataPrefixHack() {
         return serviceMetadataPrefixHack;
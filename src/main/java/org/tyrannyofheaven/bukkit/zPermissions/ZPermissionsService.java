@@ -85,6 +85,23 @@ public interface ZPermissionsService {
      */
     public Map<String, Boolean> getPlayerPermissions(String worldName, Set<String> regionNames, UUID uuid);
 
+    /**
+     * Determine the value of a single permission for a player in the given
+     * world and region set, i.e. its value in the map returned by
+     * {@link #getPlayerPermissions(String, Set, UUID)}. This is much cheaper
+     * than resolving all of the player's permissions.
+     * 
+     * <p>The same caveats apply: defaults and child permissions are
+     * <strong>not</strong> taken into account.
+     * 
+     * @param worldName the name of the target world. May be <code>null</code>.
+     * @param regionNames set of region names. May be <code>null</code>.
+     * @param uuid the player's UUID
+     * @param permission the permission
+     * @return the permission's value or <code>null</code> if not explicitly set
+     */
+    public Boolean getPlayerPermission(String worldName, Set<String> regionNames, UUID uuid, String permission);
+
     /**
      * Retrieve groups which a player is explicitly assigned. The groups are
      * returned in priority order, with the highest priority first. (This can
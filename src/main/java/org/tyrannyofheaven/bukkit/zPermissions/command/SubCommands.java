@@ -311,8 +311,7 @@ public class SubCommands {
         core.refresh(!conditional, new Runnable() {
             @Override
             public void run() {
-                core.invalidateMetadataCache();
-                core.refreshPlayers();
+                core.refreshChangedPlayers();
                 core.refreshExpirations();
             }
         });
@@ -791,11 +790,23 @@ public class SubCommands {
         SearchTask searchTask = new SearchTask(plugin, storageStrategy, resolver, permission, players, groups, effective, worldName, regionNames, showUuid);
         searchTask.setBatchSize(config.getSearchBatchSize());
         searchTask.setDelay(config.getSearchDelay());
+        searchTask.setThreads(config.getSearchThreads());
 
         sendMessage(sender, colorize("{YELLOW}Starting search (#%d) for {GOLD}%s{YELLOW}..."), searchTask.getSearchId(), permission);
 
         // Kick off search
-        Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, searchTask);
+        searchTask.start();
+    }
+
+    @Command(value="search-cancel", description="Cancel a running search")
+    @Require("zpermissions.search")
+    public void searchCancel(CommandSender sender, @Option("id") int searchId) {
+        if (SearchTask.cancel(searchId)) {
+            sendMessage(sender, colorize("{YELLOW}Cancelling search (#%d)..."), searchId);
+        }
+        else {
+            sendMessage(sender, colorize("{RED}No such search."));
+        }
     }
 
     @Command(value="uuid-cache", description="UUID cache control")
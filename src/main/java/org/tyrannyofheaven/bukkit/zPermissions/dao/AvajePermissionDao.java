@@ -15,6 +15,7 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.canonicalizeUuid;
 import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getEntity;
 import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getRegion;
 import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getWorld;
@@ -23,10 +24,17 @@ import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionServ
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,21 +42,39 @@ import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.Mem
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.JournalEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 
 import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.QueryResultVisitor;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.Update;
 
 /**
  * Avaje PermissionDao implementation. All database operations are handed off
  * to the given Executor.
  * 
+ * <p>Operations are queued as they are made and written in groups: each write
+ * transaction writes everything queued up to that point (including
+ * operations of transactions that have yet to run), dropping operations
+ * superseded by a later one on the same row, using JDBC batching.
+ * 
+ * <p>In-memory objects carry the database ids of their rows (assigned on
+ * load and once a write has committed), so rows are addressed by primary key
+ * rather than located by name wherever possible.
+ * 
  * @author zerothangel
  */
 public class AvajePermissionDao implements PermissionDao {
 
+    // Maximum number of changed entities to reload individually
+    // Package-private for unit testing
+    static final int MAX_JOURNAL_CHANGES = 500;
+
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     private final InMemoryPermissionService permissionService;
@@ -57,9 +83,60 @@ public class AvajePermissionDao implements PermissionDao {
 
     private final Executor executor;
 
+    // Entities touched by the current write transaction (lowercase names)
+    private final Set<String> journalGroups = new HashSet<>();
+
+    private final Set<String> journalPlayers = new HashSet<>();
+
+    // If true, load() only loads groups and players that are already resident
+    private volatile boolean lazyPlayerLoading;
+
+    // Operations waiting to be written, in the order they were made
+    private final Queue<PendingOperation> pendingOperations = new ConcurrentLinkedQueue<>();
+
+    // Operations written by the current write transaction. Only touched by
+    // the writer thread. Rewritten if the transaction is retried.
+    private final List<PendingOperation> currentBatch = new ArrayList<>();
+
+    private boolean currentBatchWritten = true;
+
+    // Copy database ids of rows written by the current write transaction to
+    // their in-memory objects. Run once it is known to have committed.
+    private final List<Runnable> idAssignments = new ArrayList<>();
+
+    // Objects given ids by the above, whose published views must be rebuilt
+    private final Set<PermissionEntity> assignedEntities = new HashSet<>();
+
+    private final Set<Membership> assignedMemberships = new HashSet<>();
+
+    private boolean committing;
+
+    // False if operations are written immediately (i.e. there is no writer thread)
+    private final boolean writeBehind;
+
+    private volatile int batchSize = 100;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong operationCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong totalBatchLatency = new AtomicLong(); // nanoseconds
+
+    private volatile int lastBatchSize;
+
     public AvajePermissionDao(InMemoryPermissionService permissionService, EbeanServer ebeanServer, Executor executor) {
         this.permissionService = permissionService;
         this.ebeanServer = ebeanServer;
+        this.writeBehind = executor != null;
         this.executor = executor != null ? executor : new Executor() {
             @Override
             public void execute(Runnable command) {
@@ -76,11 +153,337 @@ public class AvajePermissionDao implements PermissionDao {
         return executor;
     }
 
+    public void setLazyPlayerLoading(boolean lazyPlayerLoading) {
+        this.lazyPlayerLoading = lazyPlayerLoading;
+    }
+
+    /**
+     * Set the maximum number of statements sent in a single JDBC batch.
+     * 
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    // Queue an operation. Key identifies the row it writes, if any.
+    private void enqueue(String key, Runnable operation) {
+        pendingOperations.add(new PendingOperation(key, operation));
+        getExecutor().execute(flushTask);
+    }
+
+    // Write queued operations within the current transaction
+    private void flush() {
+        if (!currentBatchWritten) {
+            // Transaction is being retried
+            for (PendingOperation op : currentBatch) {
+                op.getOperation().run();
+            }
+            currentBatchWritten = true;
+        }
+
+        List<PendingOperation> drained = new ArrayList<>();
+        PendingOperation op;
+        while ((op = pendingOperations.poll()) != null) {
+            drained.add(op);
+        }
+        if (drained.isEmpty())
+            return;
+
+        List<PendingOperation> batch = coalesce(drained);
+
+        if (writeBehind) {
+            Transaction transaction = getEbeanServer().currentTransaction();
+            if (transaction != null) {
+                transaction.setBatchMode(true);
+                transaction.setBatchSize(batchSize);
+                // Natural key lookups must see rows still queued in the batch
+                transaction.setBatchFlushOnQuery(true);
+            }
+        }
+        for (PendingOperation pending : batch) {
+            pending.getOperation().run();
+        }
+        if (writeBehind)
+            currentBatch.addAll(batch);
+        else {
+            // Already committed
+            assignIds();
+        }
+
+        long latency = System.nanoTime() - drained.get(0).getQueued();
+        batchCount.incrementAndGet();
+        operationCount.addAndGet(drained.size());
+        coalescedCount.addAndGet(drained.size() - batch.size());
+        totalBatchLatency.addAndGet(latency);
+        lastBatchSize = drained.size();
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE, String.format("Writing %d operations (%d coalesced, queued %d ms)", batch.size(), drained.size() - batch.size(), TimeUnit.NANOSECONDS.toMillis(latency)));
+    }
+
+    // Row counts are only meaningful once a statement has actually been
+    // executed, so flush the JDBC batch and run this one on its own
+    private int executeNow(Update<?> update) {
+        Transaction transaction = writeBehind ? getEbeanServer().currentTransaction() : null;
+        if (transaction == null)
+            return update.execute();
+
+        transaction.flushBatch();
+        transaction.setBatchMode(false);
+        try {
+            return update.execute();
+        }
+        finally {
+            transaction.setBatchMode(true);
+        }
+    }
+
+    // Drop operations superseded by a later one on the same row. Operations
+    // without a key (creating/deleting entities, regions, worlds, etc.) may
+    // depend on the rows written before them, so nothing is coalesced across
+    // one. Remaining operations keep their original order.
+    private static List<PendingOperation> coalesce(List<PendingOperation> operations) {
+        List<PendingOperation> result = new ArrayList<>(operations.size());
+        Map<String, Integer> lastIndex = new HashMap<>();
+        int start = 0;
+        for (int i = 0; i <= operations.size(); i++) {
+            String key = i < operations.size() ? operations.get(i).getKey() : null;
+            if (key != null) {
+                lastIndex.put(key, i);
+                continue;
+            }
+
+            // End of a run of keyed operations
+            for (int j = start; j < i; j++) {
+                String runKey = operations.get(j).getKey();
+                if (lastIndex.get(runKey) == j)
+                    result.add(operations.get(j));
+            }
+            lastIndex.clear();
+
+            if (i < operations.size())
+                result.add(operations.get(i));
+            start = i + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Called by the writer thread at the start of each write transaction
+     * attempt.
+     */
+    public void beginWrite() {
+        currentBatchWritten = currentBatch.isEmpty();
+        idAssignments.clear(); // rewritten along with the batch
+        committing = false;
+    }
+
+    /**
+     * Called by the writer thread just before a write transaction commits.
+     */
+    public void commitWrite() {
+        committing = true;
+    }
+
+    /**
+     * Called by the writer thread once a write transaction has committed
+     * (or has finally failed).
+     * 
+     * @return false if operations were written but the transaction never got
+     *     as far as committing them, i.e. they were lost
+     */
+    public boolean endWrite() {
+        boolean written = committing || currentBatch.isEmpty();
+        // Generated ids are only known once the JDBC batch has been executed
+        if (committing)
+            assignIds();
+        idAssignments.clear();
+        committing = false;
+        currentBatch.clear();
+        currentBatchWritten = true;
+        return written;
+    }
+
+    private void assignIds() {
+        synchronized (permissionService) {
+            for (Runnable assignment : idAssignments) {
+                assignment.run();
+            }
+            if (!assignedEntities.isEmpty() || !assignedMemberships.isEmpty())
+                permissionService.republish(assignedEntities, assignedMemberships, writeBehind); // otherwise within the write
+        }
+        idAssignments.clear();
+        assignedEntities.clear();
+        assignedMemberships.clear();
+    }
+
+    /**
+     * Returns true if there are operations waiting to be written.
+     */
+    public boolean hasPendingOperations() {
+        return !pendingOperations.isEmpty();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getOperationCount() {
+        return operationCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    // Average milliseconds between an operation being queued and its batch being written
+    public long getAverageBatchLatency() {
+        long batches = batchCount.get();
+        return batches == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(totalBatchLatency.get() / batches);
+    }
+
+    private static String entryKey(String name, boolean group, String worldName, String regionName, String permission) {
+        return String.format("entry/%s/%s/%s/%s/%s", group ? "g" : "p", name.toLowerCase(),
+                worldName == null ? "" : worldName.toLowerCase(), regionName == null ? "" : regionName.toLowerCase(), permission.toLowerCase());
+    }
+
+    private static String membershipKey(String groupName, String member) {
+        return String.format("membership/%s/%s", groupName.toLowerCase(), member.toLowerCase());
+    }
+
+    private static String metadataKey(String name, boolean group, String metadataName) {
+        return String.format("metadata/%s/%s/%s", group ? "g" : "p", name.toLowerCase(), metadataName.toLowerCase());
+    }
+
+    // Reference to an entity's row, by id if known, otherwise by name. In-memory
+    // objects belong to the permission service, so ids are read and assigned
+    // under its lock.
+    private PermissionEntity findEntity(PermissionEntity entity) {
+        Long id;
+        synchronized (permissionService) {
+            id = entity.getId();
+        }
+        if (id != null)
+            return getEbeanServer().getReference(PermissionEntity.class, id);
+
+        PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
+                .eq("name", entity.getName().toLowerCase())
+                .eq("group", entity.isGroup())
+                .findUnique();
+        if (dbEntity != null)
+            assignId(entity, dbEntity);
+        return dbEntity;
+    }
+
+    private PermissionRegion findRegion(PermissionRegion region) {
+        Long id;
+        synchronized (permissionService) {
+            id = region.getId();
+        }
+        if (id != null)
+            return getEbeanServer().getReference(PermissionRegion.class, id);
+
+        PermissionRegion dbRegion = getEbeanServer().find(PermissionRegion.class).where()
+                .eq("name", region.getName().toLowerCase())
+                .findUnique();
+        if (dbRegion != null)
+            assignId(region, dbRegion);
+        return dbRegion;
+    }
+
+    private PermissionWorld findWorld(PermissionWorld world) {
+        Long id;
+        synchronized (permissionService) {
+            id = world.getId();
+        }
+        if (id != null)
+            return getEbeanServer().getReference(PermissionWorld.class, id);
+
+        PermissionWorld dbWorld = getEbeanServer().find(PermissionWorld.class).where()
+                .eq("name", world.getName().toLowerCase())
+                .findUnique();
+        if (dbWorld != null)
+            assignId(world, dbWorld);
+        return dbWorld;
+    }
+
+    private void assignId(final PermissionEntity entity, final PermissionEntity dbEntity) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbEntity.getId() != null) {
+                    entity.setId(dbEntity.getId());
+                    assignedEntities.add(entity);
+                }
+            }
+        });
+    }
+
+    private void assignId(final PermissionRegion region, final PermissionRegion dbRegion) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbRegion.getId() != null)
+                    region.setId(dbRegion.getId());
+            }
+        });
+    }
+
+    private void assignId(final PermissionWorld world, final PermissionWorld dbWorld) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbWorld.getId() != null)
+                    world.setId(dbWorld.getId());
+            }
+        });
+    }
+
+    private void assignId(final Entry entry, final Entry dbEntry) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbEntry.getId() != null) {
+                    entry.setId(dbEntry.getId());
+                    assignedEntities.add(entry.getEntity());
+                }
+            }
+        });
+    }
+
+    private void assignId(final Membership membership, final Membership dbMembership) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbMembership.getId() != null) {
+                    membership.setId(dbMembership.getId());
+                    assignedMemberships.add(membership);
+                }
+            }
+        });
+    }
+
+    private void assignId(final EntityMetadata metadata, final EntityMetadata dbMetadata) {
+        idAssignments.add(new Runnable() {
+            @Override
+            public void run() {
+                if (dbMetadata.getId() != null) {
+                    metadata.setId(dbMetadata.getId());
+                    assignedEntities.add(metadata.getEntity());
+                }
+            }
+        });
+    }
+
     @Override
-    public void createRegion(PermissionRegion region) {
+    public void createRegion(final PermissionRegion region) {
         final String name = region.getName().toLowerCase();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
                 PermissionRegion dbRegion = getEbeanServer().find(PermissionRegion.class).where()
@@ -91,15 +494,16 @@ public class AvajePermissionDao implements PermissionDao {
                     dbRegion.setName(name);
                     getEbeanServer().save(dbRegion);
                 }
+                assignId(region, dbRegion);
             }
         });
     }
 
     @Override
-    public void createWorld(PermissionWorld world) {
+    public void createWorld(final PermissionWorld world) {
         final String name = world.getName().toLowerCase();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
                 PermissionWorld dbWorld = getEbeanServer().find(PermissionWorld.class).where()
@@ -110,19 +514,22 @@ public class AvajePermissionDao implements PermissionDao {
                     dbWorld.setName(name);
                     getEbeanServer().save(dbWorld);
                 }
+                assignId(world, dbWorld);
             }
         });
     }
 
     @Override
-    public void createEntity(PermissionEntity entity) {
+    public void createEntity(final PermissionEntity entity) {
         final String name = entity.getName();
         final String displayName = entity.getDisplayName();
         final boolean group = entity.isGroup();
 
-        executor.execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
+                journal(name, group);
+
                 final String lname = name.toLowerCase();
                 PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
                         .eq("name", lname)
@@ -136,12 +543,13 @@ public class AvajePermissionDao implements PermissionDao {
                     // NB assumes name/group/displayName are only attributes that need saving
                     getEbeanServer().save(dbEntity);
                 }
+                assignId(entity, dbEntity);
             }
         });
     }
 
     @Override
-    public void createOrUpdateEntry(Entry entry) {
+    public void createOrUpdateEntry(final Entry entry) {
         final String name = entry.getEntity().getName();
         final boolean group = entry.getEntity().isGroup();
         final String regionName = entry.getRegion() == null ? null : entry.getRegion().getName();
@@ -149,38 +557,48 @@ public class AvajePermissionDao implements PermissionDao {
         final String permission = entry.getPermission().toLowerCase();
         final boolean value = entry.isValue();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(entryKey(name, group, worldName, regionName, permission), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent objects
-                PermissionEntity entity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", group)
-                        .findUnique();
+                journal(name, group);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = entry.getId();
+                }
+
+                // Known row, update it in place
+                if (id != null && executeNow(getEbeanServer().createUpdate(Entry.class, "update Entry set value=:value where id=:id and permission=:permission")
+                        .setParameter("id", id)
+                        .setParameter("permission", permission)
+                        .setParameter("value", value)) > 0) {
+                    return;
+                }
+
+                // Otherwise, locate dependent objects
+                PermissionEntity entity = findEntity(entry.getEntity());
                 if (entity == null) {
                     entity = inconsistentEntity(name, group);
                 }
 
                 PermissionRegion region = null;
                 if (regionName != null) {
-                    region = getEbeanServer().find(PermissionRegion.class).where()
-                            .eq("name", regionName.toLowerCase())
-                            .findUnique();
+                    region = findRegion(entry.getRegion());
                     if (region == null) {
                         region = inconsistentRegion(regionName);
                     }
                 }
-                
+
                 PermissionWorld world = null;
                 if (worldName != null) {
-                    world = getEbeanServer().find(PermissionWorld.class).where()
-                            .eq("name", worldName)
-                            .findUnique();
+                    world = findWorld(entry.getWorld());
                     if (world == null) {
                         world = inconsistentWorld(worldName);
                     }
                 }
-                
+
+                // Without a (valid) id, the row may still have been written
+                // earlier in this transaction or by another server
                 Entry dbEntry = getEbeanServer().find(Entry.class).where()
                         .eq("entity", entity)
                         .eq("region", region)
@@ -194,29 +612,39 @@ public class AvajePermissionDao implements PermissionDao {
                     dbEntry.setWorld(world);
                     dbEntry.setPermission(permission);
                 }
-                
+
                 dbEntry.setValue(value);
                 getEbeanServer().save(dbEntry);
+                assignId(entry, dbEntry);
             }
         });
     }
 
     @Override
-    public void deleteEntry(Entry entry) {
+    public void deleteEntry(final Entry entry) {
         final String name = entry.getEntity().getName();
         final boolean group = entry.getEntity().isGroup();
         final String regionName = entry.getRegion() == null ? null : entry.getRegion().getName();
         final String worldName = entry.getWorld() == null ? null : entry.getWorld().getName();
         final String permission = entry.getPermission();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(entryKey(name, group, worldName, regionName, permission), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent objects
-                PermissionEntity entity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", group)
-                        .findUnique();
+                journal(name, group);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = entry.getId();
+                }
+
+                if (id != null) {
+                    getEbeanServer().delete(Entry.class, id);
+                    return;
+                }
+
+                // Never written with a known id, locate by name
+                PermissionEntity entity = findEntity(entry.getEntity());
                 if (entity == null) {
                     databaseInconsistency();
                     return;
@@ -224,57 +652,63 @@ public class AvajePermissionDao implements PermissionDao {
 
                 PermissionRegion region = null;
                 if (regionName != null) {
-                    region = getEbeanServer().find(PermissionRegion.class).where()
-                            .eq("name", regionName)
-                            .findUnique();
+                    region = findRegion(entry.getRegion());
                     if (region == null) {
                         databaseInconsistency();
                         return;
                     }
                 }
-                
+
                 PermissionWorld world = null;
                 if (worldName != null) {
-                    world = getEbeanServer().find(PermissionWorld.class).where()
-                            .eq("name", worldName)
-                            .findUnique();
+                    world = findWorld(entry.getWorld());
                     if (world == null) {
                         databaseInconsistency();
                         return;
                     }
                 }
-                
+
                 Entry dbEntry = getEbeanServer().find(Entry.class).where()
                         .eq("entity", entity)
                         .eq("region", region)
                         .eq("world", world)
                         .eq("permission", permission.toLowerCase())
                         .findUnique();
-                if (dbEntry == null) {
-                    databaseInconsistency();
-                    return;
+                if (dbEntry != null) {
+                    getEbeanServer().delete(dbEntry);
                 }
-
-                getEbeanServer().delete(dbEntry);
+                // Otherwise, it was never written (e.g. coalesced away)
             }
         });
     }
 
     @Override
-    public void createOrUpdateMembership(Membership membership) {
+    public void createOrUpdateMembership(final Membership membership) {
         final String name = membership.getGroup().getDisplayName();
         final String member = membership.getMember().toLowerCase();
         final String displayName = membership.getDisplayName();
         final Date expiration = membership.getExpiration();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(membershipKey(name, member), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent object
-                PermissionEntity group = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                journal(name, true);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = membership.getId();
+                }
+
+                // Known row, update it in place
+                if (id != null && executeNow(getEbeanServer().createUpdate(Membership.class, "update Membership set expiration=:expiration where id=:id and member=:member")
+                        .setParameter("id", id)
+                        .setParameter("member", member)
+                        .setParameter("expiration", expiration)) > 0) {
+                    return;
+                }
+
+                // Otherwise, locate dependent object
+                PermissionEntity group = findEntity(membership.getGroup());
                 if (group == null) {
                     group = inconsistentEntity(name, true);
                 }
@@ -291,22 +725,22 @@ public class AvajePermissionDao implements PermissionDao {
                 }
                 dbMembership.setExpiration(expiration);
                 getEbeanServer().save(dbMembership);
+                assignId(membership, dbMembership);
             }
         });
     }
 
     @Override
-    public void deleteEntity(PermissionEntity entity) {
+    public void deleteEntity(final PermissionEntity entity) {
         final String name = entity.getName();
         final boolean group = entity.isGroup();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
-                PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", group)
-                        .findUnique();
+                journal(name, group);
+
+                PermissionEntity dbEntity = findEntity(entity);
                 if (dbEntity == null) {
                     databaseInconsistency();
                     return;
@@ -335,18 +769,27 @@ public class AvajePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void deleteMembership(Membership membership) {
+    public void deleteMembership(final Membership membership) {
         final String name = membership.getGroup().getDisplayName();
         final String member = membership.getMember();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(membershipKey(name, member), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent object
-                PermissionEntity group = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                journal(name, true);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = membership.getId();
+                }
+
+                if (id != null) {
+                    getEbeanServer().delete(Membership.class, id);
+                    return;
+                }
+
+                // Never written with a known id, locate by name
+                PermissionEntity group = findEntity(membership.getGroup());
                 if (group == null) {
                     databaseInconsistency();
                     return;
@@ -356,39 +799,32 @@ public class AvajePermissionDao implements PermissionDao {
                         .eq("group", group)
                         .eq("member", member.toLowerCase())
                         .findUnique();
-                if (dbMembership == null) {
-                    databaseInconsistency();
-                    return;
+                if (dbMembership != null) {
+                    getEbeanServer().delete(dbMembership);
                 }
-                
-                getEbeanServer().delete(dbMembership);
             }
         });
     }
 
     @Override
-    public void setEntityParent(PermissionEntity entity, PermissionEntity parent) {
+    public void setEntityParent(final PermissionEntity entity, final PermissionEntity parent) {
         final String name = entity.getDisplayName();
         final String parentName = parent == null ? null : parent.getDisplayName();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
+                journal(name, true);
+
                 PermissionEntity dbParent = null;
-                if (parentName != null) {
-                    dbParent = getEbeanServer().find(PermissionEntity.class).where()
-                            .eq("name", parentName.toLowerCase())
-                            .eq("group", true)
-                            .findUnique();
+                if (parent != null) {
+                    dbParent = findEntity(parent);
                     if (dbParent == null) {
                         dbParent = inconsistentEntity(parentName, true);
                     }
                 }
                 
-                PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                PermissionEntity dbEntity = findEntity(entity);
                 if (dbEntity == null) {
                     dbEntity = inconsistentEntity(name, true);
                 }
@@ -401,26 +837,24 @@ public class AvajePermissionDao implements PermissionDao {
 
     @Override
     public void createOrUpdateInheritance(Inheritance inheritance) {
-        final String childName = inheritance.getChild().getDisplayName();
-        final String parentName = inheritance.getParent().getDisplayName();
+        final PermissionEntity childEntity = inheritance.getChild();
+        final PermissionEntity parentEntity = inheritance.getParent();
+        final String childName = childEntity.getDisplayName();
+        final String parentName = parentEntity.getDisplayName();
         final int ordering = inheritance.getOrdering();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
+                journal(childName, true);
+
                 // Locate dependent objects
-                PermissionEntity child = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", childName.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                PermissionEntity child = findEntity(childEntity);
                 if (child == null) {
                     child = inconsistentEntity(childName, true);
                 }
 
-                PermissionEntity parent = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", parentName.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                PermissionEntity parent = findEntity(parentEntity);
                 if (parent == null) {
                     parent = inconsistentEntity(parentName, true);
                 }
@@ -442,26 +876,23 @@ public class AvajePermissionDao implements PermissionDao {
 
     @Override
     public void deleteInheritance(Inheritance inheritance) {
-        final String childName = inheritance.getChild().getDisplayName();
-        final String parentName = inheritance.getParent().getDisplayName();
+        final PermissionEntity childEntity = inheritance.getChild();
+        final PermissionEntity parentEntity = inheritance.getParent();
+        final String childName = childEntity.getDisplayName();
         
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
+                journal(childName, true);
+
                 // Locate dependent objects
-                PermissionEntity child = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", childName.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                PermissionEntity child = findEntity(childEntity);
                 if (child == null) {
                     databaseInconsistency();
                     return;
                 }
 
-                PermissionEntity parent = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", parentName.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                PermissionEntity parent = findEntity(parentEntity);
                 if (parent == null) {
                     databaseInconsistency();
                     return;
@@ -482,43 +913,43 @@ public class AvajePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void setEntityPriority(PermissionEntity entity, final int priority) {
+    public void setEntityPriority(final PermissionEntity entity, final int priority) {
         final String name = entity.getDisplayName();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
-                PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                journal(name, true);
+
+                PermissionEntity dbEntity = findEntity(entity);
                 if (dbEntity == null) {
-                    dbEntity = inconsistentEntity(name, true);
+                    // Recreate it, id may not be known until the batch is executed
+                    dbEntity = newInconsistentEntity(name, true);
+                    dbEntity.setPriority(priority);
+                    getEbeanServer().save(dbEntity);
+                    return;
                 }
 
-                dbEntity.setPriority(priority);
-                getEbeanServer().save(dbEntity);
+                getEbeanServer().createUpdate(PermissionEntity.class, "update PermissionEntity set priority=:priority where id=:id")
+                        .setParameter("id", dbEntity.getId())
+                        .setParameter("priority", priority)
+                        .execute();
             }
         });
     }
 
     @Override
     public void deleteRegions(Collection<PermissionRegion> regions) {
-        final Set<String> regionNames = new HashSet<>(regions.size());
-        for (PermissionRegion region : regions) {
-            regionNames.add(region.getName());
-        }
+        final List<PermissionRegion> regionList = new ArrayList<>(regions);
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
                 boolean inconsistent = false;
 
-                List<PermissionRegion> dbRegions = new ArrayList<>(regionNames.size());
-                for (String regionName : regionNames) {
-                    PermissionRegion dbRegion = getEbeanServer().find(PermissionRegion.class).where()
-                            .eq("name", regionName.toLowerCase())
-                            .findUnique();
+                List<PermissionRegion> dbRegions = new ArrayList<>(regionList.size());
+                for (PermissionRegion region : regionList) {
+                    PermissionRegion dbRegion = findRegion(region);
                     if (dbRegion == null)
                         inconsistent = true;
                     else
@@ -536,21 +967,16 @@ public class AvajePermissionDao implements PermissionDao {
 
     @Override
     public void deleteWorlds(Collection<PermissionWorld> worlds) {
-        final Set<String> worldNames = new HashSet<>(worlds.size());
-        for (PermissionWorld world : worlds) {
-            worldNames.add(world.getName());
-        }
+        final List<PermissionWorld> worldList = new ArrayList<>(worlds);
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
                 boolean inconsistent = false;
 
-                List<PermissionWorld> dbWorlds = new ArrayList<>(worldNames.size());
-                for (String worldName : worldNames) {
-                    PermissionWorld dbWorld = getEbeanServer().find(PermissionWorld.class).where()
-                            .eq("name", worldName.toLowerCase())
-                            .findUnique();
+                List<PermissionWorld> dbWorlds = new ArrayList<>(worldList.size());
+                for (PermissionWorld world : worldList) {
+                    PermissionWorld dbWorld = findWorld(world);
                     if (dbWorld == null)
                         inconsistent = true;
                     else
@@ -567,20 +993,38 @@ public class AvajePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void createOrUpdateMetadata(EntityMetadata metadata) {
+    public void createOrUpdateMetadata(final EntityMetadata metadata) {
         final String name = metadata.getEntity().getName();
         final boolean group = metadata.getEntity().isGroup();
         final String metadataName = metadata.getName().toLowerCase();
         final Object value = metadata.getValue();
-        
-        getExecutor().execute(new Runnable() {
+
+        enqueue(metadataKey(name, group, metadataName), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent objects
-                PermissionEntity entity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", group)
-                        .findUnique();
+                journal(name, group);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = metadata.getId();
+                }
+
+                EntityMetadata values = new EntityMetadata();
+                values.setValue(value);
+
+                // Known row, update it in place
+                if (id != null && executeNow(getEbeanServer().createUpdate(EntityMetadata.class, "update EntityMetadata set stringValue=:stringValue, integerValue=:integerValue, realValue=:realValue, booleanValue=:booleanValue where id=:id and name=:name")
+                        .setParameter("id", id)
+                        .setParameter("name", metadataName)
+                        .setParameter("stringValue", values.getStringValue())
+                        .setParameter("integerValue", values.getIntegerValue())
+                        .setParameter("realValue", values.getRealValue())
+                        .setParameter("booleanValue", values.getBooleanValue())) > 0) {
+                    return;
+                }
+
+                // Otherwise, locate dependent objects
+                PermissionEntity entity = findEntity(metadata.getEntity());
                 if (entity == null) {
                     entity = inconsistentEntity(name, group);
                 }
@@ -597,24 +1041,34 @@ public class AvajePermissionDao implements PermissionDao {
 
                 dbMetadata.setValue(value);
                 getEbeanServer().save(dbMetadata);
+                assignId(metadata, dbMetadata);
             }
         });
     }
 
     @Override
-    public void deleteMetadata(EntityMetadata metadata) {
+    public void deleteMetadata(final EntityMetadata metadata) {
         final String name = metadata.getEntity().getName();
         final boolean group = metadata.getEntity().isGroup();
         final String metadataName = metadata.getName();
-        
-        getExecutor().execute(new Runnable() {
+
+        enqueue(metadataKey(name, group, metadataName), new Runnable() {
             @Override
             public void run() {
-                // Locate dependent objects
-                PermissionEntity entity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", group)
-                        .findUnique();
+                journal(name, group);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = metadata.getId();
+                }
+
+                if (id != null) {
+                    getEbeanServer().delete(EntityMetadata.class, id);
+                    return;
+                }
+
+                // Never written with a known id, locate by name
+                PermissionEntity entity = findEntity(metadata.getEntity());
                 if (entity == null) {
                     databaseInconsistency();
                     return;
@@ -624,52 +1078,65 @@ public class AvajePermissionDao implements PermissionDao {
                         .eq("entity", entity)
                         .eq("name", metadataName.toLowerCase())
                         .findUnique();
-                if (dbMetadata == null) {
-                    databaseInconsistency();
-                    return;
+                if (dbMetadata != null) {
+                    getEbeanServer().delete(dbMetadata);
                 }
-
-                getEbeanServer().delete(dbMetadata);
             }
         });
     }
 
     @Override
-    public void updateDisplayName(PermissionEntity entity) {
+    public void updateDisplayName(final PermissionEntity entity) {
         final String name = entity.getName();
         final String displayName = entity.getDisplayName();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
-                PermissionEntity dbEntity = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", false)
-                        .findUnique();
+                journal(name, false);
+
+                PermissionEntity dbEntity = findEntity(entity);
                 if (dbEntity == null) {
-                    dbEntity = inconsistentEntity(name, false);
+                    // Recreate it, id may not be known until the batch is executed
+                    dbEntity = newInconsistentEntity(name, false);
+                    dbEntity.setDisplayName(displayName);
+                    getEbeanServer().save(dbEntity);
+                    return;
                 }
 
-                dbEntity.setDisplayName(displayName);
-                getEbeanServer().save(dbEntity);
+                getEbeanServer().createUpdate(PermissionEntity.class, "update PermissionEntity set displayName=:displayName where id=:id")
+                        .setParameter("id", dbEntity.getId())
+                        .setParameter("displayName", displayName)
+                        .execute();
             }
         });
     }
 
     @Override
-    public void updateDisplayName(Membership membership) {
+    public void updateDisplayName(final Membership membership) {
         final String name = membership.getGroup().getDisplayName();
         final String member = membership.getMember();
         final String displayName = membership.getDisplayName();
 
-        getExecutor().execute(new Runnable() {
+        enqueue(null, new Runnable() {
             @Override
             public void run() {
-                // Locate dependent object
-                PermissionEntity group = getEbeanServer().find(PermissionEntity.class).where()
-                        .eq("name", name.toLowerCase())
-                        .eq("group", true)
-                        .findUnique();
+                journal(name, true);
+
+                Long id;
+                synchronized (permissionService) {
+                    id = membership.getId();
+                }
+
+                // Known row, update it in place
+                if (id != null && executeNow(getEbeanServer().createUpdate(Membership.class, "update Membership set displayName=:displayName where id=:id")
+                        .setParameter("id", id)
+                        .setParameter("displayName", displayName)) > 0) {
+                    return;
+                }
+
+                // Otherwise, locate it by name
+                PermissionEntity group = findEntity(membership.getGroup());
                 if (group == null) {
                     databaseInconsistency();
                     return;
@@ -691,115 +1158,343 @@ public class AvajePermissionDao implements PermissionDao {
     }
 
     public void load() {
-        // Current rationale: On any given server, the number of groups will have
-        // an upper bound. However, the number of players will not. Granted, most
-        // players will simply be members and not full-blown entities themselves.
-        // For now, join entities and permissions when fetching players.
-        List<PermissionEntity> players = getEbeanServer().createQuery(PermissionEntity.class,
-                "find PermissionEntity fetch permissions where group = false")
-                .findList();
-        // But do not bother for groups.
-        List<PermissionEntity> groups = getEbeanServer().createQuery(PermissionEntity.class,
-                "find PermissionEntity fetch parent (displayName) where group = true")
+        MemoryState memoryState = new MemoryState();
+
+        long start = System.nanoTime();
+        List<PermissionEntity> dbEntities;
+        if (lazyPlayerLoading) {
+            // Other players are loaded on demand
+            dbEntities = new ArrayList<>(getEbeanServer().find(PermissionEntity.class)
+                    .join("parent", "displayName")
+                    .where()
+                    .eq("group", true)
+                    .findList());
+            Set<String> residentPlayers = permissionService.getResidentPlayers();
+            if (!residentPlayers.isEmpty()) {
+                dbEntities.addAll(getEbeanServer().find(PermissionEntity.class).where()
+                        .in("name", residentPlayers)
+                        .eq("group", false)
+                        .findList());
+            }
+        }
+        else {
+            dbEntities = getEbeanServer().find(PermissionEntity.class)
+                    .join("parent", "displayName")
+                    .findList();
+        }
+        logLoadTime("entities", dbEntities.size(), start, Level.INFO);
+
+        load(memoryState, dbEntities, lazyPlayerLoading, Level.INFO);
+
+        permissionService.setMemoryState(memoryState);
+    }
+
+    /**
+     * Load a single player.
+     * 
+     * @param uuid the player's UUID
+     * @return memory state holding just the player, if they exist
+     */
+    public MemoryState loadPlayer(UUID uuid) {
+        MemoryState memoryState = new MemoryState();
+
+        long start = System.nanoTime();
+        List<PermissionEntity> dbEntities = getEbeanServer().find(PermissionEntity.class).where()
+                .eq("name", canonicalizeUuid(uuid))
+                .eq("group", false)
                 .findList();
-        load(players, groups);
+        logLoadTime("entities", dbEntities.size(), start, Level.FINE);
+
+        if (!dbEntities.isEmpty())
+            load(memoryState, dbEntities, true, Level.FINE);
+        return memoryState;
     }
 
-    private void load(List<PermissionEntity> players, List<PermissionEntity> groups) {
+    /**
+     * Reload only the entities recorded in the journal after the given
+     * version and merge them into the in-memory state.
+     * 
+     * @param fromVersion the last data version that was loaded
+     * @param toVersion the current data version
+     * @return true if successful, false if the journal does not cover every
+     *     version in between (e.g. it was pruned or the database was modified
+     *     externally) and a full load is needed instead
+     */
+    public boolean loadChanges(long fromVersion, long toVersion) {
+        if (toVersion <= fromVersion)
+            return false;
+
+        long start = System.nanoTime();
+        List<JournalEntry> journal = getEbeanServer().find(JournalEntry.class).where()
+                .gt("version", fromVersion)
+                .le("version", toVersion)
+                .findList();
+        logLoadTime("journal entries", journal.size(), start, Level.INFO);
+
+        Set<Long> versions = new HashSet<>();
+        Set<String> groupNames = new HashSet<>();
+        Set<String> playerNames = new HashSet<>();
+        for (JournalEntry entry : journal) {
+            versions.add(entry.getVersion());
+            if (entry.getName() != null) {
+                if (entry.isGroup())
+                    groupNames.add(entry.getName());
+                else
+                    playerNames.add(entry.getName());
+            }
+        }
+        if (versions.size() != toVersion - fromVersion)
+            return false; // Gap in the journal
+        if (groupNames.size() + playerNames.size() > MAX_JOURNAL_CHANGES)
+            return false; // Cheaper to just load everything
+
         MemoryState memoryState = new MemoryState();
 
-        // Create full copies to force lazy-loads
-        for (PermissionEntity player : players) {
-            PermissionEntity newPlayer = getEntity(memoryState, player.getDisplayName(), player.getUuid(), false);
-            loadPermissions(memoryState, player.getPermissions(), newPlayer);
-            loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
-                    .eq("entity", player)
-                    .findList(), newPlayer);
+        start = System.nanoTime();
+        List<PermissionEntity> dbEntities = new ArrayList<>();
+        if (!groupNames.isEmpty()) {
+            dbEntities.addAll(getEbeanServer().find(PermissionEntity.class)
+                    .join("parent", "displayName")
+                    .where()
+                    .in("name", groupNames)
+                    .eq("group", true)
+                    .findList());
         }
-        for (PermissionEntity group : groups) {
-            PermissionEntity newGroup = getEntity(memoryState, group.getDisplayName(), null, true);
-            loadPermissions(memoryState, getEbeanServer().find(Entry.class).where()
-                    .eq("entity", group)
-                    .findList(), newGroup);
-            loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
-                    .eq("entity", group)
-                    .findList(), newGroup);
-            newGroup.setPriority(group.getPriority());
-            if (group.getParent() != null) {
-                // Backwards compatibility
-                PermissionEntity parentEntity = getEntity(memoryState, group.getParent().getDisplayName(), null, true);
-
-                Inheritance newInheritance = new Inheritance();
-                newInheritance.setChild(newGroup);
-                newInheritance.setParent(parentEntity);
-                newInheritance.setOrdering(0);
-                
-                // Linkages
-                newGroup.getInheritancesAsChild().add(newInheritance);
-                parentEntity.getInheritancesAsParent().add(newInheritance);
-            }
-            else {
-                List<Inheritance> inheritances = getEbeanServer().find(Inheritance.class).where()
-                        .eq("child", group)
-                        .join("parent", "displayName")
-                        .findList();
-                for (Inheritance inheritance : inheritances) {
-                    PermissionEntity parentEntity = getEntity(memoryState, inheritance.getParent().getDisplayName(), null, true);
-
-                    Inheritance newInheritance = new Inheritance();
-                    newInheritance.setChild(newGroup);
-                    newInheritance.setParent(parentEntity);
-                    newInheritance.setOrdering(inheritance.getOrdering());
-                    
-                    // Linkages
-                    newGroup.getInheritancesAsChild().add(newInheritance);
-                    parentEntity.getInheritancesAsParent().add(newInheritance);
-                }
-            }
-            List<Membership> memberships = getEbeanServer().find(Membership.class).where()
-                    .eq("group", group)
-                    .findList();
-            for (Membership membership : memberships) {
-                Membership newMembership = new Membership();
-                newMembership.setMember(membership.getMember().toLowerCase());
-                newMembership.setDisplayName(membership.getDisplayName());
-                newMembership.setGroup(newGroup);
-                newMembership.setExpiration(membership.getExpiration());
-                newGroup.getMemberships().add(newMembership);
-                
-                rememberMembership(memoryState, newMembership);
-            }
+        Set<String> loadPlayerNames = playerNames;
+        if (lazyPlayerLoading) {
+            // Only bother with players that are in memory
+            loadPlayerNames = new HashSet<>(playerNames);
+            loadPlayerNames.retainAll(permissionService.getResidentPlayers());
         }
-        
-        permissionService.setMemoryState(memoryState);
+        if (!loadPlayerNames.isEmpty()) {
+            dbEntities.addAll(getEbeanServer().find(PermissionEntity.class).where()
+                    .in("name", loadPlayerNames)
+                    .eq("group", false)
+                    .findList());
+        }
+        logLoadTime("entities", dbEntities.size(), start, Level.INFO);
+
+        if (!dbEntities.isEmpty())
+            load(memoryState, dbEntities, true, Level.INFO);
+
+        permissionService.mergeMemoryState(memoryState, groupNames, playerNames);
+        return true;
     }
 
-    private void loadPermissions(MemoryState memoryState, Collection<Entry> permissions, PermissionEntity entity) {
-        for (Entry entry : permissions) {
-            Entry newEntry = new Entry();
+    // Load everything belonging to the given entities. Each table is fetched
+    // with a single set-based query (streamed where the row count is
+    // unbounded, e.g. entries and memberships) and then stitched together in
+    // memory by entity id. This avoids issuing per-entity queries, which is
+    // painfully slow with lots of players and a remote database.
+    private void load(final MemoryState memoryState, List<PermissionEntity> dbEntities, boolean restrict, Level logLevel) {
+        // Database id -> new entity
+        final Map<Long, PermissionEntity> entities = new HashMap<>();
+        // Child database id -> parent name (backwards compatibility)
+        final Map<Long, String> legacyParents = new HashMap<>();
+
+        for (PermissionEntity entity : dbEntities) {
+            PermissionEntity newEntity = getEntity(memoryState, entity.getDisplayName(), entity.isGroup() ? null : entity.getUuid(), entity.isGroup());
+            newEntity.setId(entity.getId());
+            if (entity.isGroup()) {
+                newEntity.setPriority(entity.getPriority());
+                if (entity.getParent() != null)
+                    legacyParents.put(entity.getId(), entity.getParent().getDisplayName());
+            }
+            entities.put(entity.getId(), newEntity);
+        }
+        // Only used when restricting queries to the given entities
+        Set<Long> ids = entities.keySet();
+
+        long start = System.nanoTime();
+        final int[] count = new int[1];
+        Query<Entry> entryQuery = getEbeanServer().find(Entry.class)
+                .join("region", "name")
+                .join("world", "name");
+        if (restrict)
+            entryQuery.where().in("entity.id", ids);
+        entryQuery.findVisit(new QueryResultVisitor<Entry>() {
+            @Override
+            public boolean accept(Entry entry) {
+                PermissionEntity entity = entities.get(entry.getEntity().getId());
+                if (entity != null)
+                    loadPermission(memoryState, entry, entity);
+                count[0]++;
+                return true;
+            }
+        });
+        logLoadTime("entries", count[0], start, logLevel);
+
+        start = System.nanoTime();
+        count[0] = 0;
+        Query<EntityMetadata> metadataQuery = getEbeanServer().find(EntityMetadata.class);
+        if (restrict)
+            metadataQuery.where().in("entity.id", ids);
+        metadataQuery.findVisit(new QueryResultVisitor<EntityMetadata>() {
+            @Override
+            public boolean accept(EntityMetadata em) {
+                PermissionEntity entity = entities.get(em.getEntity().getId());
+                if (entity != null)
+                    loadMetadata(em, entity);
+                count[0]++;
+                return true;
+            }
+        });
+        for (PermissionEntity entity : entities.values()) {
+            entity.updateMetadataMap();
+        }
+        logLoadTime("metadata", count[0], start, logLevel);
+
+        start = System.nanoTime();
+        Query<Inheritance> inheritanceQuery = getEbeanServer().find(Inheritance.class)
+                .join("parent", "displayName");
+        if (restrict)
+            inheritanceQuery.where().in("child.id", ids);
+        List<Inheritance> inheritances = inheritanceQuery.findList();
+        for (Inheritance inheritance : inheritances) {
+            // Legacy parent takes precedence
+            if (legacyParents.containsKey(inheritance.getChild().getId())) continue;
+            PermissionEntity child = entities.get(inheritance.getChild().getId());
+            if (child != null)
+                loadInheritance(child, getEntity(memoryState, inheritance.getParent().getDisplayName(), null, true), inheritance.getOrdering());
+        }
+        for (Map.Entry<Long, String> me : legacyParents.entrySet()) {
+            loadInheritance(entities.get(me.getKey()), getEntity(memoryState, me.getValue(), null, true), 0);
+        }
+        logLoadTime("inheritances", inheritances.size(), start, logLevel);
+
+        start = System.nanoTime();
+        count[0] = 0;
+        Query<Membership> membershipQuery = getEbeanServer().find(Membership.class);
+        if (restrict)
+            membershipQuery.where().in("group.id", ids);
+        membershipQuery.findVisit(new QueryResultVisitor<Membership>() {
+            @Override
+            public boolean accept(Membership membership) {
+                PermissionEntity group = entities.get(membership.getGroup().getId());
+                if (group != null && group.isGroup())
+                    loadMembership(memoryState, membership, group);
+                count[0]++;
+                return true;
+            }
+        });
+        logLoadTime("memberships", count[0], start, logLevel);
+    }
 
-            newEntry.setRegion(entry.getRegion() == null ? null : getRegion(memoryState, entry.getRegion().getName()));
-            newEntry.setWorld(entry.getWorld() == null ? null : getWorld(memoryState, entry.getWorld().getName()));
-            newEntry.setPermission(entry.getPermission().toLowerCase());
-            newEntry.setValue(entry.isValue());
+    private void loadPermission(MemoryState memoryState, Entry entry, PermissionEntity entity) {
+        Entry newEntry = new Entry();
 
-            newEntry.setEntity(entity);
-            entity.getPermissions().add(newEntry);
+        newEntry.setId(entry.getId());
+        if (entry.getRegion() != null) {
+            PermissionRegion region = getRegion(memoryState, entry.getRegion().getName());
+            region.setId(entry.getRegion().getId());
+            newEntry.setRegion(region);
+        }
+        if (entry.getWorld() != null) {
+            PermissionWorld world = getWorld(memoryState, entry.getWorld().getName());
+            world.setId(entry.getWorld().getId());
+            newEntry.setWorld(world);
         }
+        newEntry.setPermission(entry.getPermission().toLowerCase());
+        newEntry.setValue(entry.isValue());
+
+        newEntry.setEntity(entity);
+        entity.getPermissions().add(newEntry);
+    }
+
+    private void loadMetadata(EntityMetadata em, PermissionEntity entity) {
+        EntityMetadata newMetadata = new EntityMetadata();
+
+        newMetadata.setId(em.getId());
+        newMetadata.setName(em.getName().toLowerCase());
+        newMetadata.setValue(em.getValue());
+
+        newMetadata.setEntity(entity);
+        entity.getMetadata().add(newMetadata);
+    }
+
+    private void loadInheritance(PermissionEntity child, PermissionEntity parent, int ordering) {
+        Inheritance newInheritance = new Inheritance();
+        newInheritance.setChild(child);
+        newInheritance.setParent(parent);
+        newInheritance.setOrdering(ordering);
+
+        // Linkages
+        child.getInheritancesAsChild().add(newInheritance);
+        parent.getInheritancesAsParent().add(newInheritance);
+    }
+
+    private void loadMembership(MemoryState memoryState, Membership membership, PermissionEntity group) {
+        Membership newMembership = new Membership();
+        newMembership.setId(membership.getId());
+        newMembership.setMember(membership.getMember().toLowerCase());
+        newMembership.setDisplayName(membership.getDisplayName());
+        newMembership.setGroup(group);
+        newMembership.setExpiration(membership.getExpiration());
+        group.getMemberships().add(newMembership);
+
+        rememberMembership(memoryState, newMembership);
     }
 
-    private void loadMetadata(Collection<EntityMetadata> metadata, PermissionEntity entity) {
-        for (EntityMetadata em : metadata) {
-            EntityMetadata newMetadata = new EntityMetadata();
+    private void logLoadTime(String table, int rows, long start, Level level) {
+        logger.log(level, String.format("Loaded %d %s (%d ms)", rows, table, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
 
-            newMetadata.setName(em.getName().toLowerCase());
-            newMetadata.setValue(em.getValue());
+    private synchronized void journal(String name, boolean group) {
+        if (group)
+            journalGroups.add(name.toLowerCase());
+        else
+            journalPlayers.add(name.toLowerCase());
+    }
+
+    /**
+     * Forget any entities recorded by a previous (failed) transaction.
+     */
+    public synchronized void clearJournal() {
+        journalGroups.clear();
+        journalPlayers.clear();
+    }
 
-            newMetadata.setEntity(entity);
-            entity.getMetadata().add(newMetadata);
+    /**
+     * Write journal entries for the entities touched by the current
+     * transaction. Must be called within that transaction.
+     * 
+     * @param version the data version being committed
+     */
+    public synchronized void writeJournal(long version) {
+        Date now = new Date();
+        List<JournalEntry> journal = new ArrayList<>(journalGroups.size() + journalPlayers.size());
+        for (String name : journalGroups) {
+            journal.add(createJournalEntry(version, name, true, now));
         }
-        
-        entity.updateMetadataMap();
+        for (String name : journalPlayers) {
+            journal.add(createJournalEntry(version, name, false, now));
+        }
+        if (journal.isEmpty())
+            journal.add(createJournalEntry(version, null, false, now)); // Still need to account for this version
+        getEbeanServer().save(journal);
+        clearJournal();
+    }
+
+    private JournalEntry createJournalEntry(long version, String name, boolean group, Date timestamp) {
+        JournalEntry entry = new JournalEntry();
+        entry.setVersion(version);
+        entry.setName(name);
+        entry.setGroup(group);
+        entry.setTimestamp(timestamp);
+        return entry;
+    }
+
+    /**
+     * Delete journal entries older than the given timestamp.
+     * 
+     * @param expire the cutoff timestamp
+     * @return the number of entries deleted
+     */
+    public int pruneJournal(Date expire) {
+        // ORM update so the table name follows the naming convention
+        return getEbeanServer().createUpdate(JournalEntry.class, "delete from JournalEntry where timestamp < :expire")
+                .setParameter("expire", expire)
+                .execute();
     }
 
     private void databaseInconsistency() {
@@ -807,12 +1502,18 @@ public class AvajePermissionDao implements PermissionDao {
     }
 
     private PermissionEntity inconsistentEntity(String name, boolean group) {
+        PermissionEntity entity = newInconsistentEntity(name, group);
+        getEbeanServer().save(entity);
+        return entity;
+    }
+
+    // Not yet saved
+    private PermissionEntity newInconsistentEntity(String name, boolean group) {
         databaseInconsistency();
         PermissionEntity entity = new PermissionEntity();
         entity.setName(name.toLowerCase());
         entity.setGroup(group);
         entity.setDisplayName(name);
-        getEbeanServer().save(entity);
         return entity;
     }
 
@@ -832,4 +1533,31 @@ public class AvajePermissionDao implements PermissionDao {
         return world;
     }
 
+    private static class PendingOperation {
+
+        private final String key;
+
+        private final Runnable operation;
+
+        private final long queued = System.nanoTime();
+
+        public PendingOperation(String key, Runnable operation) {
+            this.key = key;
+            this.operation = operation;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Runnable getOperation() {
+            return operation;
+        }
+
+        public long getQueued() {
+            return queued;
+        }
+
+    }
+
 }
@@ -0,0 +1,676 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.uncanonicalizeUuid;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getEntity;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getRegion;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getWorld;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.rememberMembership;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.MemoryState;
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * Append-only log of changes made since the last full save of a
+ * {@link FilePermissionDao}. Each record describes the resulting state of a
+ * single row (rather than the change made to it), so replaying a log on top
+ * of a later state converges on the same result.
+ *
+ * <p>Records are length-prefixed so a record cut short by a crash can be
+ * detected and discarded. Not thread-safe.
+ *
+ * @author zerothangel
+ */
+class FileJournal {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte CREATE_ENTITY = 1;
+
+    private static final byte DELETE_ENTITY = 2;
+
+    private static final byte SET_ENTRY = 3;
+
+    private static final byte DELETE_ENTRY = 4;
+
+    private static final byte SET_MEMBERSHIP = 5;
+
+    private static final byte DELETE_MEMBERSHIP = 6;
+
+    private static final byte SET_PRIORITY = 7;
+
+    private static final byte SET_METADATA = 8;
+
+    private static final byte DELETE_METADATA = 9;
+
+    private static final byte SET_INHERITANCE = 10;
+
+    private static final byte DELETE_INHERITANCE = 11;
+
+    private static final byte ENTITY_DISPLAY_NAME = 12;
+
+    private static final byte MEMBERSHIP_DISPLAY_NAME = 13;
+
+    private static final byte TYPE_STRING = 1;
+
+    private static final byte TYPE_INTEGER = 2;
+
+    private static final byte TYPE_REAL = 3;
+
+    private static final byte TYPE_BOOLEAN = 4;
+
+    private static final Logger logger = Logger.getLogger(FileJournal.class.getName());
+
+    // Records not yet appended to the file
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    // Current record
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    public boolean isEmpty() {
+        return buffer.size() == 0;
+    }
+
+    /**
+     * Remove and return all buffered records.
+     */
+    public byte[] drain() {
+        byte[] result = buffer.toByteArray();
+        buffer.reset();
+        return result;
+    }
+
+    /**
+     * Put back records returned by {@link #drain()} that could not be
+     * appended, ahead of any recorded since.
+     *
+     * @param records the records
+     */
+    public void restore(byte[] records) {
+        byte[] newer = buffer.toByteArray();
+        buffer.reset();
+        buffer.write(records, 0, records.length);
+        buffer.write(newer, 0, newer.length);
+    }
+
+    /**
+     * Append records to a journal file. If this fails, the file is truncated
+     * back to its original length (if possible) so the records may be
+     * appended again later.
+     *
+     * @param file the journal file
+     * @param records the records, as returned by {@link #drain()}
+     * @throws IOException
+     */
+    public static void append(File file, byte[] records) throws IOException {
+        if (records.length == 0) return;
+
+        long originalLength = file.length();
+        try {
+            OutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(records);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            // Don't leave a partial record for later appends to follow
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    if (raf.length() > originalLength)
+                        raf.setLength(originalLength);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (IOException e2) {
+                logger.log(Level.WARNING, "Error truncating journal " + file, e2);
+            }
+            throw e;
+        }
+    }
+
+    public void createEntity(PermissionEntity entity) {
+        try {
+            begin(CREATE_ENTITY);
+            writeEntity(entity);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void deleteEntity(PermissionEntity entity) {
+        try {
+            begin(DELETE_ENTITY);
+            writeEntity(entity);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void createOrUpdateEntry(Entry entry) {
+        try {
+            begin(SET_ENTRY);
+            writeEntry(entry);
+            record.writeBoolean(entry.isValue());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void deleteEntry(Entry entry) {
+        try {
+            begin(DELETE_ENTRY);
+            writeEntry(entry);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void createOrUpdateMembership(Membership membership) {
+        try {
+            begin(SET_MEMBERSHIP);
+            writeMembership(membership);
+            writeString(membership.getDisplayName());
+            record.writeLong(membership.getExpiration() == null ? -1L : membership.getExpiration().getTime());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void deleteMembership(Membership membership) {
+        try {
+            begin(DELETE_MEMBERSHIP);
+            writeMembership(membership);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void setEntityPriority(PermissionEntity entity, int priority) {
+        try {
+            begin(SET_PRIORITY);
+            writeEntity(entity);
+            record.writeInt(priority);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void createOrUpdateMetadata(EntityMetadata metadata) {
+        try {
+            begin(SET_METADATA);
+            writeEntity(metadata.getEntity());
+            writeString(metadata.getName());
+            Object value = metadata.getValue();
+            if (value instanceof String) {
+                record.writeByte(TYPE_STRING);
+                writeString((String)value);
+            }
+            else if (value instanceof Long) {
+                record.writeByte(TYPE_INTEGER);
+                record.writeLong((Long)value);
+            }
+            else if (value instanceof Double) {
+                record.writeByte(TYPE_REAL);
+                record.writeDouble((Double)value);
+            }
+            else if (value instanceof Boolean) {
+                record.writeByte(TYPE_BOOLEAN);
+                record.writeBoolean((Boolean)value);
+            }
+            else {
+                throw new IllegalStateException("Unknown metadata type: " + value);
+            }
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void deleteMetadata(EntityMetadata metadata) {
+        try {
+            begin(DELETE_METADATA);
+            writeEntity(metadata.getEntity());
+            writeString(metadata.getName());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void createOrUpdateInheritance(Inheritance inheritance) {
+        try {
+            begin(SET_INHERITANCE);
+            writeString(inheritance.getChild().getDisplayName());
+            writeString(inheritance.getParent().getDisplayName());
+            record.writeInt(inheritance.getOrdering());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void deleteInheritance(Inheritance inheritance) {
+        try {
+            begin(DELETE_INHERITANCE);
+            writeString(inheritance.getChild().getDisplayName());
+            writeString(inheritance.getParent().getDisplayName());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void updateDisplayName(PermissionEntity entity) {
+        try {
+            begin(ENTITY_DISPLAY_NAME);
+            writeEntity(entity);
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void updateDisplayName(Membership membership) {
+        try {
+            begin(MEMBERSHIP_DISPLAY_NAME);
+            writeMembership(membership);
+            writeString(membership.getDisplayName());
+            end();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void begin(byte type) throws IOException {
+        recordBytes.reset();
+        record.writeByte(type);
+    }
+
+    private void end() throws IOException {
+        record.flush();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(recordBytes.size());
+        recordBytes.writeTo(out);
+        out.flush();
+    }
+
+    private void writeEntity(PermissionEntity entity) throws IOException {
+        record.writeBoolean(entity.isGroup());
+        writeString(entity.getName());
+        writeString(entity.getDisplayName());
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        writeEntity(entry.getEntity());
+        writeString(entry.getRegion() == null ? null : entry.getRegion().getName());
+        writeString(entry.getWorld() == null ? null : entry.getWorld().getName());
+        writeString(entry.getPermission());
+    }
+
+    private void writeMembership(Membership membership) throws IOException {
+        writeString(membership.getGroup().getDisplayName());
+        writeString(membership.getMember());
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            record.writeInt(-1);
+        }
+        else {
+            byte[] data = s.getBytes(UTF8);
+            record.writeInt(data.length);
+            record.write(data);
+        }
+    }
+
+    /**
+     * Replay a journal file on top of the given state. A partial record at
+     * the end (e.g. from a crash) is discarded and truncated from the file.
+     *
+     * @param file the journal file
+     * @param memoryState the state to update
+     * @return the number of records replayed
+     * @throws IOException
+     */
+    public static int replay(File file, MemoryState memoryState) throws IOException {
+        // Entries are located through each entity's index
+        for (PermissionEntity entity : memoryState.getGroups().values()) {
+            entity.updateEntryIndex();
+        }
+        for (PermissionEntity entity : memoryState.getPlayers().values()) {
+            entity.updateEntryIndex();
+        }
+
+        int count = 0;
+        long validLength = 0L;
+        InputStream is = new FileInputStream(file);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            while (true) {
+                byte[] data;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0)
+                        break; // corrupt
+                    data = new byte[length];
+                    in.readFully(data);
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                try {
+                    replay(ByteBuffer.wrap(data), memoryState);
+                }
+                catch (BufferUnderflowException | IllegalArgumentException e) {
+                    break; // corrupt
+                }
+                validLength += 4 + data.length;
+                count++;
+            }
+        }
+        finally {
+            is.close();
+        }
+
+        if (validLength < file.length()) {
+            logger.log(Level.WARNING, String.format("Discarding %d bytes of incomplete records at end of %s", file.length() - validLength, file));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        return count;
+    }
+
+    private static void replay(ByteBuffer in, MemoryState memoryState) {
+        byte type = in.get();
+        switch (type) {
+        case CREATE_ENTITY:
+            readEntity(in, memoryState);
+            break;
+        case DELETE_ENTITY:
+            forgetEntity(readEntity(in, memoryState), memoryState);
+            break;
+        case SET_ENTRY: {
+            PermissionEntity entity = readEntity(in, memoryState);
+            String region = readString(in);
+            String world = readString(in);
+            String permission = readString(in);
+            boolean value = in.get() != 0;
+            Entry entry = entity.getEntry(world, region, permission);
+            if (entry == null) {
+                entry = new Entry();
+                entry.setEntity(entity);
+                entry.setRegion(region == null ? null : getRegion(memoryState, region));
+                entry.setWorld(world == null ? null : getWorld(memoryState, world));
+                entry.setPermission(permission);
+                entity.getPermissions().add(entry);
+                entity.indexEntry(entry);
+            }
+            entry.setValue(value);
+            break;
+        }
+        case DELETE_ENTRY: {
+            PermissionEntity entity = readEntity(in, memoryState);
+            String region = readString(in);
+            String world = readString(in);
+            String permission = readString(in);
+            Entry entry = entity.getEntry(world, region, permission);
+            if (entry != null) {
+                entity.getPermissions().remove(entry);
+                entity.unindexEntry(entry);
+            }
+            break;
+        }
+        case SET_MEMBERSHIP: {
+            PermissionEntity group = getEntity(memoryState, readString(in), null, true);
+            String member = readString(in);
+            String displayName = readString(in);
+            long expiration = in.getLong();
+            Membership membership = findMembership(group, member, memoryState);
+            if (membership == null) {
+                membership = new Membership();
+                membership.setMember(member);
+                membership.setGroup(group);
+                group.getMemberships().add(membership);
+                rememberMembership(memoryState, membership);
+            }
+            membership.setDisplayName(displayName);
+            membership.setExpiration(expiration == -1L ? null : new Date(expiration));
+            break;
+        }
+        case DELETE_MEMBERSHIP: {
+            PermissionEntity group = getEntity(memoryState, readString(in), null, true);
+            Membership membership = findMembership(group, readString(in), memoryState);
+            if (membership != null)
+                forgetMembership(membership, memoryState);
+            break;
+        }
+        case SET_PRIORITY: {
+            PermissionEntity entity = readEntity(in, memoryState);
+            entity.setPriority(in.getInt());
+            break;
+        }
+        case SET_METADATA: {
+            PermissionEntity entity = readEntity(in, memoryState);
+            String name = readString(in);
+            Object value;
+            byte valueType = in.get();
+            switch (valueType) {
+            case TYPE_STRING:
+                value = readString(in);
+                break;
+            case TYPE_INTEGER:
+                value = in.getLong();
+                break;
+            case TYPE_REAL:
+                value = in.getDouble();
+                break;
+            case TYPE_BOOLEAN:
+                value = in.get() != 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metadata type: " + valueType);
+            }
+            EntityMetadata em = entity.getMetadataMap().get(name);
+            if (em == null) {
+                em = new EntityMetadata();
+                em.setEntity(entity);
+                em.setName(name);
+                entity.getMetadata().add(em);
+                entity.getMetadataMap().put(name, em);
+            }
+            em.setValue(value);
+            break;
+        }
+        case DELETE_METADATA: {
+            PermissionEntity entity = readEntity(in, memoryState);
+            EntityMetadata em = entity.getMetadataMap().remove(readString(in));
+            if (em != null)
+                entity.getMetadata().remove(em);
+            break;
+        }
+        case SET_INHERITANCE: {
+            PermissionEntity child = getEntity(memoryState, readString(in), null, true);
+            PermissionEntity parent = getEntity(memoryState, readString(in), null, true);
+            int ordering = in.getInt();
+            Inheritance inheritance = findInheritance(child, parent);
+            if (inheritance == null) {
+                inheritance = new Inheritance();
+                inheritance.setChild(child);
+                inheritance.setParent(parent);
+                child.getInheritancesAsChild().add(inheritance);
+                parent.getInheritancesAsParent().add(inheritance);
+            }
+            inheritance.setOrdering(ordering);
+            break;
+        }
+        case DELETE_INHERITANCE: {
+            PermissionEntity child = getEntity(memoryState, readString(in), null, true);
+            PermissionEntity parent = getEntity(memoryState, readString(in), null, true);
+            Inheritance inheritance = findInheritance(child, parent);
+            if (inheritance != null) {
+                child.getInheritancesAsChild().remove(inheritance);
+                parent.getInheritancesAsParent().remove(inheritance);
+            }
+            break;
+        }
+        case ENTITY_DISPLAY_NAME:
+            readEntity(in, memoryState);
+            break;
+        case MEMBERSHIP_DISPLAY_NAME: {
+            PermissionEntity group = getEntity(memoryState, readString(in), null, true);
+            Membership membership = findMembership(group, readString(in), memoryState);
+            String displayName = readString(in);
+            if (membership != null)
+                membership.setDisplayName(displayName);
+            break;
+        }
+        default:
+            throw new IllegalArgumentException("Unknown record type: " + type);
+        }
+    }
+
+    // Locate (or create) an entity and bring its display name up to date
+    private static PermissionEntity readEntity(ByteBuffer in, MemoryState memoryState) {
+        boolean group = in.get() != 0;
+        String name = readString(in);
+        String displayName = readString(in);
+        PermissionEntity entity = getEntity(memoryState, displayName, group ? null : uncanonicalizeUuid(name), group);
+        entity.setDisplayName(displayName);
+        return entity;
+    }
+
+    private static void forgetEntity(PermissionEntity entity, MemoryState memoryState) {
+        if (entity.isGroup()) {
+            for (Inheritance i : entity.getInheritancesAsChild()) {
+                i.getParent().getInheritancesAsParent().remove(i);
+            }
+            entity.getInheritancesAsChild().clear();
+            for (Inheritance i : entity.getInheritancesAsParent()) {
+                i.getChild().getInheritancesAsChild().remove(i);
+            }
+            entity.getInheritancesAsParent().clear();
+            for (Membership membership : new ArrayList<>(entity.getMemberships())) {
+                forgetMembership(membership, memoryState);
+            }
+            memoryState.getGroups().remove(entity.getName());
+        }
+        else {
+            memoryState.getPlayers().remove(entity.getName());
+        }
+    }
+
+    private static Membership findMembership(PermissionEntity group, String member, MemoryState memoryState) {
+        Set<Membership> memberships = memoryState.getReverseMembershipMap().get(member);
+        if (memberships != null) {
+            for (Membership membership : memberships) {
+                if (membership.getGroup() == group)
+                    return membership;
+            }
+        }
+        return null;
+    }
+
+    private static void forgetMembership(Membership membership, MemoryState memoryState) {
+        membership.getGroup().getMemberships().remove(membership);
+        Set<Membership> memberships = memoryState.getReverseMembershipMap().get(membership.getMember());
+        if (memberships != null) {
+            memberships.remove(membership);
+            if (memberships.isEmpty())
+                memoryState.getReverseMembershipMap().remove(membership.getMember());
+        }
+    }
+
+    private static Inheritance findInheritance(PermissionEntity child, PermissionEntity parent) {
+        for (Inheritance i : child.getInheritancesAsChild()) {
+            if (i.getParent() == parent)
+                return i;
+        }
+        return null;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] data = new byte[length];
+        in.get(data);
+        return new String(data, UTF8);
+    }
+
+}
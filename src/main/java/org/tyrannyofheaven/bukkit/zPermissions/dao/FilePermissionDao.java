@@ -66,10 +66,22 @@ public class FilePermissionDao implements PermissionDao {
 
     private boolean dirty;
 
+    private FileJournal journal; // protected by this
+
     public FilePermissionDao(InMemoryPermissionService permissionService) {
         this.permissionService = permissionService;
     }
 
+    /**
+     * Enable or disable journaling. When enabled, changes are recorded so
+     * they may be appended to a journal file rather than saving everything.
+     * 
+     * @param journaling true to enable journaling
+     */
+    public synchronized void setJournaling(boolean journaling) {
+        journal = journaling ? new FileJournal() : null;
+    }
+
     public synchronized boolean isDirty() {
         return dirty;
     }
@@ -97,33 +109,45 @@ public class FilePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void createEntity(PermissionEntity entity) {
+    public synchronized void createEntity(PermissionEntity entity) {
         setDirty();
+        if (journal != null)
+            journal.createEntity(entity);
     }
 
     @Override
-    public void createOrUpdateEntry(Entry entry) {
+    public synchronized void createOrUpdateEntry(Entry entry) {
         setDirty();
+        if (journal != null)
+            journal.createOrUpdateEntry(entry);
     }
 
     @Override
-    public void deleteEntry(Entry entry) {
+    public synchronized void deleteEntry(Entry entry) {
         setDirty();
+        if (journal != null)
+            journal.deleteEntry(entry);
     }
 
     @Override
-    public void createOrUpdateMembership(Membership membership) {
+    public synchronized void createOrUpdateMembership(Membership membership) {
         setDirty();
+        if (journal != null)
+            journal.createOrUpdateMembership(membership);
     }
 
     @Override
-    public void deleteEntity(PermissionEntity entity) {
+    public synchronized void deleteEntity(PermissionEntity entity) {
         setDirty();
+        if (journal != null)
+            journal.deleteEntity(entity);
     }
 
     @Override
-    public void deleteMembership(Membership membership) {
+    public synchronized void deleteMembership(Membership membership) {
         setDirty();
+        if (journal != null)
+            journal.deleteMembership(membership);
     }
 
     @Override
@@ -132,8 +156,10 @@ public class FilePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void setEntityPriority(PermissionEntity entity, int priority) {
+    public synchronized void setEntityPriority(PermissionEntity entity, int priority) {
         setDirty();
+        if (journal != null)
+            journal.setEntityPriority(entity, priority);
     }
 
     @Override
@@ -147,33 +173,45 @@ public class FilePermissionDao implements PermissionDao {
     }
 
     @Override
-    public void createOrUpdateMetadata(EntityMetadata metadata) {
+    public synchronized void createOrUpdateMetadata(EntityMetadata metadata) {
         setDirty();
+        if (journal != null)
+            journal.createOrUpdateMetadata(metadata);
     }
 
     @Override
-    public void deleteMetadata(EntityMetadata metadata) {
+    public synchronized void deleteMetadata(EntityMetadata metadata) {
         setDirty();
+        if (journal != null)
+            journal.deleteMetadata(metadata);
     }
 
     @Override
-    public void createOrUpdateInheritance(Inheritance inheritance) {
+    public synchronized void createOrUpdateInheritance(Inheritance inheritance) {
         setDirty();
+        if (journal != null)
+            journal.createOrUpdateInheritance(inheritance);
     }
 
     @Override
-    public void deleteInheritance(Inheritance inheritance) {
+    public synchronized void deleteInheritance(Inheritance inheritance) {
         setDirty();
+        if (journal != null)
+            journal.deleteInheritance(inheritance);
     }
 
     @Override
-    public void updateDisplayName(PermissionEntity entity) {
+    public synchronized void updateDisplayName(PermissionEntity entity) {
         setDirty();
+        if (journal != null)
+            journal.updateDisplayName(entity);
     }
 
     @Override
-    public void updateDisplayName(Membership membership) {
+    public synchronized void updateDisplayName(Membership membership) {
         setDirty();
+        if (journal != null)
+            journal.updateDisplayName(membership);
     }
 
     /**
@@ -190,6 +228,69 @@ public class FilePermissionDao implements PermissionDao {
             dump = dump();
         }
 
+        if (write(file, dump))
+            clearDirty();
+    }
+
+    /**
+     * Append changes made since the last call to the journal file.
+     * 
+     * @param journalFile the journal file
+     * @throws IOException
+     */
+    public void appendJournal(File journalFile) throws IOException {
+        byte[] records;
+        synchronized (this) {
+            records = journal.drain();
+            clearDirty();
+        }
+        appendOrRestore(journalFile, records);
+    }
+
+    // Append drained records. On failure, they are put back and the DAO is
+    // left dirty so nothing is lost.
+    private void appendOrRestore(File journalFile, byte[] records) throws IOException {
+        try {
+            FileJournal.append(journalFile, records);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                if (journal != null)
+                    journal.restore(records);
+                setDirty();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Save state of entire system to filesystem and start a new journal.
+     * 
+     * @param file the file to save to
+     * @param journalFile the journal file
+     * @throws IOException
+     */
+    public void compact(File file, File journalFile) throws IOException {
+        Map<String, Object> dump;
+        byte[] records;
+        synchronized (permissionService) {
+            dump = dump();
+            synchronized (this) {
+                records = journal.drain();
+                clearDirty();
+            }
+        }
+        // Keep the journal complete in case the save fails. (Replaying
+        // it over the new save is harmless.)
+        appendOrRestore(journalFile, records);
+
+        if (write(file, dump) && journalFile.exists() && !journalFile.delete()) {
+            logger.log(Level.WARNING, "Error deleting journal " + journalFile);
+        }
+    }
+
+    // Write out a dump, keeping a backup of the previous file. Returns true if successful.
+    private boolean write(File file, Map<String, Object> dump) throws IOException {
         File newFile = new File(file.getParentFile(), file.getName() + ".new");
 
         // Write out file
@@ -218,16 +319,16 @@ public class FilePermissionDao implements PermissionDao {
         // Back up old config
         if (file.exists() && !file.renameTo(backupFile)) {
             logger.log(Level.SEVERE, String.format("Error renaming %s to %s", file, backupFile));
-            return; // no backup, abort
+            return false; // no backup, abort
         }
 
         // Rename new file to config
         if (!newFile.renameTo(file)) {
             logger.log(Level.SEVERE, String.format("Error renaming %s to %s", newFile, file));
-            return;
+            return false;
         }
 
-        clearDirty();
+        return true;
     }
 
     /**
@@ -236,19 +337,39 @@ public class FilePermissionDao implements PermissionDao {
      * @param file the file to load from
      * @throws IOException 
      */
-    @SuppressWarnings("unchecked")
     public void load(File file) throws IOException {
-        Yaml yaml = new Yaml(new SafeConstructor());
-        Reader in = new FileReader(file);
+        load(file, null);
+    }
+
+    /**
+     * Load state of entire system from filesystem, replaying the journal (if
+     * any) on top.
+     * 
+     * @param file the file to load from
+     * @param journalFile the journal file or null
+     * @throws IOException 
+     */
+    @SuppressWarnings("unchecked")
+    public void load(File file, File journalFile) throws IOException {
         Map<String, Object> input = null;
-        try {
-            input = (Map<String, Object>)yaml.load(in);
-        }
-        finally {
-            in.close();
+        if (journalFile == null || file.exists()) { // Journal alone is fine
+            Yaml yaml = new Yaml(new SafeConstructor());
+            Reader in = new FileReader(file);
+            try {
+                input = (Map<String, Object>)yaml.load(in);
+            }
+            finally {
+                in.close();
+            }
         }
-        if (input != null) {
-            load(input);
+        boolean replay = journalFile != null && journalFile.exists();
+        if (input != null || replay) {
+            MemoryState memoryState = input != null ? load(input) : new MemoryState();
+            if (replay) {
+                int count = FileJournal.replay(journalFile, memoryState);
+                logger.log(Level.FINE, String.format("Replayed %d journal records", count));
+            }
+            permissionService.setMemoryState(memoryState);
             clearDirty();
         }
     }
@@ -313,7 +434,7 @@ public class FilePermissionDao implements PermissionDao {
 
     // Load state of entire system from (YAML-friendly) map
     @SuppressWarnings("unchecked")
-    private void load(Map<String, Object> input) {
+    private MemoryState load(Map<String, Object> input) {
         MemoryState memoryState = new MemoryState();
 
         for (Map<String, Object> playerMap : (List<Map<String, Object>>)input.get("players")) {
@@ -396,7 +517,7 @@ public class FilePermissionDao implements PermissionDao {
             }
         }
         
-        permissionService.setMemoryState(memoryState);
+        return memoryState;
     }
 
     // Create a map that describes permissions for a PermissionEntity
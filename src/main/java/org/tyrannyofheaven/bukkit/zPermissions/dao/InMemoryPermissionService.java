@@ -16,8 +16,10 @@
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
 import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.canonicalizeUuid;
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.uncanonicalizeUuid;
 
 import java.util.ArrayList;
+import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -30,9 +32,14 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemorySnapshot.EntityView;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
@@ -44,6 +51,10 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 /**
  * Base implementation of a fully in-memory PermissionService.
  * 
+ * <p>Writes are serialized and operate on the mutable {@link MemoryState}.
+ * At the end of each write, a new {@link MemorySnapshot} is published, which
+ * most read methods use without locking.
+ * 
  * @author zerothangel
  */
 public class InMemoryPermissionService implements PermissionService {
@@ -58,6 +69,16 @@ public class InMemoryPermissionService implements PermissionService {
         }
     };
 
+    // Minimum milliseconds between updates of a resident player's last access time
+    private static final long PLAYER_ACCESS_GRANULARITY = 1000L;
+
+    private static final Comparator<Map.Entry<String, Long>> LAST_ACCESS_COMPARATOR = new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+            return a.getValue().compareTo(b.getValue());
+        }
+    };
+
     private static final Comparator<Membership> MEMBERSHIP_MEMBER_COMPARATOR = new Comparator<Membership>() {
         @Override
         public int compare(Membership a, Membership b) {
@@ -69,6 +90,39 @@ public class InMemoryPermissionService implements PermissionService {
 
     private MemoryState memoryState = new MemoryState();
 
+    private final List<PermissionServiceListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Materialized ancestry: lowercase group name -> display names, farthest ancestor first
+    private final Map<String, List<String>> ancestryMap = new HashMap<>();
+
+    // Reverse of ancestryMap: lowercase group name -> lowercase names of all descendants
+    private final Map<String, Set<String>> descendantsMap = new HashMap<>();
+
+    // Read-only view for readers, replaced at the end of each write
+    private volatile MemorySnapshot snapshot = new MemorySnapshot();
+
+    // Permission node -> entities, kept in step with published snapshots
+    private final PermissionIndex permissionIndex = new PermissionIndex();
+
+    // Loads players on demand. If null, all players are kept in memory.
+    private volatile PlayerLoader playerLoader;
+
+    // Canonical UUID -> last access time of players loaded on demand
+    private final ConcurrentMap<String, Long> residentPlayers = new ConcurrentHashMap<>();
+
+    // Changes made by the current write, not yet published
+    private final Set<String> dirtyGroups = new HashSet<>(); // lowercase names
+
+    private final Set<String> dirtyPlayers = new HashSet<>(); // canonical UUIDs
+
+    private final Set<String> dirtyMemberships = new HashSet<>(); // canonical UUIDs
+
+    private final Set<String> dirtyGroupMembers = new HashSet<>(); // lowercase names
+
+    private boolean dirtyAncestry;
+
+    private final Set<String> changedGroups = new LinkedHashSet<>();
+
     private PermissionDao getPermissionDao() {
         return permissionDao;
     }
@@ -77,6 +131,25 @@ public class InMemoryPermissionService implements PermissionService {
         this.permissionDao = permissionDao;
     }
 
+    public final void addListener(PermissionServiceListener listener) {
+        listeners.add(listener);
+    }
+
+    public final void removeListener(PermissionServiceListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Listeners are notified once the change has been published
+    private void fireGroupChanged(String groupName) {
+        changedGroups.add(groupName);
+    }
+
+    private void fireMemoryStateChanged(MemoryStateDiff diff) {
+        for (PermissionServiceListener listener : listeners) {
+            listener.memoryStateChanged(diff);
+        }
+    }
+
     private Map<String, Set<Membership>> getReverseMembershipMap() {
         return memoryState.getReverseMembershipMap();
     }
@@ -139,6 +212,7 @@ public class InMemoryPermissionService implements PermissionService {
         return getWorlds().get(world.toLowerCase());
     }
 
+    // NB players must already have been made resident, outside of the lock
     private PermissionEntity getEntity(String name0, UUID uuid, boolean group, boolean create) {
         String lname = checkNameUuid(name0, uuid, group).toLowerCase();
         PermissionEntity entity;
@@ -172,75 +246,62 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final Boolean getPermission(String name, UUID uuid, boolean group, String region, String world, String permission) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null)
+    public final Boolean getPermission(String name, UUID uuid, boolean group, String region, String world, String permission) {
+        EntityView view = getView(name, uuid, group);
+        if (view == null)
             return null;
     
-        PermissionRegion permissionRegion;
-        try {
-            permissionRegion = getRegion(region, false);
-        }
-        catch (IllegalArgumentException e) {
-            return null;
-        }
-    
-        PermissionWorld permissionWorld;
-        try {
-            permissionWorld = getWorld(world, false);
-        }
-        catch (IllegalArgumentException e) {
-            return null;
-        }
-    
-        for (Entry entry : entity.getPermissions()) {
-            if (entry.getPermission().equalsIgnoreCase(permission) &&
-                (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                return entry.isValue();
-            }
-        }
-        return null;
+        return view.getPermission(toLowerCase(world), toLowerCase(region), permission.toLowerCase());
     }
 
     @Override
-    public synchronized final void setPermission(String name, UUID uuid, boolean group, String region, String world, String permission, boolean value) {
-        PermissionEntity owner;
-        if (group) {
-            owner = getGroup(name);
-        }
-        else {
-            owner = getEntity(name, uuid, group, true);
-        }
+    public final void setPermission(String name, UUID uuid, boolean group, String region, String world, String permission, boolean value) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            if (!group)
+                ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!group && !isResident(uuid))
+                    continue;
+
+                PermissionEntity owner;
+                if (group) {
+                    owner = getGroup(name);
+                }
+                else {
+                    owner = getEntity(name, uuid, group, true);
+                }
     
-        PermissionRegion permissionRegion = getRegion(region, true);
+                PermissionRegion permissionRegion = getRegion(region, true);
     
-        PermissionWorld permissionWorld = getWorld(world, true);
+                PermissionWorld permissionWorld = getWorld(world, true);
     
-        permission = permission.toLowerCase();
+                permission = permission.toLowerCase();
     
-        Entry found = null;
-        for (Entry entry : owner.getPermissions()) {
-            if (permission.equals(entry.getPermission()) &&
-                    (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                    (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                found = entry;
-                break;
-            }
-        }
+                Entry found = owner.getEntry(toLowerCase(world), toLowerCase(region), permission);
     
-        if (found == null) {
-            found = new Entry();
-            found.setEntity(owner);
-            found.setRegion(permissionRegion);
-            found.setWorld(permissionWorld);
-            found.setPermission(permission);
+                if (found == null) {
+                    found = new Entry();
+                    found.setEntity(owner);
+                    found.setRegion(permissionRegion);
+                    found.setWorld(permissionWorld);
+                    found.setPermission(permission);
             
-            owner.getPermissions().add(found);
-        }
+                    owner.getPermissions().add(found);
+                    owner.indexEntry(found);
+                }
     
-        found.setValue(value);
-        createOrUpdateEntry(found);
+                found.setValue(value);
+                createOrUpdateEntry(found);
+
+                markDirty(owner);
+                if (group)
+                    fireGroupChanged(owner.getName());
+                publish();
+                return;
+            }
+        }
     }
 
     private void createOrUpdateEntry(Entry entry) {
@@ -248,41 +309,35 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final boolean unsetPermission(String name, UUID uuid, boolean group, String region, String world, String permission) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null)
-            return false;
+    public final boolean unsetPermission(String name, UUID uuid, boolean group, String region, String world, String permission) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            if (!group)
+                ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!group && !isResident(uuid))
+                    continue;
+
+                PermissionEntity entity = getEntity(name, uuid, group, false);
+                if (entity == null)
+                    return false;
     
-        PermissionRegion permissionRegion;
-        try {
-            permissionRegion = getRegion(region, false);
-        }
-        catch (IllegalArgumentException e) {
-            return false;
-        }
-    
-        PermissionWorld permissionWorld;
-        try {
-            permissionWorld = getWorld(world, false);
-        }
-        catch (IllegalArgumentException e) {
-            return false;
-        }
-
-        permission = permission.toLowerCase();
+                Entry entry = entity.getEntry(toLowerCase(world), toLowerCase(region), permission.toLowerCase());
+                if (entry == null)
+                    return false;
 
-        for (Iterator<Entry> i = entity.getPermissions().iterator(); i.hasNext();) {
-            Entry entry = i.next();
-            if (entry.getPermission().equals(permission) &&
-                    (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                    (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                i.remove();
+                entity.getPermissions().remove(entry);
+                entity.unindexEntry(entry);
                 deleteEntry(entry);
-                cleanWorldsAndRegions();
+                cleanWorldsAndRegions(true);
+                markDirty(entity);
+                if (group)
+                    fireGroupChanged(entity.getName());
+                publish();
                 return true;
             }
         }
-        return false;
     }
 
     private void deleteEntry(Entry entry) {
@@ -315,6 +370,10 @@ public class InMemoryPermissionService implements PermissionService {
         found.setExpiration(expiration);
 
         createOrUpdateMembership(found);
+
+        dirtyMemberships.add(memberName);
+        dirtyGroupMembers.add(group.getName());
+        publish();
     }
 
     private void createOrUpdateMembership(Membership membership) {
@@ -332,6 +391,9 @@ public class InMemoryPermissionService implements PermissionService {
                 i.remove();
                 deleteMembership(membership);
                 forgetMembership(membership);
+                dirtyMemberships.add(memberName);
+                dirtyGroupMembers.add(group.getName());
+                publish();
                 return true;
             }
         }
@@ -339,34 +401,33 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final List<Membership> getGroups(UUID memberUuid) {
-        String memberName = canonicalizeUuid(memberUuid);
-        List<Membership> result = new ArrayList<>();
-        Set<Membership> memberships = getReverseMembershipMap().get(memberName);
-        if (memberships != null) {
-            result.addAll(memberships);
-            Collections.sort(result, MEMBERSHIP_GROUP_PRIORITY_COMPARATOR);
-        }
-        return result;
+    public final List<Membership> getGroups(UUID memberUuid) {
+        List<Membership> memberships = snapshot.playerMemberships.get(canonicalizeUuid(memberUuid));
+        if (memberships == null)
+            return new ArrayList<>();
+        return new ArrayList<>(memberships);
     }
 
     @Override
-    public synchronized final List<Membership> getMembers(String group) {
-        PermissionEntity groupEntity = getEntity(group, null, true, false);
-        if (groupEntity == null)
+    public final List<Membership> getMembers(String group) {
+        List<Membership> memberships = snapshot.groupMembers.get(group.toLowerCase());
+        if (memberships == null)
             return new ArrayList<>(); // compat with AvajePermissionDao
     
-        List<Membership> result = new ArrayList<>(groupEntity.getMemberships());
-        Collections.sort(result, MEMBERSHIP_MEMBER_COMPARATOR);
-        return result;
+        return new ArrayList<>(memberships);
     }
 
     @Override
-    public synchronized final PermissionEntity getEntity(String name, UUID uuid, boolean group) {
-        if (group)
-            return getGroups().get(name.toLowerCase());
-        else
-            return getPlayers().get(canonicalizeUuid(uuid));
+    public final PermissionEntity getEntity(String name, UUID uuid, boolean group) {
+        if (!group)
+            ensureResident(uuid, false);
+        // NB Entities are live, so not part of the snapshot
+        synchronized (this) {
+            if (group)
+                return getGroups().get(name.toLowerCase());
+            else
+                return getPlayers().get(canonicalizeUuid(uuid));
+        }
     }
 
     @Override
@@ -391,6 +452,7 @@ public class InMemoryPermissionService implements PermissionService {
                 if (!membership.getGroup().equals(group)) {
                     membership.getGroup().getMemberships().remove(membership);
                     deleteMembership(membership);
+                    dirtyGroupMembers.add(membership.getGroup().getName());
                 }
                 else {
                     found = membership;
@@ -412,6 +474,10 @@ public class InMemoryPermissionService implements PermissionService {
         
         getReverseMembershipMap().remove(playerName);
         rememberMembership(found);
+
+        dirtyMemberships.add(playerName);
+        dirtyGroupMembers.add(group.getName());
+        publish();
     }
 
     @Override
@@ -442,16 +508,8 @@ public class InMemoryPermissionService implements PermissionService {
             order += 100;
 
             // Check for a cycle
-            Deque<PermissionEntity> toCheck = new LinkedList<>();
-            toCheck.add(parent);
-            while (!toCheck.isEmpty()) {
-                PermissionEntity check = toCheck.removeFirst();
-
-                if (group.equals(check)) {
-                    throw new PermissionServiceException("This would result in an inheritance cycle!");
-                }
-                
-                toCheck.addAll(check.getParents());
+            if (group.equals(parent) || getDescendantSet(group.getName(), false).contains(parent.getName())) {
+                throw new PermissionServiceException("This would result in an inheritance cycle!");
             }
             
             dest.add(i);
@@ -491,6 +549,16 @@ public class InMemoryPermissionService implements PermissionService {
         for (Inheritance i : toUpdate) {
             createOrUpdateInheritance(i);
         }
+
+        // Only the group and its descendants have a different ancestry now
+        updateAncestry(group);
+        for (String descendant : new ArrayList<>(getDescendantSet(group.getName(), false))) {
+            updateAncestry(getGroups().get(descendant));
+        }
+
+        markDirty(group);
+        fireGroupChanged(group.getName());
+        publish();
     }
 
     private void setEntityParent(PermissionEntity entity, PermissionEntity parent) {
@@ -512,13 +580,23 @@ public class InMemoryPermissionService implements PermissionService {
         group.setPriority(priority);
         
         setEntityPriority(group, priority);
+
+        markDirty(group);
+
+        // Members' group lists are sorted by priority
+        for (Membership membership : group.getMemberships()) {
+            dirtyMemberships.add(membership.getMember());
+        }
+        publish();
     }
 
     private void setEntityPriority(PermissionEntity entity, int priority) {
         getPermissionDao().setEntityPriority(entity, priority);
     }
 
-    private void cleanWorldsAndRegions() {
+    // Drop regions and worlds no longer used by any entry, also deleting them
+    // from storage if told to
+    private void cleanWorldsAndRegions(boolean deleteUnused) {
         // Easier to just see what is used
         Set<PermissionRegion> usedRegions = new HashSet<>();
         Set<PermissionWorld> usedWorlds = new HashSet<>();
@@ -552,7 +630,10 @@ public class InMemoryPermissionService implements PermissionService {
             getWorlds().put(world.getName(), world);
         }
         
-        // Tell underlying DAO about deleted regions/worlds
+        // Tell underlying DAO about deleted regions/worlds. Not if players are
+        // loaded on demand though, since those not in memory may still use them.
+        if (!deleteUnused || playerLoader != null)
+            return;
         if (!regionsToDelete.isEmpty())
             deleteRegions(regionsToDelete);
         if (!worldsToDelete.isEmpty())
@@ -568,61 +649,91 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final boolean deleteEntity(String name, UUID uuid, boolean group) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
+    public final boolean deleteEntity(String name, UUID uuid, boolean group) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            if (!group)
+                ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!group && !isResident(uuid))
+                    continue;
+
+                PermissionEntity entity = getEntity(name, uuid, group, false);
         
-        if (group) {
-            // Deleting a group
-            if (entity != null) {
-                // Break parent/child relationship (in memory)
-                for (Inheritance i : entity.getInheritancesAsChild()) {
-                    i.getParent().getInheritancesAsParent().remove(i);
-                }
-                entity.getInheritancesAsChild().clear(); // meh, don't really have to
-                for (Inheritance i : entity.getInheritancesAsParent()) {
-                    i.getChild().getInheritancesAsChild().remove(i);
+                if (group) {
+                    // Deleting a group
+                    if (entity != null) {
+                        Set<String> descendants = new HashSet<>(getDescendantSet(entity.getName(), false));
+                        for (Membership membership : entity.getMemberships()) {
+                            dirtyMemberships.add(membership.getMember());
+                        }
+
+                        // Break parent/child relationship (in memory)
+                        for (Inheritance i : entity.getInheritancesAsChild()) {
+                            i.getParent().getInheritancesAsParent().remove(i);
+                        }
+                        entity.getInheritancesAsChild().clear(); // meh, don't really have to
+                        for (Inheritance i : entity.getInheritancesAsParent()) {
+                            i.getChild().getInheritancesAsChild().remove(i);
+                        }
+                        entity.getInheritancesAsParent().clear(); // meh, don't really have to
+                        // NB database relationships will be deleted by deleteEntity
+    
+                        // Delete group's entity
+                        getGroups().remove(entity.getName());
+                        deleteEntity(entity);
+                        cleanWorldsAndRegions(true);
+                        forgetMembershipGroup(entity);
+
+                        forgetAncestry(entity);
+                        for (String descendant : descendants) {
+                            updateAncestry(getGroups().get(descendant));
+                        }
+
+                        markDirty(entity);
+                        dirtyGroupMembers.add(entity.getName());
+                        fireGroupChanged(entity.getName());
+                        publish();
+                        return true;
+                    }
                 }
-                entity.getInheritancesAsParent().clear(); // meh, don't really have to
-                // NB database relationships will be deleted by deleteEntity
+                else {
+                    // Deleting a player
+                    name = canonicalizeUuid(uuid);
     
-                // Delete group's entity
-                getGroups().remove(entity.getName());
-                deleteEntity(entity);
-                cleanWorldsAndRegions();
-                forgetMembershipGroup(entity);
-                return true;
-            }
-        }
-        else {
-            // Deleting a player
-            name = canonicalizeUuid(uuid);
+                    boolean found = false;
     
-            boolean found = false;
+                    // Delete memberships
+                    Set<Membership> memberships = getReverseMembershipMap().get(name);
+                    if (memberships != null) {
+                        for (Membership membership : memberships) {
+                            membership.getGroup().getMemberships().remove(membership);
+                            deleteMembership(membership);
+                            dirtyGroupMembers.add(membership.getGroup().getName());
+                        }
     
-            // Delete memberships
-            Set<Membership> memberships = getReverseMembershipMap().get(name);
-            if (memberships != null) {
-                for (Membership membership : memberships) {
-                    membership.getGroup().getMemberships().remove(membership);
-                    deleteMembership(membership);
+                        getReverseMembershipMap().remove(name);
+                        dirtyMemberships.add(name);
+
+                        found = true;
+                    }
+
+                    if (entity != null) {
+                        // Delete player's entity
+                        getPlayers().remove(entity.getName());
+                        deleteEntity(entity);
+                        cleanWorldsAndRegions(true);
+                        markDirty(entity);
+                    }
+            
+                    publish();
+                    return found || entity != null;
                 }
-    
-                getReverseMembershipMap().remove(name);
-
-                found = true;
-            }
-
-            if (entity != null) {
-                // Delete player's entity
-                getPlayers().remove(entity.getName());
-                deleteEntity(entity);
-                cleanWorldsAndRegions();
+        
+                return false; // nothing to delete
             }
-            
-            return found || entity != null;
         }
-        
-        return false; // nothing to delete
     }
 
     private void deleteEntity(PermissionEntity entity) {
@@ -634,12 +745,40 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final List<String> getAncestry(String groupName) {
-        PermissionEntity group = getEntity(groupName, null, true, false);
-        if (group == null) // NB only time this will be null is if the default group doesn't exist
+    public final long getDataVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Returns the currently published snapshot. It is never modified, so it
+     * may be used without holding the lock. While the lock is held, it
+     * reflects every change made so far.
+     * 
+     * @return the current snapshot
+     */
+    public final MemorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public final List<String> getAncestry(String groupName) {
+        List<String> ancestry = snapshot.ancestry.get(groupName.toLowerCase());
+        if (ancestry == null) // NB only time this will be null is if the default group doesn't exist
             return new ArrayList<>();
-    
-        // Build list of group ancestors
+
+        return new ArrayList<>(ancestry);
+    }
+
+    @Override
+    public final Set<String> getDescendants(String groupName) {
+        Set<String> descendants = snapshot.descendants.get(groupName.toLowerCase());
+        if (descendants == null)
+            return new HashSet<>();
+        return new HashSet<>(descendants);
+    }
+
+    // Build list of group ancestors, farthest ancestors first
+    private static List<String> calculateAncestry(PermissionEntity group) {
         Set<String> ancestry = new LinkedHashSet<>();
         ancestry.add(group.getDisplayName());
         Deque<PermissionEntity> toAdd = new LinkedList<>(group.getParents());
@@ -654,16 +793,90 @@ public class InMemoryPermissionService implements PermissionService {
         List<String> ancestryList = new ArrayList<>(ancestry);
         Collections.reverse(ancestryList);
     
-        return ancestryList;
+        return Collections.unmodifiableList(ancestryList);
+    }
+
+    private Set<String> getDescendantSet(String lname, boolean create) {
+        Set<String> descendants = descendantsMap.get(lname);
+        if (descendants == null) {
+            if (!create)
+                return Collections.emptySet();
+            descendants = new HashSet<>();
+            descendantsMap.put(lname, descendants);
+        }
+        return descendants;
+    }
+
+    // Re-materialize a group's ancestry and fix up the descendants index
+    private void updateAncestry(PermissionEntity group) {
+        List<String> ancestry = calculateAncestry(group);
+        List<String> oldAncestry = ancestryMap.put(group.getName(), ancestry);
+        dirtyAncestry = true;
+
+        Set<String> ancestors = toLowerCase(ancestry);
+        if (oldAncestry != null) {
+            for (String ancestor : toLowerCase(oldAncestry)) {
+                if (!ancestors.contains(ancestor))
+                    getDescendantSet(ancestor, false).remove(group.getName());
+            }
+        }
+        for (String ancestor : ancestors) {
+            if (!ancestor.equals(group.getName()))
+                getDescendantSet(ancestor, true).add(group.getName());
+        }
+    }
+
+    private void forgetAncestry(PermissionEntity group) {
+        List<String> oldAncestry = ancestryMap.remove(group.getName());
+        dirtyAncestry = true;
+        if (oldAncestry != null) {
+            for (String ancestor : toLowerCase(oldAncestry)) {
+                getDescendantSet(ancestor, false).remove(group.getName());
+            }
+        }
+        descendantsMap.remove(group.getName());
+    }
+
+    private void rebuildAncestry() {
+        ancestryMap.clear();
+        descendantsMap.clear();
+        for (PermissionEntity group : getGroups().values()) {
+            updateAncestry(group);
+        }
+    }
+
+    private static String toLowerCase(String name) {
+        return name == null ? null : name.toLowerCase();
+    }
+
+    private static Set<String> toLowerCase(Collection<String> names) {
+        Set<String> result = new HashSet<>(names.size());
+        for (String name : names) {
+            result.add(name.toLowerCase());
+        }
+        return result;
     }
 
     @Override
-    public synchronized final List<Entry> getEntries(String name, UUID uuid, boolean group) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null) // NB special consideration for non-existent default group
+    public final List<Entry> getEntries(String name, UUID uuid, boolean group) {
+        EntityView view = getView(name, uuid, group);
+        if (view == null) // NB special consideration for non-existent default group
             return Collections.emptyList();
     
-        return new ArrayList<>(entity.getPermissions());
+        return new ArrayList<>(view.entries);
+    }
+
+    @Override
+    public final List<Entry> getEntries(String name, UUID uuid, boolean group, Collection<String> worlds) {
+        EntityView view = getView(name, uuid, group);
+        if (view == null) // NB special consideration for non-existent default group
+            return Collections.emptyList();
+
+        List<Entry> result = new ArrayList<>(view.getEntries(null));
+        for (String world : worlds) {
+            result.addAll(view.getEntries(world));
+        }
+        return result;
     }
 
     @Override
@@ -671,6 +884,10 @@ public class InMemoryPermissionService implements PermissionService {
         PermissionEntity group = getEntity(name, null, true, false); // so we know it was created
         if (group == null) {
             group = getEntity(name, null, true, true);
+            updateAncestry(group);
+            markDirty(group);
+            fireGroupChanged(group.getName());
+            publish();
             return true;
         }
         else
@@ -678,66 +895,89 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final List<String> getEntityNames(boolean group) {
-        Collection<PermissionEntity> entities;
+    public synchronized final List<PermissionEntity> findEntities(String permission, boolean group) {
+        // NB index is in step with the memory state while lock is held
+        List<PermissionEntity> result = new ArrayList<>();
+        for (String key : permissionIndex.search(permission.toLowerCase(), group)) {
+            PermissionEntity entity = group ? getGroups().get(key) : getPlayers().get(key);
+            if (entity != null)
+                result.add(entity);
+        }
+        return result;
+    }
+
+    @Override
+    public final List<String> getEntityNames(boolean group) {
+        Collection<EntityView> views;
         if (group)
-            entities = getGroups().values();
+            views = snapshot.groupViews.values();
         else
-            entities = getPlayers().values();
-        List<String> result = new ArrayList<>(entities.size());
-        for (PermissionEntity entity : entities) {
-            result.add(entity.getDisplayName());
+            views = snapshot.playerViews.values();
+        List<String> result = new ArrayList<>(views.size());
+        for (EntityView view : views) {
+            result.add(view.displayName);
         }
         return result;
     }
 
     @Override
-    public synchronized final Object getMetadata(String name, UUID uuid, boolean group, String metadataName) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null)
+    public final Object getMetadata(String name, UUID uuid, boolean group, String metadataName) {
+        EntityView view = getView(name, uuid, group);
+        if (view == null)
             return null;
 
-        EntityMetadata em = entity.getMetadataMap().get(metadataName.toLowerCase());
-        if (em != null)
-            return em.getValue();
-        else
-            return null;
+        return view.metadataValues.get(metadataName.toLowerCase());
     }
 
     @Override
-    public synchronized final List<EntityMetadata> getAllMetadata(String name, UUID uuid, boolean group) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null)
+    public final List<EntityMetadata> getAllMetadata(String name, UUID uuid, boolean group) {
+        EntityView view = getView(name, uuid, group);
+        if (view == null)
             return Collections.emptyList();
         
-        return new ArrayList<>(entity.getMetadata());
+        return new ArrayList<>(view.metadata);
     }
 
     @Override
-    public synchronized final void setMetadata(String name, UUID uuid, boolean group, String metadataName, Object value) {
-        PermissionEntity owner;
-        if (group) {
-            owner = getGroup(name);
-        }
-        else {
-            owner = getEntity(name, uuid, group, true);
-        }
+    public final void setMetadata(String name, UUID uuid, boolean group, String metadataName, Object value) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            if (!group)
+                ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!group && !isResident(uuid))
+                    continue;
+
+                PermissionEntity owner;
+                if (group) {
+                    owner = getGroup(name);
+                }
+                else {
+                    owner = getEntity(name, uuid, group, true);
+                }
 
-        metadataName = metadataName.toLowerCase();
+                metadataName = metadataName.toLowerCase();
         
-        EntityMetadata found = owner.getMetadataMap().get(metadataName);
+                EntityMetadata found = owner.getMetadataMap().get(metadataName);
 
-        if (found == null) {
-            found = new EntityMetadata();
-            found.setEntity(owner);
-            found.setName(metadataName);
+                if (found == null) {
+                    found = new EntityMetadata();
+                    found.setEntity(owner);
+                    found.setName(metadataName);
             
-            owner.getMetadata().add(found);
-            owner.getMetadataMap().put(metadataName, found);
-        }
+                    owner.getMetadata().add(found);
+                    owner.getMetadataMap().put(metadataName, found);
+                }
         
-        found.setValue(value);
-        createOrUpdateMetadata(found);
+                found.setValue(value);
+                createOrUpdateMetadata(found);
+
+                markDirty(owner);
+                publish();
+                return;
+            }
+        }
     }
 
     private void createOrUpdateMetadata(EntityMetadata metadata) {
@@ -745,23 +985,36 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final boolean unsetMetadata(String name, UUID uuid, boolean group, String metadataName) {
-        PermissionEntity entity = getEntity(name, uuid, group, false);
-        if (entity == null)
-            return false;
-
-        metadataName = metadataName.toLowerCase();
-
-        for (Iterator<EntityMetadata> i = entity.getMetadata().iterator(); i.hasNext();) {
-            EntityMetadata em = i.next();
-            if (em.getName().equals(metadataName)) {
-                i.remove();
-                entity.getMetadataMap().remove(metadataName);
-                deleteMetadata(em);
-                return true;
+    public final boolean unsetMetadata(String name, UUID uuid, boolean group, String metadataName) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            if (!group)
+                ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!group && !isResident(uuid))
+                    continue;
+
+                PermissionEntity entity = getEntity(name, uuid, group, false);
+                if (entity == null)
+                    return false;
+
+                metadataName = metadataName.toLowerCase();
+
+                for (Iterator<EntityMetadata> i = entity.getMetadata().iterator(); i.hasNext();) {
+                    EntityMetadata em = i.next();
+                    if (em.getName().equals(metadataName)) {
+                        i.remove();
+                        entity.getMetadataMap().remove(metadataName);
+                        deleteMetadata(em);
+                        markDirty(entity);
+                        publish();
+                        return true;
+                    }
+                }
+                return false;
             }
         }
-        return false;
     }
 
     private void deleteMetadata(EntityMetadata metadata) {
@@ -769,20 +1022,35 @@ public class InMemoryPermissionService implements PermissionService {
     }
 
     @Override
-    public synchronized final void updateDisplayName(UUID uuid, String displayName) {
-        PermissionEntity entity = getEntity("ignored", uuid, false, false);
-        if (entity != null && !entity.getDisplayName().equals(displayName)) {
-            entity.setDisplayName(displayName);
-            updateDisplayName(entity);
-        }
+    public final void updateDisplayName(UUID uuid, String displayName) {
+        for (;;) {
+            // Load outside of the lock, the writer thread may need it meanwhile
+            ensureResident(uuid, true);
+            synchronized (this) {
+                // Evicted in the meantime? Then load them again
+                if (!isResident(uuid))
+                    continue;
+
+                PermissionEntity entity = getEntity("ignored", uuid, false, false);
+                if (entity != null && !entity.getDisplayName().equals(displayName)) {
+                    entity.setDisplayName(displayName);
+                    updateDisplayName(entity);
+                    markDirty(entity);
+                }
         
-        Set<Membership> memberships = getReverseMembershipMap().get(canonicalizeUuid(uuid));
-        if (memberships != null) {
-            for (Membership membership : memberships) {
-                if (!membership.getDisplayName().equals(displayName)) {
-                    membership.setDisplayName(displayName);
-                    updateDisplayName(membership);
+                Set<Membership> memberships = getReverseMembershipMap().get(canonicalizeUuid(uuid));
+                if (memberships != null) {
+                    for (Membership membership : memberships) {
+                        if (!membership.getDisplayName().equals(displayName)) {
+                            membership.setDisplayName(displayName);
+                            updateDisplayName(membership);
+                            dirtyMemberships.add(membership.getMember());
+                            dirtyGroupMembers.add(membership.getGroup().getName());
+                        }
+                    }
                 }
+                publish();
+                return;
             }
         }
     }
@@ -822,6 +1090,253 @@ public class InMemoryPermissionService implements PermissionService {
         }
     }
 
+    private static String getEntityKey(String name, UUID uuid, boolean group) {
+        return checkNameUuid(name, uuid, group).toLowerCase();
+    }
+
+    private EntityView getView(String name, UUID uuid, boolean group) {
+        if (!group)
+            ensureResident(uuid, false);
+        return snapshot.getView(getEntityKey(name, uuid, group), group);
+    }
+
+    /**
+     * Load players on demand rather than expecting the memory state to hold
+     * every player. Once set, only resident players are merged by
+     * {@link #mergeMemoryState(MemoryState, Collection, Collection)}.
+     * Writes to a player that isn't resident wait for the player to be
+     * loaded on the calling thread.
+     * 
+     * @param playerLoader the player loader
+     */
+    public final void setPlayerLoader(PlayerLoader playerLoader) {
+        this.playerLoader = playerLoader;
+    }
+
+    /**
+     * Returns the canonical UUIDs of players currently loaded on demand.
+     * 
+     * @return the resident players
+     */
+    public final Set<String> getResidentPlayers() {
+        return new HashSet<>(residentPlayers.keySet());
+    }
+
+    // Make sure the player is in memory, loading them if necessary. Never
+    // called with the lock held. Unless told to wait, the loader may instead
+    // load the player asynchronously, and they are missing until then.
+    // NB writers wait, so a write to a player that isn't resident blocks the
+    // calling thread (e.g. the main thread, for commands) for the load.
+    private void ensureResident(UUID uuid, boolean wait) {
+        PlayerLoader loader = playerLoader;
+        if (loader == null || uuid == null)
+            return;
+
+        String key = canonicalizeUuid(uuid);
+        long now = System.currentTimeMillis();
+        Long lastAccess = residentPlayers.get(key);
+        if (lastAccess != null) {
+            // NB replace() so an evicted player doesn't appear resident
+            if (now - lastAccess >= PLAYER_ACCESS_GRANULARITY)
+                residentPlayers.replace(key, lastAccess, now);
+            return;
+        }
+
+        MemoryState loaded = loader.loadPlayer(uuid, wait);
+        if (loaded == null)
+            return; // Loading asynchronously
+        synchronized (this) {
+            if (residentPlayers.putIfAbsent(key, now) != null)
+                return; // Someone beat us to it, and theirs may be newer
+            mergeMemoryState(loaded, Collections.<String>emptyList(), Collections.singletonList(key));
+        }
+    }
+
+    // Whether the player is in memory. Writers check this with the lock held,
+    // since the player may have been evicted since ensureResident().
+    private boolean isResident(UUID uuid) {
+        return playerLoader == null || uuid == null || residentPlayers.containsKey(canonicalizeUuid(uuid));
+    }
+
+    /**
+     * Drop players loaded on demand from memory. Players are evicted least
+     * recently used first while there are more than the given number
+     * resident, and regardless of that number once they have been idle for
+     * the given time. Only the in-memory state is modified.
+     * 
+     * @param pinned players that must stay resident (e.g. online players)
+     * @param idleTime milliseconds after which an unused player is evicted
+     * @param maxResident maximum number of resident players
+     * @return the number of players evicted
+     */
+    public synchronized final int evictPlayers(Collection<UUID> pinned, long idleTime, int maxResident) {
+        if (playerLoader == null)
+            return 0;
+
+        Set<String> keep = new HashSet<>();
+        for (UUID uuid : pinned) {
+            keep.add(canonicalizeUuid(uuid));
+        }
+
+        // Copy, since access times change concurrently
+        List<Map.Entry<String, Long>> candidates = new ArrayList<>(residentPlayers.size());
+        for (Map.Entry<String, Long> me : residentPlayers.entrySet()) {
+            candidates.add(new AbstractMap.SimpleImmutableEntry<>(me.getKey(), me.getValue()));
+        }
+        Collections.sort(candidates, LAST_ACCESS_COMPARATOR);
+
+        long now = System.currentTimeMillis();
+        int excess = candidates.size() - maxResident;
+        int evicted = 0;
+        for (Map.Entry<String, Long> me : candidates) {
+            if (keep.contains(me.getKey()))
+                continue;
+            if (excess <= 0 && now - me.getValue() < idleTime)
+                break; // Everything after this was used more recently
+
+            residentPlayers.remove(me.getKey());
+            PermissionEntity player = getPlayers().remove(me.getKey());
+            if (player != null)
+                markDirty(player);
+            excess--;
+            evicted++;
+        }
+
+        if (evicted > 0)
+            publish();
+        return evicted;
+    }
+
+    // Re-publish views of objects whose database ids have since been assigned,
+    // so the snapshot carries the ids too. Called by the DAO with the lock
+    // held. If not publishing now, the write in progress will.
+    void republish(Collection<PermissionEntity> entities, Collection<Membership> memberships, boolean publishNow) {
+        for (PermissionEntity entity : entities) {
+            markDirty(entity);
+        }
+        for (Membership membership : memberships) {
+            dirtyMemberships.add(membership.getMember());
+            dirtyGroupMembers.add(membership.getGroup().getName());
+        }
+        if (publishNow)
+            publish();
+    }
+
+    private void markDirty(PermissionEntity entity) {
+        if (entity.isGroup())
+            dirtyGroups.add(entity.getName());
+        else
+            dirtyPlayers.add(entity.getName());
+    }
+
+    // Publish pending changes as a new snapshot, then notify listeners
+    private void publish() {
+        if (dirtyGroups.isEmpty() && dirtyPlayers.isEmpty() && dirtyMemberships.isEmpty() &&
+                dirtyGroupMembers.isEmpty() && !dirtyAncestry && changedGroups.isEmpty())
+            return; // Nothing changed, keep the current snapshot (and version)
+
+        MemorySnapshot old = snapshot;
+
+        // Only the dirty entries are rebuilt, and only the shards holding
+        // them are copied. Everything else is shared with the old snapshot.
+        SnapshotMap<EntityView> groupViews = old.groupViews;
+        if (!dirtyGroups.isEmpty()) {
+            groupViews = publishEntities(getGroups(), dirtyGroups, groupViews, true);
+        }
+
+        SnapshotMap<EntityView> playerViews = old.playerViews;
+        List<String> changedPlayers = Collections.emptyList();
+        if (!dirtyPlayers.isEmpty()) {
+            changedPlayers = new ArrayList<>(dirtyPlayers);
+            playerViews = publishEntities(getPlayers(), dirtyPlayers, playerViews, false);
+        }
+
+        SnapshotMap<List<Membership>> playerMemberships = old.playerMemberships;
+        if (!dirtyMemberships.isEmpty()) {
+            SnapshotMap.Editor<List<Membership>> editor = playerMemberships.edit();
+            for (String member : dirtyMemberships) {
+                Set<Membership> memberships = getReverseMembershipMap().get(member);
+                if (memberships == null || memberships.isEmpty())
+                    editor.remove(member);
+                else
+                    editor.put(member, copyMemberships(memberships, MEMBERSHIP_GROUP_PRIORITY_COMPARATOR));
+            }
+            playerMemberships = editor.build();
+            dirtyMemberships.clear();
+        }
+
+        SnapshotMap<List<Membership>> groupMembers = old.groupMembers;
+        if (!dirtyGroupMembers.isEmpty()) {
+            SnapshotMap.Editor<List<Membership>> editor = groupMembers.edit();
+            for (String groupName : dirtyGroupMembers) {
+                PermissionEntity group = getGroups().get(groupName);
+                if (group == null)
+                    editor.remove(groupName);
+                else
+                    editor.put(groupName, copyMemberships(group.getMemberships(), MEMBERSHIP_MEMBER_COMPARATOR));
+            }
+            groupMembers = editor.build();
+            dirtyGroupMembers.clear();
+        }
+
+        Map<String, List<String>> ancestry = old.ancestry;
+        Map<String, Set<String>> descendants = old.descendants;
+        if (dirtyAncestry) {
+            ancestry = new HashMap<>(ancestryMap); // values are already unmodifiable
+            descendants = new HashMap<>(descendantsMap.size());
+            for (Map.Entry<String, Set<String>> me : descendantsMap.entrySet()) {
+                descendants.put(me.getKey(), Collections.unmodifiableSet(new HashSet<>(me.getValue())));
+            }
+            dirtyAncestry = false;
+        }
+
+        snapshot = new MemorySnapshot(groupViews, playerViews, playerMemberships, groupMembers, ancestry, descendants, old.version + 1L);
+
+        if (!changedGroups.isEmpty()) {
+            List<String> toFire = new ArrayList<>(changedGroups);
+            changedGroups.clear();
+            for (String groupName : toFire) {
+                for (PermissionServiceListener listener : listeners) {
+                    listener.groupChanged(groupName);
+                }
+            }
+        }
+        for (String player : changedPlayers) {
+            UUID uuid = uncanonicalizeUuid(player);
+            for (PermissionServiceListener listener : listeners) {
+                listener.playerChanged(uuid);
+            }
+        }
+    }
+
+    private SnapshotMap<EntityView> publishEntities(Map<String, PermissionEntity> source, Set<String> dirty, SnapshotMap<EntityView> oldViews, boolean group) {
+        SnapshotMap.Editor<EntityView> views = oldViews.edit();
+        for (String name : dirty) {
+            PermissionEntity entity = source.get(name);
+            EntityView oldView;
+            EntityView newView = null;
+            if (entity == null) {
+                oldView = views.remove(name);
+            }
+            else {
+                newView = new EntityView(entity);
+                oldView = views.put(name, newView);
+            }
+            permissionIndex.update(name, group, oldView, newView);
+        }
+        dirty.clear();
+        return views.build();
+    }
+
+    private static List<Membership> copyMemberships(Collection<Membership> memberships, Comparator<Membership> comparator) {
+        List<Membership> result = new ArrayList<>(memberships.size());
+        for (Membership membership : memberships) {
+            result.add(MemorySnapshot.copyMembership(membership));
+        }
+        Collections.sort(result, comparator);
+        return Collections.unmodifiableList(result);
+    }
+
     private static String checkNameUuid(String name, UUID uuid, boolean group) {
         if (group) {
             return name;
@@ -909,9 +1424,262 @@ public class InMemoryPermissionService implements PermissionService {
     public synchronized final MemoryState setMemoryState(MemoryState memoryState) {
         MemoryState old = this.memoryState;
         this.memoryState = memoryState;
+        for (PermissionEntity entity : memoryState.getGroups().values()) {
+            entity.updateEntryIndex();
+        }
+        for (PermissionEntity entity : memoryState.getPlayers().values()) {
+            entity.updateEntryIndex();
+        }
+        rebuildAncestry();
+
+        // Re-publish everything, dropping whatever no longer exists
+        MemorySnapshot published = snapshot;
+        dirtyGroups.addAll(published.groupViews.keySet());
+        dirtyGroups.addAll(memoryState.getGroups().keySet());
+        dirtyPlayers.addAll(published.playerViews.keySet());
+        dirtyPlayers.addAll(memoryState.getPlayers().keySet());
+        dirtyMemberships.addAll(published.playerMemberships.keySet());
+        dirtyMemberships.addAll(memoryState.getReverseMembershipMap().keySet());
+        dirtyGroupMembers.addAll(published.groupMembers.keySet());
+        dirtyGroupMembers.addAll(memoryState.getGroups().keySet());
+        changedGroups.clear();
+        publish();
+
+        fireMemoryStateChanged(diff(published, snapshot));
         return old;
     }
 
+    // Structural diff between two published snapshots
+    static MemoryStateDiff diff(MemorySnapshot before, MemorySnapshot after) {
+        Set<String> groups = new HashSet<>();
+        Set<String> players = new HashSet<>();
+
+        Set<String> names = new HashSet<>(before.groupViews.keySet());
+        names.addAll(after.groupViews.keySet());
+        for (String name : names) {
+            EntityView beforeView = before.groupViews.get(name);
+            EntityView afterView = after.groupViews.get(name);
+            if (beforeView == null || afterView == null || !beforeView.isEquivalent(afterView) ||
+                    !Objects.equals(before.ancestry.get(name), after.ancestry.get(name)))
+                groups.add(name);
+
+            // Members who joined, left, or whose expiration changed
+            Map<String, Date> beforeMembers = getMemberExpirations(before.groupMembers.get(name));
+            Map<String, Date> afterMembers = getMemberExpirations(after.groupMembers.get(name));
+            if (!beforeMembers.equals(afterMembers)) {
+                Set<String> members = new HashSet<>(beforeMembers.keySet());
+                members.addAll(afterMembers.keySet());
+                for (String member : members) {
+                    if (beforeMembers.containsKey(member) != afterMembers.containsKey(member) ||
+                            !Objects.equals(beforeMembers.get(member), afterMembers.get(member)))
+                        players.add(member);
+                }
+            }
+        }
+
+        names = new HashSet<>(before.playerViews.keySet());
+        names.addAll(after.playerViews.keySet());
+        for (String name : names) {
+            EntityView beforeView = before.playerViews.get(name);
+            EntityView afterView = after.playerViews.get(name);
+            if (beforeView == null || afterView == null || !beforeView.isEquivalent(afterView))
+                players.add(name);
+        }
+
+        Set<String> descendants = new HashSet<>();
+        for (String name : groups) {
+            Set<String> beforeDescendants = before.descendants.get(name);
+            if (beforeDescendants != null)
+                descendants.addAll(beforeDescendants);
+            Set<String> afterDescendants = after.descendants.get(name);
+            if (afterDescendants != null)
+                descendants.addAll(afterDescendants);
+        }
+        descendants.removeAll(groups);
+
+        Set<UUID> playerUuids = new HashSet<>(players.size());
+        for (String player : players) {
+            playerUuids.add(uncanonicalizeUuid(player));
+        }
+
+        return new MemoryStateDiff(groups, descendants, playerUuids);
+    }
+
+    private static Map<String, Date> getMemberExpirations(List<Membership> memberships) {
+        if (memberships == null)
+            return Collections.emptyMap();
+        Map<String, Date> result = new HashMap<>(memberships.size());
+        for (Membership membership : memberships) {
+            result.put(membership.getMember(), membership.getExpiration());
+        }
+        return result;
+    }
+
+    /**
+     * Replace the named entities with those in the given (partial) memory
+     * state. Entities that are named but missing from the memory state are
+     * considered deleted. Only the in-memory state is modified; the DAO is
+     * not notified.
+     * 
+     * @param changes memory state holding the updated entities
+     * @param groupNames lowercase names of the changed groups
+     * @param playerNames canonical UUIDs of the changed players
+     */
+    public synchronized final void mergeMemoryState(MemoryState changes, Collection<String> groupNames, Collection<String> playerNames) {
+        boolean replaced = false; // whether existing entries may have been dropped
+        for (String name : groupNames) {
+            PermissionEntity loaded = changes.getGroups().get(name);
+            PermissionEntity group = getGroups().get(name);
+            replaced |= group != null;
+            if (loaded == null) {
+                if (group != null)
+                    forgetGroup(group);
+                continue;
+            }
+
+            group = getEntity(memoryState, loaded.getDisplayName(), null, true);
+            group.setId(loaded.getId());
+            group.setDisplayName(loaded.getDisplayName());
+            group.setPriority(loaded.getPriority());
+            mergeEntity(group, loaded);
+
+            // Parents
+            for (Inheritance i : group.getInheritancesAsChild()) {
+                i.getParent().getInheritancesAsParent().remove(i);
+            }
+            group.getInheritancesAsChild().clear();
+            for (Inheritance loadedInheritance : loaded.getInheritancesAsChild()) {
+                PermissionEntity parent = getEntity(memoryState, loadedInheritance.getParent().getDisplayName(), null, true);
+                markDirty(parent); // In case it was just created
+
+                Inheritance i = new Inheritance();
+                i.setChild(group);
+                i.setParent(parent);
+                i.setOrdering(loadedInheritance.getOrdering());
+                group.getInheritancesAsChild().add(i);
+                parent.getInheritancesAsParent().add(i);
+            }
+
+            // Members
+            for (Membership membership : group.getMemberships()) {
+                forgetMembership(membership);
+                dirtyMemberships.add(membership.getMember());
+            }
+            group.getMemberships().clear();
+            for (Membership loadedMembership : loaded.getMemberships()) {
+                Membership membership = new Membership();
+                membership.setId(loadedMembership.getId());
+                membership.setMember(loadedMembership.getMember());
+                membership.setDisplayName(loadedMembership.getDisplayName());
+                membership.setGroup(group);
+                membership.setExpiration(loadedMembership.getExpiration());
+                group.getMemberships().add(membership);
+                rememberMembership(membership);
+                dirtyMemberships.add(membership.getMember());
+            }
+
+            markDirty(group);
+            dirtyGroupMembers.add(group.getName());
+        }
+        if (!groupNames.isEmpty())
+            rebuildAncestry();
+
+        for (String name : playerNames) {
+            if (playerLoader != null && !residentPlayers.containsKey(name))
+                continue; // Will be loaded when next needed
+
+            PermissionEntity loaded = changes.getPlayers().get(name);
+            PermissionEntity player = getPlayers().get(name);
+            replaced |= player != null;
+            if (loaded == null) {
+                if (player != null) {
+                    getPlayers().remove(player.getName());
+                    markDirty(player);
+                }
+                continue;
+            }
+
+            player = getEntity(memoryState, loaded.getDisplayName(), loaded.getUuid(), false);
+            player.setId(loaded.getId());
+            player.setDisplayName(loaded.getDisplayName());
+            mergeEntity(player, loaded);
+            markDirty(player);
+        }
+
+        // Replaced entries may have been the last to use some regions/worlds.
+        // Storage has already been taken care of by whoever changed them.
+        if (replaced)
+            cleanWorldsAndRegions(false);
+
+        MemorySnapshot published = snapshot;
+        publish();
+
+        fireMemoryStateChanged(diff(published, snapshot));
+    }
+
+    // Replace an entity's permissions and metadata with those of the loaded copy
+    private void mergeEntity(PermissionEntity entity, PermissionEntity loaded) {
+        entity.getPermissions().clear();
+        for (Entry loadedEntry : loaded.getPermissions()) {
+            Entry entry = new Entry();
+            entry.setId(loadedEntry.getId());
+            entry.setRegion(loadedEntry.getRegion() == null ? null : mergeRegion(loadedEntry.getRegion()));
+            entry.setWorld(loadedEntry.getWorld() == null ? null : mergeWorld(loadedEntry.getWorld()));
+            entry.setPermission(loadedEntry.getPermission());
+            entry.setValue(loadedEntry.isValue());
+            entry.setEntity(entity);
+            entity.getPermissions().add(entry);
+        }
+        entity.updateEntryIndex();
+
+        entity.getMetadata().clear();
+        for (EntityMetadata loadedMetadata : loaded.getMetadata()) {
+            EntityMetadata metadata = new EntityMetadata();
+            metadata.setId(loadedMetadata.getId());
+            metadata.setName(loadedMetadata.getName());
+            metadata.setValue(loadedMetadata.getValue());
+            metadata.setEntity(entity);
+            entity.getMetadata().add(metadata);
+        }
+        entity.updateMetadataMap();
+    }
+
+    private PermissionRegion mergeRegion(PermissionRegion loaded) {
+        PermissionRegion region = getRegion(memoryState, loaded.getName());
+        if (loaded.getId() != null)
+            region.setId(loaded.getId());
+        return region;
+    }
+
+    private PermissionWorld mergeWorld(PermissionWorld loaded) {
+        PermissionWorld world = getWorld(memoryState, loaded.getName());
+        if (loaded.getId() != null)
+            world.setId(loaded.getId());
+        return world;
+    }
+
+    // Remove a group from memory only (see deleteEntity)
+    private void forgetGroup(PermissionEntity group) {
+        for (Membership membership : group.getMemberships()) {
+            dirtyMemberships.add(membership.getMember());
+        }
+
+        for (Inheritance i : group.getInheritancesAsChild()) {
+            i.getParent().getInheritancesAsParent().remove(i);
+        }
+        group.getInheritancesAsChild().clear();
+        for (Inheritance i : group.getInheritancesAsParent()) {
+            i.getChild().getInheritancesAsChild().remove(i);
+        }
+        group.getInheritancesAsParent().clear();
+
+        getGroups().remove(group.getName());
+        forgetMembershipGroup(group);
+
+        markDirty(group);
+        dirtyGroupMembers.add(group.getName());
+    }
+
     public static class MemoryState {
         
         private final Map<String, PermissionRegion> regions = new HashMap<>();
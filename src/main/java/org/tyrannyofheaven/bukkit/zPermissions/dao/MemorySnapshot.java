@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * Read-only view of an {@link InMemoryPermissionService}'s state. Instances
+ * (and everything reachable from their maps) are never modified once
+ * published, so they may be read without locking. Writers publish a new
+ * instance that shares all unchanged maps with the previous one. The
+ * per-entity maps are {@link SnapshotMap}s, so even a changed one shares
+ * most of its contents with its predecessor.
+ * 
+ * <p>Entities themselves are not part of the snapshot, only detached copies
+ * of what readers need. The live entities may only be touched while holding
+ * the service's lock.
+ * 
+ * <p>Public only so a consistent state can be handed to
+ * {@link MemoryStateFile#dump(MemorySnapshot, long, java.util.Date, boolean)}
+ * from outside this package.
+ *
+ * @author zerothangel
+ */
+public final class MemorySnapshot {
+
+    final SnapshotMap<EntityView> groupViews; // lowercase name -> group
+
+    final SnapshotMap<EntityView> playerViews; // canonical UUID -> player
+
+    final SnapshotMap<List<Membership>> playerMemberships; // canonical UUID -> memberships sorted by group priority
+
+    final SnapshotMap<List<Membership>> groupMembers; // lowercase name -> memberships sorted by member
+
+    final Map<String, List<String>> ancestry; // lowercase name -> ancestry
+
+    final Map<String, Set<String>> descendants; // lowercase name -> lowercase descendant names
+
+    final long version; // incremented with each published snapshot
+
+    MemorySnapshot() {
+        this(SnapshotMap.<EntityView>empty(), SnapshotMap.<EntityView>empty(),
+                SnapshotMap.<List<Membership>>empty(), SnapshotMap.<List<Membership>>empty(),
+                Collections.<String, List<String>>emptyMap(), Collections.<String, Set<String>>emptyMap(), 0L);
+    }
+
+    MemorySnapshot(SnapshotMap<EntityView> groupViews, SnapshotMap<EntityView> playerViews,
+            SnapshotMap<List<Membership>> playerMemberships, SnapshotMap<List<Membership>> groupMembers,
+            Map<String, List<String>> ancestry, Map<String, Set<String>> descendants, long version) {
+        this.groupViews = groupViews;
+        this.playerViews = playerViews;
+        this.playerMemberships = playerMemberships;
+        this.groupMembers = groupMembers;
+        this.ancestry = ancestry;
+        this.descendants = descendants;
+        this.version = version;
+    }
+
+    EntityView getView(String lname, boolean group) {
+        return group ? groupViews.get(lname) : playerViews.get(lname);
+    }
+
+    // Detached copy of a membership, safe from further modification by writers
+    static Membership copyMembership(Membership membership) {
+        Membership result = new Membership();
+        result.setId(membership.getId());
+        result.setMember(membership.getMember());
+        result.setDisplayName(membership.getDisplayName());
+        result.setGroup(membership.getGroup());
+        result.setExpiration(membership.getExpiration() == null ? null : new Date(membership.getExpiration().getTime()));
+        return result;
+    }
+
+    /**
+     * Detached copies of an entity's permissions and metadata.
+     */
+    static final class EntityView {
+
+        final Long id;
+
+        final String name;
+
+        final String displayName;
+
+        final List<Entry> entries;
+
+        final Map<String, List<Entry>> worldEntries = new HashMap<>(); // world -> entries (incl. region-specific)
+
+        final Map<String, Map<String, Map<String, Boolean>>> index = new HashMap<>(); // world -> region -> permission -> value
+
+        final List<EntityMetadata> metadata;
+
+        final Map<String, Object> metadataValues = new HashMap<>();
+
+        final int priority;
+
+        final List<Inheritance> parents; // detached copies, parents are live groups
+
+        EntityView(PermissionEntity entity) {
+            id = entity.getId();
+            name = entity.getName();
+            displayName = entity.getDisplayName();
+            priority = entity.getPriority();
+
+            parents = new ArrayList<>(entity.getInheritancesAsChild().size());
+            for (Inheritance i : entity.getInheritancesAsChild()) {
+                Inheritance copy = new Inheritance();
+                copy.setId(i.getId());
+                copy.setChild(entity);
+                copy.setParent(i.getParent());
+                copy.setOrdering(i.getOrdering());
+                parents.add(copy);
+            }
+
+            entries = new ArrayList<>(entity.getPermissions().size());
+            for (Entry entry : entity.getPermissions()) {
+                Entry copy = new Entry();
+                copy.setId(entry.getId());
+                copy.setEntity(entity);
+                copy.setRegion(entry.getRegion());
+                copy.setWorld(entry.getWorld());
+                copy.setPermission(entry.getPermission());
+                copy.setValue(entry.isValue());
+                entries.add(copy);
+
+                String world = copy.getWorld() == null ? null : copy.getWorld().getName();
+                String region = copy.getRegion() == null ? null : copy.getRegion().getName();
+
+                List<Entry> worldList = worldEntries.get(world);
+                if (worldList == null) {
+                    worldList = new ArrayList<>();
+                    worldEntries.put(world, worldList);
+                }
+                worldList.add(copy);
+
+                Map<String, Map<String, Boolean>> worldIndex = index.get(world);
+                if (worldIndex == null) {
+                    worldIndex = new HashMap<>();
+                    index.put(world, worldIndex);
+                }
+                Map<String, Boolean> regionIndex = worldIndex.get(region);
+                if (regionIndex == null) {
+                    regionIndex = new HashMap<>();
+                    worldIndex.put(region, regionIndex);
+                }
+                regionIndex.put(copy.getPermission(), copy.isValue());
+            }
+
+            metadata = new ArrayList<>(entity.getMetadata().size());
+            for (EntityMetadata em : entity.getMetadata()) {
+                EntityMetadata copy = new EntityMetadata();
+                copy.setId(em.getId());
+                copy.setEntity(entity);
+                copy.setName(em.getName());
+                copy.setValue(em.getValue());
+                metadata.add(copy);
+
+                metadataValues.put(copy.getName().toLowerCase(), copy.getValue());
+            }
+        }
+
+        Boolean getPermission(String world, String region, String permission) {
+            Map<String, Map<String, Boolean>> worldIndex = index.get(world);
+            if (worldIndex == null)
+                return null;
+            Map<String, Boolean> regionIndex = worldIndex.get(region);
+            if (regionIndex == null)
+                return null;
+            return regionIndex.get(permission);
+        }
+
+        List<Entry> getEntries(String world) {
+            List<Entry> result = worldEntries.get(world);
+            return result == null ? Collections.<Entry>emptyList() : result;
+        }
+
+        // True if both views would resolve identically
+        boolean isEquivalent(EntityView other) {
+            return priority == other.priority &&
+                    index.equals(other.index) &&
+                    metadataValues.equals(other.metadataValues);
+        }
+
+    }
+
+}
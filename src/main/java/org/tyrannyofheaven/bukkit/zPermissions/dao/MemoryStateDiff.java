@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Structural difference between two memory states, as computed when an
+ * {@link InMemoryPermissionService}'s state is replaced or merged from
+ * storage.
+ * 
+ * @author zerothangel
+ */
+public class MemoryStateDiff {
+
+    private final Set<String> groups;
+
+    private final Set<String> descendants;
+
+    private final Set<UUID> players;
+
+    public MemoryStateDiff(Set<String> groups, Set<String> descendants, Set<UUID> players) {
+        this.groups = Collections.unmodifiableSet(new HashSet<>(groups));
+        this.descendants = Collections.unmodifiableSet(new HashSet<>(descendants));
+        this.players = Collections.unmodifiableSet(new HashSet<>(players));
+    }
+
+    /**
+     * Returns the lowercase names of groups that were added, removed or
+     * changed (permissions, metadata, priority or parents).
+     * 
+     * @return the changed groups
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns the lowercase names of the descendants of changed groups
+     * (before or after the change) that were not changed themselves.
+     * 
+     * @return the descendant groups
+     */
+    public Set<String> getDescendants() {
+        return descendants;
+    }
+
+    /**
+     * Returns the players whose own permissions, metadata or memberships
+     * were changed.
+     * 
+     * @return the changed players
+     */
+    public Set<UUID> getPlayers() {
+        return players;
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty() && players.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("groups=%s, descendants=%s, players=%s", groups, descendants, players);
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.uncanonicalizeUuid;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getEntity;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getRegion;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.getWorld;
+import static org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.rememberMembership;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.MemoryState;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemorySnapshot.EntityView;
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
+
+/**
+ * Binary snapshot of an {@link InMemoryPermissionService}'s state, tagged
+ * with the data version (and its timestamp) it was taken at. Allows the
+ * database load to be skipped at startup if nothing has changed since.
+ *
+ * @author zerothangel
+ */
+public class MemoryStateFile {
+
+    private static final int MAGIC = 0x7a504d53; // "zPMS"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long NO_ID = -1L;
+
+    private static final byte TYPE_STRING = 1;
+
+    private static final byte TYPE_INTEGER = 2;
+
+    private static final byte TYPE_REAL = 3;
+
+    private static final byte TYPE_BOOLEAN = 4;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final File file;
+
+    public MemoryStateFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Dump a published snapshot of a permission service. Snapshots are never
+     * modified, so no locking is needed.
+     *
+     * @param snapshot the snapshot, see {@link InMemoryPermissionService#getSnapshot()}
+     * @param version the data version the state corresponds to
+     * @param timestamp the timestamp of the data version
+     * @param includePlayers true if players should be included
+     * @return the dumped state
+     */
+    public static byte[] dump(MemorySnapshot snapshot, long version, Date timestamp, boolean includePlayers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(version);
+            out.writeLong(timestamp.getTime());
+            out.writeBoolean(includePlayers);
+
+            Collection<EntityView> groups = snapshot.groupViews.values();
+            out.writeInt(groups.size());
+            for (EntityView group : groups) {
+                dumpEntity(out, group);
+                out.writeInt(group.priority);
+
+                out.writeInt(group.parents.size());
+                for (Inheritance i : group.parents) {
+                    writeId(out, i.getId());
+                    writeString(out, i.getParent().getDisplayName());
+                    out.writeInt(i.getOrdering());
+                }
+
+                List<Membership> memberships = snapshot.groupMembers.get(group.name);
+                if (memberships == null)
+                    memberships = Collections.emptyList();
+                out.writeInt(memberships.size());
+                for (Membership membership : memberships) {
+                    writeId(out, membership.getId());
+                    writeString(out, membership.getMember());
+                    writeString(out, membership.getDisplayName());
+                    out.writeLong(membership.getExpiration() == null ? -1L : membership.getExpiration().getTime());
+                }
+            }
+
+            if (includePlayers) {
+                Collection<EntityView> players = snapshot.playerViews.values();
+                out.writeInt(players.size());
+                for (EntityView player : players) {
+                    dumpEntity(out, player);
+                }
+            }
+            else {
+                out.writeInt(0);
+            }
+
+            out.writeInt(MAGIC); // Guards against truncation
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e); // Not possible with a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void dumpEntity(DataOutputStream out, EntityView entity) throws IOException {
+        writeId(out, entity.id);
+        writeString(out, entity.name);
+        writeString(out, entity.displayName);
+
+        out.writeInt(entity.entries.size());
+        for (Entry entry : entity.entries) {
+            writeId(out, entry.getId());
+            if (entry.getRegion() != null) {
+                writeId(out, entry.getRegion().getId());
+                writeString(out, entry.getRegion().getName());
+            }
+            else {
+                writeId(out, null);
+                writeString(out, null);
+            }
+            if (entry.getWorld() != null) {
+                writeId(out, entry.getWorld().getId());
+                writeString(out, entry.getWorld().getName());
+            }
+            else {
+                writeId(out, null);
+                writeString(out, null);
+            }
+            writeString(out, entry.getPermission());
+            out.writeBoolean(entry.isValue());
+        }
+
+        out.writeInt(entity.metadata.size());
+        for (EntityMetadata em : entity.metadata) {
+            writeId(out, em.getId());
+            writeString(out, em.getName());
+            Object value = em.getValue();
+            if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                writeString(out, (String)value);
+            }
+            else if (value instanceof Long) {
+                out.writeByte(TYPE_INTEGER);
+                out.writeLong((Long)value);
+            }
+            else if (value instanceof Double) {
+                out.writeByte(TYPE_REAL);
+                out.writeDouble((Double)value);
+            }
+            else if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean)value);
+            }
+            else {
+                throw new IllegalStateException("Unknown metadata type: " + value);
+            }
+        }
+    }
+
+    private static void writeId(DataOutputStream out, Long id) throws IOException {
+        out.writeLong(id == null ? NO_ID : id);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] data = s.getBytes(UTF8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * Save a dump to the file, replacing any previous snapshot.
+     *
+     * @param data the dumped state
+     * @throws IOException
+     */
+    public void save(byte[] data) throws IOException {
+        File newFile = new File(file.getParentFile(), file.getName() + ".new");
+
+        OutputStream out = new FileOutputStream(newFile);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        // Delete old snapshot (might be necessary on some platforms)
+        if (file.exists() && !file.delete()) {
+            logger.log(Level.WARNING, "Error deleting snapshot " + file);
+            // Continue despite failure
+        }
+
+        if (!newFile.renameTo(file)) {
+            logger.log(Level.SEVERE, String.format("Error renaming %s to %s", newFile, file));
+        }
+    }
+
+    /**
+     * Load the snapshot if it was taken at the given data version.
+     *
+     * @param version the current data version
+     * @param timestamp the timestamp of the current data version
+     * @param requirePlayers true if the snapshot must include players, false
+     *     if it must not (players are then loaded on demand)
+     * @return the loaded state or null if there is no usable snapshot
+     * @throws IOException
+     */
+    public MemoryState load(long version, Date timestamp, boolean requirePlayers) throws IOException {
+        if (!file.exists())
+            return null;
+
+        ByteBuffer in;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        finally {
+            raf.close();
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+                return null;
+            if (in.getLong() != version || in.getLong() != timestamp.getTime())
+                return null;
+            boolean includesPlayers = in.get() != 0;
+            if (includesPlayers != requirePlayers)
+                return null;
+
+            MemoryState memoryState = new MemoryState();
+
+            int groupCount = in.getInt();
+            for (int i = 0; i < groupCount; i++) {
+                PermissionEntity group = loadEntity(in, memoryState, true);
+                group.setPriority(in.getInt());
+
+                int inheritanceCount = in.getInt();
+                for (int j = 0; j < inheritanceCount; j++) {
+                    Inheritance inheritance = new Inheritance();
+                    inheritance.setId(readId(in));
+                    PermissionEntity parent = getEntity(memoryState, readString(in), null, true);
+                    inheritance.setChild(group);
+                    inheritance.setParent(parent);
+                    inheritance.setOrdering(in.getInt());
+
+                    group.getInheritancesAsChild().add(inheritance);
+                    parent.getInheritancesAsParent().add(inheritance);
+                }
+
+                int membershipCount = in.getInt();
+                for (int j = 0; j < membershipCount; j++) {
+                    Membership membership = new Membership();
+                    membership.setId(readId(in));
+                    membership.setMember(readString(in));
+                    membership.setDisplayName(readString(in));
+                    membership.setGroup(group);
+                    long expiration = in.getLong();
+                    membership.setExpiration(expiration == -1L ? null : new Date(expiration));
+                    group.getMemberships().add(membership);
+
+                    rememberMembership(memoryState, membership);
+                }
+            }
+
+            int playerCount = in.getInt();
+            for (int i = 0; i < playerCount; i++) {
+                loadEntity(in, memoryState, false);
+            }
+
+            if (in.getInt() != MAGIC || in.hasRemaining())
+                return null;
+
+            return memoryState;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Ignoring corrupt snapshot " + file);
+            return null;
+        }
+    }
+
+    private static PermissionEntity loadEntity(ByteBuffer in, MemoryState memoryState, boolean group) {
+        Long id = readId(in);
+        String name = readString(in);
+        String displayName = readString(in);
+        PermissionEntity entity = getEntity(memoryState, displayName, group ? null : uncanonicalizeUuid(name), group);
+        entity.setId(id);
+        entity.setDisplayName(displayName);
+
+        int entryCount = in.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            Entry entry = new Entry();
+            entry.setId(readId(in));
+            Long regionId = readId(in);
+            String regionName = readString(in);
+            if (regionName != null) {
+                PermissionRegion region = getRegion(memoryState, regionName);
+                region.setId(regionId);
+                entry.setRegion(region);
+            }
+            Long worldId = readId(in);
+            String worldName = readString(in);
+            if (worldName != null) {
+                PermissionWorld world = getWorld(memoryState, worldName);
+                world.setId(worldId);
+                entry.setWorld(world);
+            }
+            entry.setPermission(readString(in));
+            entry.setValue(in.get() != 0);
+
+            entry.setEntity(entity);
+            entity.getPermissions().add(entry);
+        }
+
+        int metadataCount = in.getInt();
+        for (int i = 0; i < metadataCount; i++) {
+            EntityMetadata em = new EntityMetadata();
+            em.setId(readId(in));
+            em.setName(readString(in));
+            byte type = in.get();
+            switch (type) {
+            case TYPE_STRING:
+                em.setValue(readString(in));
+                break;
+            case TYPE_INTEGER:
+                em.setValue(in.getLong());
+                break;
+            case TYPE_REAL:
+                em.setValue(in.getDouble());
+                break;
+            case TYPE_BOOLEAN:
+                em.setValue(in.get() != 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metadata type: " + type);
+            }
+            em.setEntity(entity);
+            entity.getMetadata().add(em);
+        }
+        entity.updateMetadataMap();
+
+        return entity;
+    }
+
+    private static Long readId(ByteBuffer in) {
+        long id = in.getLong();
+        return id == NO_ID ? null : id;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] data = new byte[length];
+        in.get(data);
+        return new String(data, UTF8);
+    }
+
+}
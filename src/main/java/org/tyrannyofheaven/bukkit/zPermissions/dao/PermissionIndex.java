@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemorySnapshot.EntityView;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+
+/**
+ * Inverted index from permission node to the entities that set it, used to
+ * answer permission searches without scanning every entity. Nodes are also
+ * indexed by their dot-separated segments so substring searches only need to
+ * consider distinct segments rather than every entry.
+ * 
+ * <p>Not thread-safe. {@link InMemoryPermissionService} keeps it up to date
+ * as it publishes changes and only queries it while holding its lock.
+ *
+ * @author zerothangel
+ */
+final class PermissionIndex {
+
+    private final Map<String, Set<String>> groupNodes = new HashMap<>(); // node -> lowercase group names
+
+    private final Map<String, Set<String>> playerNodes = new HashMap<>(); // node -> canonical UUIDs
+
+    private final Map<String, Set<String>> segmentNodes = new HashMap<>(); // segment -> nodes
+
+    /**
+     * Re-index an entity whose published view changed.
+     * 
+     * @param key the entity's key (lowercase group name or canonical UUID)
+     * @param group true if the entity is a group
+     * @param oldView the previously published view, may be null
+     * @param newView the newly published view, may be null
+     */
+    void update(String key, boolean group, EntityView oldView, EntityView newView) {
+        Set<String> oldNodes = getNodes(oldView);
+        Set<String> newNodes = getNodes(newView);
+
+        for (String node : oldNodes) {
+            if (!newNodes.contains(node))
+                removeNode(key, group, node);
+        }
+        for (String node : newNodes) {
+            if (!oldNodes.contains(node))
+                addNode(key, group, node);
+        }
+    }
+
+    /**
+     * Find entities that set a permission containing the given string.
+     * 
+     * @param fragment the lowercase string to search for
+     * @param group true to search groups, false to search players
+     * @return keys of matching entities (lowercase group names or canonical UUIDs)
+     */
+    Set<String> search(String fragment, boolean group) {
+        Map<String, Set<String>> index = group ? groupNodes : playerNodes;
+
+        Set<String> result = new HashSet<>();
+        for (String node : getCandidateNodes(fragment)) {
+            if (node.contains(fragment)) {
+                Set<String> keys = index.get(node);
+                if (keys != null)
+                    result.addAll(keys);
+            }
+        }
+        return result;
+    }
+
+    // Nodes that could possibly contain the fragment
+    private Set<String> getCandidateNodes(String fragment) {
+        String[] parts = splitNode(fragment);
+
+        // Interior parts must be whole segments of any matching node, so use the most selective one
+        Set<String> best = null;
+        for (int i = 1; i < parts.length - 1; i++) {
+            Set<String> nodes = segmentNodes.get(parts[i]);
+            if (nodes == null)
+                return Collections.emptySet();
+            if (best == null || nodes.size() < best.size())
+                best = nodes;
+        }
+        if (best != null)
+            return best;
+
+        // Otherwise, some segment of a matching node contains the longest part
+        String longest = "";
+        for (String part : parts) {
+            if (part.length() > longest.length())
+                longest = part;
+        }
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, Set<String>> me : segmentNodes.entrySet()) {
+            if (me.getKey().contains(longest))
+                result.addAll(me.getValue());
+        }
+        return result;
+    }
+
+    private void addNode(String key, boolean group, String node) {
+        Map<String, Set<String>> index = group ? groupNodes : playerNodes;
+        Set<String> keys = index.get(node);
+        if (keys == null) {
+            keys = new HashSet<>();
+            index.put(node, keys);
+        }
+        keys.add(key);
+
+        for (String segment : splitNode(node)) {
+            Set<String> nodes = segmentNodes.get(segment);
+            if (nodes == null) {
+                nodes = new HashSet<>();
+                segmentNodes.put(segment, nodes);
+            }
+            nodes.add(node);
+        }
+    }
+
+    private void removeNode(String key, boolean group, String node) {
+        Map<String, Set<String>> index = group ? groupNodes : playerNodes;
+        Set<String> keys = index.get(node);
+        if (keys == null)
+            return;
+        keys.remove(key);
+        if (!keys.isEmpty())
+            return;
+        index.remove(node);
+
+        // Forget segments once no entity of either type sets the node
+        if (groupNodes.containsKey(node) || playerNodes.containsKey(node))
+            return;
+        for (String segment : splitNode(node)) {
+            Set<String> nodes = segmentNodes.get(segment);
+            if (nodes != null) {
+                nodes.remove(node);
+                if (nodes.isEmpty())
+                    segmentNodes.remove(segment);
+            }
+        }
+    }
+
+    private static Set<String> getNodes(EntityView view) {
+        if (view == null)
+            return Collections.emptySet();
+        Set<String> result = new HashSet<>();
+        for (Entry entry : view.entries) {
+            result.add(entry.getPermission().toLowerCase());
+        }
+        return result;
+    }
+
+    private static String[] splitNode(String node) {
+        return node.split("\\.", -1);
+    }
+
+}
@@ -15,8 +15,10 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
@@ -64,13 +66,23 @@ public interface PermissionService {
     // NB: Resolver critical path
     public List<String> getAncestry(String groupName);
 
+    // Lowercase names of all groups that inherit from the given group (excluding itself)
+    public Set<String> getDescendants(String groupName);
+
     // NB: Resolver critical path
     public List<Entry> getEntries(String name, UUID uuid, boolean group);
 
+    // NB: Resolver critical path
+    // Universal entries plus those of the given (lowercase) worlds, including region-specific ones
+    public List<Entry> getEntries(String name, UUID uuid, boolean group, Collection<String> worlds);
+
     public boolean createGroup(String name);
     
     public List<String> getEntityNames(boolean group);
 
+    // Entities with at least one permission containing the given string (case-insensitive)
+    public List<PermissionEntity> findEntities(String permission, boolean group);
+
     public Object getMetadata(String name, UUID uuid, boolean group, String metadataName);
 
     public List<EntityMetadata> getAllMetadata(String name, UUID uuid, boolean group);
@@ -81,4 +93,7 @@ public interface PermissionService {
 
     public void updateDisplayName(UUID uuid, String displayName);
 
+    // Changes whenever any data changes
+    public long getDataVersion();
+
 }
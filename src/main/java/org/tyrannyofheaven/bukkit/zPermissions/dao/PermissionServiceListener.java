@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.UUID;
+
+/**
+ * Receives notification of changes made through an
+ * {@link InMemoryPermissionService}. Callbacks are made while the service's
+ * lock is held, so implementations should do as little as possible (e.g.
+ * invalidate caches) and must not call back into the service.
+ *
+ * @author zerothangel
+ */
+public interface PermissionServiceListener {
+
+    /**
+     * Called when a group's permissions, parents or existence has changed.
+     * Descendants of the group are implicitly affected as well.
+     *
+     * @param groupName the name of the group
+     */
+    public void groupChanged(String groupName);
+
+    /**
+     * Called when a player's own permissions or metadata have changed, or
+     * the player was dropped from memory.
+     *
+     * @param uuid the player's UUID
+     */
+    public void playerChanged(UUID uuid);
+
+    /**
+     * Called when the memory state has been replaced or merged, e.g. after
+     * a refresh from storage.
+     *
+     * @param diff what actually changed
+     */
+    public void memoryStateChanged(MemoryStateDiff diff);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.UUID;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.MemoryState;
+
+/**
+ * Loads individual players from storage on demand, for storage strategies
+ * that do not keep every player in memory.
+ *
+ * @author zerothangel
+ */
+public interface PlayerLoader {
+
+    /**
+     * Load a single player. May be called from any thread, and may block.
+     * If <code>wait</code> is false and the calling thread should not block
+     * (e.g. the server thread), the player may instead be brought into memory
+     * asynchronously, in which case null is returned. Whoever was answered
+     * without the player should then be refreshed once they are loaded.
+     *
+     * @param uuid the player's UUID
+     * @param wait true if the caller needs the player loaded before returning
+     * @return memory state holding the player, which will be empty if the
+     *     player does not exist in storage, or null if loading asynchronously
+     */
+    public MemoryState loadPlayer(UUID uuid, boolean wait);
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map split into a fixed number of shards by key hash. A modified
+ * copy is made with an {@link Editor}, which only copies the shards it
+ * actually changes and shares the rest with the original. So publishing a
+ * change to a few keys costs a fraction of the map rather than all of it.
+ *
+ * @author zerothangel
+ */
+final class SnapshotMap<V> extends AbstractMap<String, V> {
+
+    private static final int SHARD_BITS = 8;
+
+    private static final int SHARD_COUNT = 1 << SHARD_BITS;
+
+    @SuppressWarnings("unchecked")
+    private static final SnapshotMap<Object> EMPTY = new SnapshotMap<>(new Map[SHARD_COUNT], 0);
+
+    private final Map<String, V>[] shards; // null if empty
+
+    private final int size;
+
+    private SnapshotMap(Map<String, V>[] shards, int size) {
+        this.shards = shards;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> SnapshotMap<V> empty() {
+        return (SnapshotMap<V>)EMPTY;
+    }
+
+    private static int shardOf(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> SHARD_BITS) ^ (h >>> 16)) & (SHARD_COUNT - 1);
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null)
+            return null;
+        Map<String, V> shard = shards[shardOf(key)];
+        return shard == null ? null : shard.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null)
+            return false;
+        Map<String, V> shard = shards[shardOf(key)];
+        return shard != null && shard.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new Iterator<Map.Entry<String, V>>() {
+                    private int next = 0;
+
+                    private Iterator<Map.Entry<String, V>> current = Collections.<Map.Entry<String, V>>emptySet().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext()) {
+                            if (next >= SHARD_COUNT)
+                                return false;
+                            Map<String, V> shard = shards[next++];
+                            if (shard != null)
+                                current = Collections.unmodifiableMap(shard).entrySet().iterator();
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Map.Entry<String, V> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Start a modified copy of this map. This map is left unchanged.
+     *
+     * @return an editor for the copy
+     */
+    Editor<V> edit() {
+        return new Editor<>(this);
+    }
+
+    /**
+     * Builds a modified copy of a {@link SnapshotMap}. Not thread-safe, and
+     * must not be used after {@link #build()}.
+     */
+    static final class Editor<V> {
+
+        private final Map<String, V>[] shards;
+
+        private final boolean[] copied = new boolean[SHARD_COUNT];
+
+        private int size;
+
+        private Editor(SnapshotMap<V> source) {
+            shards = source.shards.clone();
+            size = source.size;
+        }
+
+        // Shard that may be modified, copying it first if it is still shared
+        private Map<String, V> writableShard(int index) {
+            Map<String, V> shard = shards[index];
+            if (!copied[index]) {
+                shard = shard == null ? new HashMap<String, V>() : new HashMap<>(shard);
+                shards[index] = shard;
+                copied[index] = true;
+            }
+            return shard;
+        }
+
+        V put(String key, V value) {
+            V old = writableShard(shardOf(key)).put(key, value);
+            if (old == null)
+                size++;
+            return old;
+        }
+
+        V remove(String key) {
+            int index = shardOf(key);
+            if (shards[index] == null || !shards[index].containsKey(key))
+                return null;
+            size--;
+            return writableShard(index).remove(key);
+        }
+
+        SnapshotMap<V> build() {
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                if (copied[i] && shards[i].isEmpty())
+                    shards[i] = null;
+            }
+            return new SnapshotMap<>(shards, size);
+        }
+
+    }
+
+}
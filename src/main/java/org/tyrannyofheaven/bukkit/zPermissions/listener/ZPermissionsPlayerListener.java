@@ -54,6 +54,8 @@ public class ZPermissionsPlayerListener implements Listener {
     @EventHandler(priority=EventPriority.MONITOR)
     public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
         if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            // Load permissions now, rather than on the main thread
+            core.preloadPlayer(event.getUniqueId());
             // Update display name
             core.updateDisplayName(event.getUniqueId(), event.getName());
         }
@@ -19,10 +19,10 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
-import org.tyrannyofheaven.bukkit.zPermissions.RefreshCause;
-import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
+import org.tyrannyofheaven.bukkit.zPermissions.util.MovementRefreshScheduler;
 
 /**
  * Additional player events to listen on if (WorldGuard) region support is
@@ -32,16 +32,16 @@ import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
  */
 public class ZPermissionsRegionPlayerListener implements Listener {
 
-    private final ZPermissionsCore core;
+    private final MovementRefreshScheduler movementRefreshScheduler;
 
-    public ZPermissionsRegionPlayerListener(ZPermissionsCore plugin) {
-        this.core = plugin;
+    public ZPermissionsRegionPlayerListener(MovementRefreshScheduler movementRefreshScheduler) {
+        this.movementRefreshScheduler = movementRefreshScheduler;
     }
 
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerTeleport(PlayerTeleportEvent event) {
         // Conditionally update if world or region changed
-        core.setBukkitPermissions(event.getPlayer(), event.getTo(), false, RefreshCause.MOVEMENT);
+        movementRefreshScheduler.immediate(event.getPlayer(), event.getTo());
     }
 
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
@@ -50,15 +50,20 @@ public class ZPermissionsRegionPlayerListener implements Listener {
         if (event.getFrom().getBlockX() != event.getTo().getBlockX() ||
                 event.getFrom().getBlockY() != event.getTo().getBlockY() ||
                 event.getFrom().getBlockZ() != event.getTo().getBlockZ()) {
-            // Conditionally update if containing regions changed
-            core.setBukkitPermissions(event.getPlayer(), event.getTo(), false, RefreshCause.MOVEMENT);
+            // Conditionally update if containing regions changed (rate-limited)
+            movementRefreshScheduler.movement(event.getPlayer(), event.getTo());
         }
     }
 
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerRespawn(PlayerRespawnEvent event) {
         // Conditionally update if respawning in a different world or region
-        core.setBukkitPermissions(event.getPlayer(), event.getRespawnLocation(), false, RefreshCause.MOVEMENT);
+        movementRefreshScheduler.immediate(event.getPlayer(), event.getRespawnLocation());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        movementRefreshScheduler.remove(event.getPlayer().getUniqueId());
     }
 
 }
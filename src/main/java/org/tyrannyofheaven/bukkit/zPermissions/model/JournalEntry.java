@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Records an entity touched by a write transaction. Written in the same
+ * transaction that bumps the {@link DataVersion}, so other servers sharing
+ * the database can reload just the changed entities. Every data version
+ * has at least one entry; a version with no changed entities is recorded
+ * with a null name.
+ * 
+ * @author zerothangel
+ */
+@Entity
+@Table(name="journal")
+public class JournalEntry {
+
+    private Long id;
+
+    private long version;
+
+    private String name;
+
+    private boolean group;
+
+    private Date timestamp;
+
+    @Id
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    @Column(nullable=false)
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    // Lowercase group name or canonical UUID, null if no entity was changed
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Column(name="is_group", nullable=false)
+    public boolean isGroup() {
+        return group;
+    }
+
+    public void setGroup(boolean group) {
+        this.group = group;
+    }
+
+    @Column(nullable=false)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s%s (%s)", getVersion(), isGroup() ? "group " : "", getName(), getTimestamp());
+    }
+
+}
@@ -77,6 +77,10 @@ public class PermissionEntity {
     @Transient
     private final Map<String, EntityMetadata> metadataMap = new HashMap<>();
 
+    // world -> region -> permission -> entry, null world/region for universal
+    @Transient
+    private final Map<String, Map<String, Map<String, Entry>>> entryIndex = new HashMap<>();
+
     @Id
     public Long getId() {
         return id;
@@ -205,6 +209,81 @@ public class PermissionEntity {
         }
     }
 
+    /**
+     * Look up a single permission entry.
+     * 
+     * @param world lowercase world name or null
+     * @param region lowercase region name or null
+     * @param permission lowercase permission node
+     * @return the entry or null if not present
+     */
+    public Entry getEntry(String world, String region, String permission) {
+        Map<String, Map<String, Entry>> worldEntries = entryIndex.get(world);
+        if (worldEntries == null)
+            return null;
+        Map<String, Entry> regionEntries = worldEntries.get(region);
+        if (regionEntries == null)
+            return null;
+        return regionEntries.get(permission);
+    }
+
+    /**
+     * Retrieve all entries for the given world, regardless of region.
+     * 
+     * @param world lowercase world name or null for universal entries
+     * @return the entries
+     */
+    public List<Entry> getEntries(String world) {
+        Map<String, Map<String, Entry>> worldEntries = entryIndex.get(world);
+        if (worldEntries == null)
+            return Collections.emptyList();
+        List<Entry> result = new ArrayList<>();
+        for (Map<String, Entry> regionEntries : worldEntries.values()) {
+            result.addAll(regionEntries.values());
+        }
+        return result;
+    }
+
+    public void indexEntry(Entry entry) {
+        String world = entry.getWorld() == null ? null : entry.getWorld().getName();
+        String region = entry.getRegion() == null ? null : entry.getRegion().getName();
+        Map<String, Map<String, Entry>> worldEntries = entryIndex.get(world);
+        if (worldEntries == null) {
+            worldEntries = new HashMap<>();
+            entryIndex.put(world, worldEntries);
+        }
+        Map<String, Entry> regionEntries = worldEntries.get(region);
+        if (regionEntries == null) {
+            regionEntries = new HashMap<>();
+            worldEntries.put(region, regionEntries);
+        }
+        regionEntries.put(entry.getPermission(), entry);
+    }
+
+    public void unindexEntry(Entry entry) {
+        String world = entry.getWorld() == null ? null : entry.getWorld().getName();
+        String region = entry.getRegion() == null ? null : entry.getRegion().getName();
+        Map<String, Map<String, Entry>> worldEntries = entryIndex.get(world);
+        if (worldEntries == null)
+            return;
+        Map<String, Entry> regionEntries = worldEntries.get(region);
+        if (regionEntries == null)
+            return;
+        regionEntries.remove(entry.getPermission());
+        if (regionEntries.isEmpty()) {
+            worldEntries.remove(region);
+            if (worldEntries.isEmpty())
+                entryIndex.remove(world);
+        }
+    }
+
+    public void updateEntryIndex() {
+        entryIndex.clear();
+        for (Entry entry : getPermissions()) {
+            indexEntry(entry);
+        }
+    }
+
     @Transient
     public UUID getUuid() {
         ToHUtils.assertFalse(isGroup(), "Only valid for players");
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * RegionStrategy that memoizes the region set of another (cacheable)
+ * RegionStrategy per cell of blocks. A single result is cached for the whole
+ * cell only if no region boundary crosses it. Otherwise, results within that
+ * cell are cached per block. Either way, results are exact.
+ * 
+ * <p>Region plugins don't tell us when regions are redefined, so the whole
+ * cache is simply discarded periodically (and on {@link #invalidate()}).
+ * 
+ * @author zerothangel
+ */
+public class CachingRegionStrategy implements RegionStrategy {
+
+    private final Plugin plugin;
+
+    private final RegionStrategy delegate;
+
+    private final int cellShift;
+
+    private final long ttl; // ms
+
+    // Marks a cell that a region boundary crosses
+    private static final Set<String> MIXED = Collections.unmodifiableSet(new HashSet<String>());
+
+    private final Map<CellKey, Set<String>> cache;
+
+    private long expiration;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Create a CachingRegionStrategy.
+     * 
+     * @param plugin the owning plugin
+     * @param delegate the RegionStrategy to cache. Must be cacheable.
+     * @param cellSize the size of each cell in blocks. Rounded down to a power
+     *     of 2.
+     * @param ttl how long (in milliseconds) cached results are good for
+     * @param maxSize maximum number of cells (and blocks) cached
+     */
+    public CachingRegionStrategy(Plugin plugin, RegionStrategy delegate, int cellSize, long ttl, final int maxSize) {
+        if (!delegate.isCacheable())
+            throw new IllegalArgumentException("delegate must be cacheable");
+        this.plugin = plugin;
+        this.delegate = delegate;
+        this.cellShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, cellSize));
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<CellKey, Set<String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CellKey, Set<String>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public RegionStrategy getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public boolean isPresent() {
+        return delegate.isPresent();
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return delegate.isEnabled();
+    }
+
+    @Override
+    public void shutdown() {
+        invalidate();
+        delegate.shutdown();
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public synchronized Set<String> getRegions(Location location, Player player) {
+        long now = System.currentTimeMillis();
+        if (now >= expiration) {
+            if (hits + misses > 0L)
+                debug(plugin, "Region cache: %d hits, %d misses (%.1f%% hit rate)", hits, misses, getHitRate() * 100.0);
+            cache.clear();
+            hits = misses = 0L;
+            expiration = now + ttl;
+        }
+
+        World world = location.getWorld();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+
+        if (cellShift > 0) {
+            CellKey cellKey = new CellKey(world.getName(), x >> cellShift, y >> cellShift, z >> cellShift, cellShift);
+            Set<String> regions = cache.get(cellKey);
+            if (regions == null) {
+                int minX = cellKey.x << cellShift;
+                int minY = cellKey.y << cellShift;
+                int minZ = cellKey.z << cellShift;
+                int size = 1 << cellShift;
+                if (delegate.isUniform(world, minX, minY, minZ, minX + size - 1, minY + size - 1, minZ + size - 1)) {
+                    misses++;
+                    regions = Collections.unmodifiableSet(delegate.getRegions(location, player));
+                    cache.put(cellKey, regions);
+                    return regions;
+                }
+                cache.put(cellKey, MIXED);
+            }
+            else if (regions != MIXED) {
+                hits++;
+                return regions;
+            }
+        }
+
+        // Fall back to caching this block alone
+        CellKey blockKey = new CellKey(world.getName(), x, y, z, 0);
+        Set<String> regions = cache.get(blockKey);
+        if (regions != null) {
+            hits++;
+            return regions;
+        }
+
+        misses++;
+        regions = Collections.unmodifiableSet(delegate.getRegions(location, player));
+        cache.put(blockKey, regions);
+        return regions;
+    }
+
+    @Override
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return delegate.isUniform(world, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Discard all cached results, e.g. after regions have been redefined.
+     */
+    public synchronized void invalidate() {
+        cache.clear();
+        expiration = 0L;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // Hit rate since the cache was last discarded
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0L ? 0.0 : (double)hits / total;
+    }
+
+    private static class CellKey {
+
+        private final String world;
+
+        private final int x;
+
+        private final int y;
+
+        private final int z;
+
+        private final int shift; // 0 for a single block
+
+        private CellKey(String world, int x, int y, int z, int shift) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.shift = shift;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof CellKey)) return false;
+            CellKey o = (CellKey)obj;
+            return x == o.x && y == o.y && z == o.z && shift == o.shift && world.equals(o.world);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + world.hashCode();
+            result = 37 * result + x;
+            result = 37 * result + y;
+            result = 37 * result + z;
+            result = 37 * result + shift;
+            return result;
+        }
+
+    }
+
+}
@@ -20,6 +20,7 @@ import java.util.Set;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -83,6 +84,17 @@ public class FactionsRegionStrategy implements RegionStrategy, Listener {
         factionsEnabled = false;
     }
 
+    @Override
+    public boolean isCacheable() {
+        // Depends on the player's relation to the faction
+        return false;
+    }
+
+    @Override
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return false; // Not cacheable anyway
+    }
+
     @Override
     public Set<String> getRegions(Location location, Player player) {
         if (isEnabled()) {
@@ -23,6 +23,7 @@ import me.tabinol.factoid.lands.Land;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -80,6 +81,16 @@ public class FactoidRegionStrategy implements RegionStrategy, Listener {
         enabled = false;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return false; // No way to tell
+    }
+
     @Override
     public Set<String> getRegions(Location location, Player player) {
         Land land = Factoid.getLands().getLand(location);
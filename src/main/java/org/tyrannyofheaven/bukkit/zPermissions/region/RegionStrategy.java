@@ -18,6 +18,7 @@ package org.tyrannyofheaven.bukkit.zPermissions.region;
 import java.util.Set;
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 
 /**
@@ -79,4 +80,28 @@ public interface RegionStrategy {
      */
     public Set<String> getRegions(Location location, Player player);
 
+    /**
+     * Returns whether the results of {@link #getRegions(Location, Player)}
+     * depend on the location alone, and so may be cached by location.
+     * 
+     * @return true if results do not depend on the player
+     */
+    public boolean isCacheable();
+
+    /**
+     * Returns whether {@link #getRegions(Location, Player)} gives the same
+     * result for every block within the given box, i.e. no region boundary
+     * crosses it. Only called on cacheable strategies.
+     * 
+     * @param world the world
+     * @param minX minimum x coordinate, inclusive
+     * @param minY minimum y coordinate, inclusive
+     * @param minZ minimum z coordinate, inclusive
+     * @param maxX maximum x coordinate, inclusive
+     * @param maxY maximum y coordinate, inclusive
+     * @param maxZ maximum z coordinate, inclusive
+     * @return true if known to be uniform, false if not or if unknown
+     */
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
 }
@@ -20,6 +20,7 @@ import java.util.Set;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -80,6 +81,16 @@ public class ResidenceRegionStrategy implements RegionStrategy, Listener {
         enabled = false;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return false; // No way to tell
+    }
+
     @Override
     public Set<String> getRegions(Location location, Player player) {
         ClaimedResidence res = Residence.getResidenceManager().getByLoc(location);
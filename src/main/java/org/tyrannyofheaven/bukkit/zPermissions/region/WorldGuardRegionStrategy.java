@@ -23,6 +23,7 @@ import java.util.Set;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -32,9 +33,11 @@ import org.tyrannyofheaven.bukkit.util.ToHLoggingUtils;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
 
 import com.google.common.collect.Iterables;
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
 import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 
 /**
@@ -46,6 +49,8 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
 
     private static final String RM_PLUGIN_NAME = "WorldGuard";
 
+    private static final String GLOBAL_REGION = "__global__"; // NB: Hardcoded and not available as constant in WorldGuard
+
     private final Plugin plugin;
 
     private final ZPermissionsCore core;
@@ -86,6 +91,11 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
         worldGuardPlugin = null;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Set<String> getRegions(Location location, Player player) {
         if (isEnabled()) {
@@ -100,7 +110,7 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
                 Set<String> result = new LinkedHashSet<>(); // Preserve ordering for resolver
                 for (ProtectedRegion pr : sorted) {
                     // Ignore global region
-                    if (!"__global__".equals(pr.getId())) // NB: Hardcoded and not available as constant in WorldGuard
+                    if (!GLOBAL_REGION.equals(pr.getId()))
                         result.add(pr.getId().toLowerCase());
                 }
                 return result;
@@ -109,6 +119,31 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
         return Collections.emptySet();
     }
 
+    @Override
+    public boolean isUniform(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        if (isEnabled()) {
+            RegionManager rm = worldGuardPlugin.getRegionManager(world);
+            if (rm != null) {
+                ProtectedRegion box = new ProtectedCuboidRegion("zpermissions_cell", new BlockVector(minX, minY, minZ), new BlockVector(maxX, maxY, maxZ));
+                // Every region touching the box must cover all of it
+                for (ProtectedRegion pr : rm.getApplicableRegions(box)) {
+                    if (GLOBAL_REGION.equals(pr.getId()))
+                        continue;
+                    // Only cuboids are known to cover their whole bounding box
+                    if (!(pr instanceof ProtectedCuboidRegion))
+                        return false;
+                    BlockVector min = pr.getMinimumPoint();
+                    BlockVector max = pr.getMaximumPoint();
+                    if (min.getBlockX() > minX || min.getBlockY() > minY || min.getBlockZ() > minZ ||
+                            max.getBlockX() < maxX || max.getBlockY() < maxY || max.getBlockZ() < maxZ)
+                        return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
     @EventHandler
     public void onPluginEnable(PluginEnableEvent event) {
         if (!isEnabled() && RM_PLUGIN_NAME.equals(event.getPlugin().getName())) {
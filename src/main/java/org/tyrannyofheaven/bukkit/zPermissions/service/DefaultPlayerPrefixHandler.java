@@ -41,13 +41,14 @@ public class DefaultPlayerPrefixHandler implements PlayerPrefixHandler {
     public String getPlayerPrefix(ZPermissionsService service, UUID uuid) {
         String prefix;
         
-        if (config.getVaultPlayerPrefixFormat().isEmpty()) {
+        PlayerPrefixFormat format = config.getVaultPlayerPrefixFormat();
+        if (format == null) {
             prefix = service.getPlayerMetadata(uuid, MetadataConstants.PREFIX_KEY, String.class);
             if (prefix == null && config.isVaultPrefixIncludesGroup())
                 prefix = service.getGroupMetadata(service.getPlayerPrimaryGroup(uuid), MetadataConstants.PREFIX_KEY, String.class);
         }
         else {
-            prefix = getFormattedPrefixSuffix(service, uuid, config.getVaultPlayerPrefixFormat(), true);
+            prefix = getFormattedPrefixSuffix(service, uuid, format, true);
         }
         
         if (prefix == null)
@@ -63,13 +64,14 @@ public class DefaultPlayerPrefixHandler implements PlayerPrefixHandler {
     public String getPlayerSuffix(ZPermissionsService service, UUID uuid) {
         String suffix;
         
-        if (config.getVaultPlayerSuffixFormat().isEmpty()) {
+        PlayerPrefixFormat format = config.getVaultPlayerSuffixFormat();
+        if (format == null) {
             suffix = service.getPlayerMetadata(uuid, MetadataConstants.SUFFIX_KEY, String.class);
             if (suffix == null && config.isVaultPrefixIncludesGroup())
                 suffix = service.getGroupMetadata(service.getPlayerPrimaryGroup(uuid), MetadataConstants.SUFFIX_KEY, String.class);
         }
         else {
-            suffix = getFormattedPrefixSuffix(service, uuid, config.getVaultPlayerSuffixFormat(), false);
+            suffix = getFormattedPrefixSuffix(service, uuid, format, false);
         }
         
         if (suffix == null)
@@ -78,51 +80,55 @@ public class DefaultPlayerPrefixHandler implements PlayerPrefixHandler {
             return suffix;
     }
 
-    private String getFormattedPrefixSuffix(ZPermissionsService service, UUID uuid, String format, boolean isPrefix) {
-        Map<String, String> subMap = new HashMap<>();
-        // Scan format, only calculate tokens that exist in it
-        if (format.contains("%p")) {
+    private String getFormattedPrefixSuffix(ZPermissionsService service, UUID uuid, PlayerPrefixFormat format, boolean isPrefix) {
+        String key = isPrefix ? MetadataConstants.PREFIX_KEY : MetadataConstants.SUFFIX_KEY;
+
+        // Only calculate tokens that exist in the format, and only once each
+        Map<Character, String> values = new HashMap<>();
+        StringBuilder result = new StringBuilder();
+        for (Object segment : format.getSegments()) {
+            if (segment instanceof String) {
+                result.append((String)segment);
+                continue;
+            }
+
+            Character token = (Character)segment;
+            String value = values.get(token);
+            if (value == null) {
+                value = getTokenValue(service, uuid, token, key);
+                values.put(token, value);
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+
+    private String getTokenValue(ZPermissionsService service, UUID uuid, char token, String key) {
+        switch (token) {
+        case 'p': {
             // Player
-            String value = service.getPlayerMetadata(uuid, isPrefix ? MetadataConstants.PREFIX_KEY : MetadataConstants.SUFFIX_KEY, String.class);
-            if (value == null) value = "";
-            subMap.put("%p", value);
+            String value = service.getPlayerMetadata(uuid, key, String.class);
+            return value == null ? "" : value;
         }
-        if (format.contains("%g")) {
+        case 'g': {
             // Primary Group
-            String value = service.getGroupMetadata(service.getPlayerPrimaryGroup(uuid), isPrefix ? MetadataConstants.PREFIX_KEY : MetadataConstants.SUFFIX_KEY, String.class);
-            if (value == null) value = "";
-            subMap.put("%g", value);
+            String value = service.getGroupMetadata(service.getPlayerPrimaryGroup(uuid), key, String.class);
+            return value == null ? "" : value;
         }
-        if (format.contains("%a")) {
-            // All Groups
+        default: {
+            // All Groups (%a) or All Groups Reversed (%A)
             List<String> groups = getPlayerGroups(service, uuid);
-            Collections.reverse(groups); // groups is in application order. We actually want it in display order.
+            if (token == 'a')
+                Collections.reverse(groups); // groups is in application order. We actually want it in display order.
             StringBuilder sb = new StringBuilder();
             for (String group : groups) {
-                String value = service.getGroupMetadata(group, isPrefix ? MetadataConstants.PREFIX_KEY : MetadataConstants.SUFFIX_KEY, String.class);
-                if (value == null) value = "";
-                sb.append(value);
+                String value = service.getGroupMetadata(group, key, String.class);
+                if (value != null)
+                    sb.append(value);
             }
-            subMap.put("%a", sb.toString());
+            return sb.toString();
         }
-        if (format.contains("%A")) {
-            // All Groups Reversed
-            List<String> groups = getPlayerGroups(service, uuid);
-            StringBuilder sb = new StringBuilder();
-            for (String group : groups) {
-                String value = service.getGroupMetadata(group, isPrefix ? MetadataConstants.PREFIX_KEY : MetadataConstants.SUFFIX_KEY, String.class);
-                if (value == null) value = "";
-                sb.append(value);
-            }
-            subMap.put("%A", sb.toString());
-        }
-
-        // Perform substitution
-        String result = format;
-        for (Map.Entry<String, String> me : subMap.entrySet()) {
-            result = result.replaceAll(me.getKey(), me.getValue());
         }
-        return result;
     }
 
     private List<String> getPlayerGroups(ZPermissionsService service, UUID uuid) {
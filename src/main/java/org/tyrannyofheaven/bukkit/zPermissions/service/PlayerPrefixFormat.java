@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compiled vault-player-prefix-format/vault-player-suffix-format string,
+ * split into literal text (Strings) and tokens (Characters).
+ *
+ * @author zerothangel
+ */
+public class PlayerPrefixFormat {
+
+    private static final String TOKENS = "pgaA";
+
+    private final String format;
+
+    private final List<Object> segments = new ArrayList<>();
+
+    /**
+     * Compile a format string.
+     *
+     * @param format the format string
+     * @throws IllegalArgumentException if the format contains an unknown token
+     */
+    public PlayerPrefixFormat(String format) {
+        this.format = format;
+
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '%' && i + 1 < format.length() && Character.isLetter(format.charAt(i + 1))) {
+                char token = format.charAt(++i);
+                if (TOKENS.indexOf(token) < 0)
+                    throw new IllegalArgumentException("Unknown token %" + token + " (expecting one of %p, %g, %a, %A)");
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                segments.add(token);
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0)
+            segments.add(literal.toString());
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public List<Object> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+}
@@ -22,6 +22,7 @@ import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.canonicalizeUuid;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +36,7 @@ import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallback;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallbackWithoutResult;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.MetadataManager;
+import org.tyrannyofheaven.bukkit.zPermissions.MetadataManager.DerivedValueLoader;
 import org.tyrannyofheaven.bukkit.zPermissions.PermissionsResolver;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsConfig;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsService;
@@ -285,7 +287,33 @@ public class ZPermissionsServiceImpl implements ZPermissionsService {
             }
         }, true);
 
-        return permissions;
+        // Resolver results may be shared, so hand out a copy
+        return new LinkedHashMap<>(permissions);
+    }
+
+    @Override
+    public Boolean getPlayerPermission(String worldName, Set<String> regionNames, final UUID uuid, final String permission) {
+        if (uuid == null)
+            throw new IllegalArgumentException("uuid cannot be null");
+        if (!hasText(permission))
+            throw new IllegalArgumentException("permission must have a value");
+
+        final String lworldName = hasText(worldName) ? worldName.toLowerCase() : null;
+        if (regionNames == null)
+            regionNames = Collections.emptySet();
+
+        // Ensure all region names are lowercased
+        final Set<String> regions = new LinkedHashSet<>();
+        for (String regionName : regionNames) {
+            regions.add(regionName.toLowerCase());
+        }
+
+        return getTransactionStrategy().execute(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction() throws Exception {
+                return getResolver().resolvePlayerPermission(uuid, lworldName, regions, permission);
+            }
+        }, true);
     }
 
     /* (non-Javadoc)
@@ -507,13 +535,24 @@ public class ZPermissionsServiceImpl implements ZPermissionsService {
     }
 
     @Override
-    public String getPlayerPrefix(UUID uuid) {
-        return playerPrefixHandler.getPlayerPrefix(this, uuid);
+    public String getPlayerPrefix(final UUID uuid) {
+        // Rendered prefix is cached until the player's metadata is invalidated
+        return getMetadataManager().getDerivedPlayerValue(uuid, MetadataConstants.PREFIX_KEY, new DerivedValueLoader<String>() {
+            @Override
+            public String load() {
+                return playerPrefixHandler.getPlayerPrefix(ZPermissionsServiceImpl.this, uuid);
+            }
+        });
     }
 
     @Override
-    public String getPlayerSuffix(UUID uuid) {
-        return playerPrefixHandler.getPlayerSuffix(this, uuid);
+    public String getPlayerSuffix(final UUID uuid) {
+        return getMetadataManager().getDerivedPlayerValue(uuid, MetadataConstants.SUFFIX_KEY, new DerivedValueLoader<String>() {
+            @Override
+            public String load() {
+                return playerPrefixHandler.getPlayerSuffix(ZPermissionsServiceImpl.this, uuid);
+            }
+        });
     }
 
 }
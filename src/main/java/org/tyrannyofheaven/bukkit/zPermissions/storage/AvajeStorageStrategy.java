@@ -18,12 +18,19 @@ package org.tyrannyofheaven.bukkit.zPermissions.storage;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +38,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.util.transaction.AsyncTransactionStrategy;
 import org.tyrannyofheaven.bukkit.util.transaction.PreBeginHook;
@@ -42,9 +50,15 @@ import org.tyrannyofheaven.bukkit.util.transaction.TransactionStrategy;
 import org.tyrannyofheaven.bukkit.util.uuid.UuidDisplayName;
 import org.tyrannyofheaven.bukkit.util.uuid.UuidResolver;
 import org.tyrannyofheaven.bukkit.zPermissions.ReadOnlyException;
+import org.tyrannyofheaven.bukkit.zPermissions.RefreshCause;
+import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.AvajePermissionDao;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.MemoryState;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemorySnapshot;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemoryStateFile;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PlayerLoader;
 import org.tyrannyofheaven.bukkit.zPermissions.model.DataVersion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.UuidDisplayNameCache;
 
@@ -55,7 +69,13 @@ import com.avaje.ebean.EbeanServer;
  * 
  * @author zerothangel
  */
-public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreCommitHook, UuidResolver {
+public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreCommitHook, UuidResolver, PlayerLoader {
+
+    private static final long JOURNAL_PRUNE_INTERVAL = 10L * 60L * 20L; // 10 minutes, in ticks
+
+    private static final long PLAYER_EVICTION_INTERVAL = 60L * 20L; // 1 minute, in ticks
+
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
 
     private final InMemoryPermissionService permissionService = new InMemoryPermissionService();
 
@@ -65,27 +85,82 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
 
     private final TransactionStrategy internalTransactionStrategy; // NB private and only used here
 
+    private final ZPermissionsCore core;
+
     private final Plugin plugin;
 
     private final ExecutorService executorService;
 
     private final AtomicLong lastLoadedVersion = new AtomicLong(0L);
 
+    // Set when a write changed memory but never made it to the database, so
+    // memory no longer matches any data version until fully reloaded
+    private volatile boolean memoryDiverged;
+
     private final boolean readOnlyMode;
 
     private long uuidCacheTimeout = 120L * 60L * 1000L; // Default to 2 hours
 
-    public AvajeStorageStrategy(Plugin plugin, int maxRetries, boolean readOnlyMode) {
+    private long journalRetention = 24L * 60L * 60L * 1000L; // Default to 1 day
+
+    private boolean lazyPlayerLoading;
+
+    private int playerCacheSize = 1000;
+
+    private long playerCacheIdle = 10L * 60L * 1000L; // Default to 10 minutes
+
+    private int evictionTaskId = -1;
+
+    private final Set<UUID> pendingPlayerLoads = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    private MemoryStateFile snapshotFile;
+
+    private long snapshotInterval = 15L * 60L * 20L; // Default to 15 minutes, in ticks
+
+    private int snapshotTaskId = -1;
+
+    private int journalPruneTaskId = -1;
+
+    public AvajeStorageStrategy(ZPermissionsCore core, Plugin plugin, int maxRetries, boolean readOnlyMode) {
         // Following will be used to actually execute async
         executorService = Executors.newSingleThreadExecutor();
 
-        transactionStrategy = new AsyncTransactionStrategy(new RetryingAvajeTransactionStrategy(plugin.getDatabase(), maxRetries, null, this), executorService, this);
+        // Each attempt of a write transaction, and the end of each, must be
+        // known to the DAO so queued operations are written exactly once
+        PreBeginHook attemptHook = new PreBeginHook() {
+            @Override
+            public void preBegin(boolean readOnly) throws Exception {
+                if (!readOnly)
+                    permissionDao.beginWrite();
+            }
+        };
+        Executor writer = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean succeeded = false;
+                        try {
+                            command.run();
+                            succeeded = true;
+                        }
+                        finally {
+                            if (!permissionDao.endWrite() || !succeeded)
+                                memoryDiverged = true;
+                        }
+                    }
+                });
+            }
+        };
+        transactionStrategy = new AsyncTransactionStrategy(new RetryingAvajeTransactionStrategy(plugin.getDatabase(), maxRetries, attemptHook, this), writer, this);
         permissionDao = new AvajePermissionDao(permissionService, plugin.getDatabase(), transactionStrategy.getExecutor());
         permissionService.setPermissionDao(permissionDao);
         // NB internalTransactionStrategy has no pre-commit hook since it falls
         // outside the purview of data versioning. data versioning = permissions system only.
         // All reads are uncached. Writes only occur to UUID cache.
         internalTransactionStrategy = new RetryingAvajeTransactionStrategy(plugin.getDatabase(), maxRetries);
+        this.core = core;
         this.plugin = plugin;
         this.readOnlyMode = readOnlyMode;
     }
@@ -98,16 +173,113 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
             this.uuidCacheTimeout = uuidCacheTimeout.longValue() * 60L * 1000L;
             debug(plugin, "AvajeStorageStrategy uuidCacheTimeout = %d", this.uuidCacheTimeout);
         }
+        // FIXME currently hidden option
+        Number journalRetention = (Number)configMap.get("journal-retention");
+        if (journalRetention != null) {
+            this.journalRetention = journalRetention.longValue() * 60L * 1000L;
+            debug(plugin, "AvajeStorageStrategy journalRetention = %d", this.journalRetention);
+        }
+        // FIXME currently hidden options
+        Number writeBatchSize = (Number)configMap.get("write-batch-size");
+        if (writeBatchSize != null) {
+            permissionDao.setBatchSize(writeBatchSize.intValue());
+            debug(plugin, "AvajeStorageStrategy writeBatchSize = %d", writeBatchSize.intValue());
+        }
+        Boolean lazyPlayerLoading = (Boolean)configMap.get("lazy-player-loading");
+        if (lazyPlayerLoading != null) {
+            this.lazyPlayerLoading = lazyPlayerLoading;
+            debug(plugin, "AvajeStorageStrategy lazyPlayerLoading = %s", this.lazyPlayerLoading);
+        }
+        Number playerCacheSize = (Number)configMap.get("player-cache-size");
+        if (playerCacheSize != null) {
+            this.playerCacheSize = playerCacheSize.intValue();
+            debug(plugin, "AvajeStorageStrategy playerCacheSize = %d", this.playerCacheSize);
+        }
+        Number playerCacheIdle = (Number)configMap.get("player-cache-idle");
+        if (playerCacheIdle != null) {
+            this.playerCacheIdle = playerCacheIdle.longValue() * 60L * 1000L;
+            debug(plugin, "AvajeStorageStrategy playerCacheIdle = %d", this.playerCacheIdle);
+        }
+
+        Boolean startupSnapshot = (Boolean)configMap.get("startup-snapshot");
+        if (startupSnapshot == null || startupSnapshot) {
+            snapshotFile = new MemoryStateFile(new File(plugin.getDataFolder(), SNAPSHOT_FILE));
+        }
+        debug(plugin, "AvajeStorageStrategy startupSnapshot = %s", snapshotFile != null);
+        Number snapshotInterval = (Number)configMap.get("snapshot-interval");
+        if (snapshotInterval != null) {
+            this.snapshotInterval = snapshotInterval.longValue() * 60L * 20L;
+            debug(plugin, "AvajeStorageStrategy snapshotInterval = %d", this.snapshotInterval);
+        }
+
+        if (this.lazyPlayerLoading) {
+            // Only groups are loaded up front, players as they are needed
+            permissionDao.setLazyPlayerLoading(true);
+            permissionService.setPlayerLoader(this);
+            evictionTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    evictPlayers();
+                }
+            }, PLAYER_EVICTION_INTERVAL, PLAYER_EVICTION_INTERVAL);
+        }
 
-        log(plugin, "Loading all permissions from database...");
-//        plugin.getDatabase().getAdminLogging().setDebugGeneratedSql(true);
         long start = System.currentTimeMillis();
-        refreshInternal(true); // synchronously
-        log(plugin, "Finished initial load (%d ms).", System.currentTimeMillis() - start);
+        if (snapshotFile != null && loadSnapshot()) {
+            log(plugin, "Loaded permissions from snapshot (%d ms).", System.currentTimeMillis() - start);
+        }
+        else {
+            log(plugin, "Loading all permissions from database...");
+//            plugin.getDatabase().getAdminLogging().setDebugGeneratedSql(true);
+            refreshInternal(true); // synchronously
+            log(plugin, "Finished initial load (%d ms).", System.currentTimeMillis() - start);
+        }
+
+        if (snapshotFile != null && this.snapshotInterval > 0L) {
+            snapshotTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    // After any pending writes
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            saveSnapshot();
+                        }
+                    });
+                }
+            }, this.snapshotInterval, this.snapshotInterval);
+        }
+
+        if (!readOnlyMode) {
+            journalPruneTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            pruneJournal();
+                        }
+                    });
+                }
+            }, JOURNAL_PRUNE_INTERVAL, JOURNAL_PRUNE_INTERVAL);
+        }
     }
 
     @Override
     public void shutdown() {
+        if (journalPruneTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(journalPruneTaskId);
+            journalPruneTaskId = -1;
+        }
+        if (evictionTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(evictionTaskId);
+            evictionTaskId = -1;
+        }
+        if (snapshotTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(snapshotTaskId);
+            snapshotTaskId = -1;
+        }
+
         executorService.shutdown();
         try {
             long timeout = 60L;
@@ -117,6 +289,8 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
             }
             else {
                 log(plugin, "All write operations done.");
+                if (snapshotFile != null)
+                    saveSnapshot();
             }
         }
         catch (InterruptedException e) {
@@ -141,8 +315,13 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
             public Boolean doInTransaction() throws Exception {
                 DataVersion currentVersion = getCurrentDataVersion();
 
-                if (force || lastLoadedVersion.get() != currentVersion.getVersion()) {
-                    permissionDao.load();
+                long lastVersion = lastLoadedVersion.get();
+                if (force || lastVersion != currentVersion.getVersion()) {
+                    // Only reload what changed, if possible
+                    if (force || !permissionDao.loadChanges(lastVersion, currentVersion.getVersion())) {
+                        permissionDao.load();
+                        memoryDiverged = false;
+                    }
                     lastLoadedVersion.set(currentVersion.getVersion());
                     return true;
                 }
@@ -152,6 +331,115 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
         }, true);
     }
 
+    // Load the snapshot if it was taken at the current data version
+    private boolean loadSnapshot() {
+        DataVersion currentVersion = internalTransactionStrategy.execute(new TransactionCallback<DataVersion>() {
+            @Override
+            public DataVersion doInTransaction() throws Exception {
+                return getCurrentDataVersion();
+            }
+        }, true);
+
+        MemoryState memoryState;
+        try {
+            memoryState = snapshotFile.load(currentVersion.getVersion(), currentVersion.getTimestamp(), !lazyPlayerLoading);
+        }
+        catch (IOException e) {
+            log(plugin, Level.WARNING, "Error reading snapshot: %s", e.getMessage());
+            return false;
+        }
+        if (memoryState == null) {
+            debug(plugin, "No snapshot for data version %d", currentVersion.getVersion());
+            return false;
+        }
+
+        permissionService.setMemoryState(memoryState);
+        lastLoadedVersion.set(currentVersion.getVersion());
+        memoryDiverged = false;
+        return true;
+    }
+
+    // Snapshot the in-memory state, provided it matches the current data
+    // version. Must be called on the writer thread (or after it has finished).
+    private void saveSnapshot() {
+        DataVersion currentVersion = internalTransactionStrategy.execute(new TransactionCallback<DataVersion>() {
+            @Override
+            public DataVersion doInTransaction() throws Exception {
+                return getCurrentDataVersion();
+            }
+        }, true);
+
+        MemorySnapshot snapshot;
+        synchronized (permissionService) {
+            // Unwritten or failed changes, or changes made elsewhere not yet loaded
+            if (memoryDiverged || permissionDao.hasPendingOperations() || lastLoadedVersion.get() != currentVersion.getVersion()) {
+                debug(plugin, "Skipping snapshot; in-memory state does not match data version %d", currentVersion.getVersion());
+                return;
+            }
+            snapshot = permissionService.getSnapshot();
+        }
+
+        byte[] data = MemoryStateFile.dump(snapshot, currentVersion.getVersion(), currentVersion.getTimestamp(), !lazyPlayerLoading);
+
+        try {
+            snapshotFile.save(data);
+            debug(plugin, "Saved snapshot at data version %d (%d bytes)", currentVersion.getVersion(), data.length);
+        }
+        catch (IOException e) {
+            log(plugin, Level.WARNING, "Error saving snapshot: %s", e.getMessage());
+        }
+    }
+
+    // Drop offline players that haven't been used in a while
+    private void evictPlayers() {
+        List<UUID> online = new ArrayList<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            online.add(player.getUniqueId());
+        }
+        int evicted = permissionService.evictPlayers(online, playerCacheIdle, playerCacheSize);
+        if (evicted > 0)
+            debug(plugin, "Evicted %d players from memory", evicted);
+    }
+
+    @Override
+    public MemoryState loadPlayer(final UUID uuid, boolean wait) {
+        if (!wait && Bukkit.isPrimaryThread()) {
+            // Don't hold up the server, bring them in the same way as a preload
+            if (pendingPlayerLoads.add(uuid)) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            permissionService.getEntity("ignored", uuid, false);
+                        }
+                        finally {
+                            pendingPlayerLoads.remove(uuid);
+                        }
+                        // Whoever asked was answered as if the player had no
+                        // data, so refresh them now that they're loaded
+                        if (plugin.isEnabled()) {
+                            Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+                                @Override
+                                public void run() {
+                                    core.invalidateMetadataCache("ignored", uuid, false);
+                                    core.refreshPlayer(uuid, RefreshCause.GROUP_CHANGE);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+            return null;
+        }
+
+        return internalTransactionStrategy.execute(new TransactionCallback<MemoryState>() {
+            @Override
+            public MemoryState doInTransaction() throws Exception {
+                return permissionDao.loadPlayer(uuid);
+            }
+        }, true);
+    }
+
     @Override
     public PermissionService getPermissionService() {
         return permissionService;
@@ -202,7 +490,29 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
         // Save
         getEbeanServer().save(dv);
 
+        // Record what changed, for the benefit of other servers
+        permissionDao.writeJournal(dv.getVersion());
+
         lastLoadedVersion.compareAndSet(previousVersion, dv.getVersion()); // probably not the appropriate place. Should really be post-commit...
+
+        permissionDao.commitWrite();
+    }
+
+    // Runs in its own transaction so it never holds up a write
+    private void pruneJournal() {
+        final Date expire = new Date(System.currentTimeMillis() - journalRetention);
+        try {
+            int count = internalTransactionStrategy.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction() throws Exception {
+                    return permissionDao.pruneJournal(expire);
+                }
+            });
+            debug(plugin, "Pruned %d journal entries", count);
+        }
+        catch (Exception e) {
+            log(plugin, Level.WARNING, "Error pruning journal: %s", e.getMessage());
+        }
     }
 
     @Override
@@ -211,6 +521,8 @@ public class AvajeStorageStrategy implements StorageStrategy, PreBeginHook, PreC
         
         if (readOnlyMode)
             throw new ReadOnlyException();
+
+        permissionDao.clearJournal();
     }
 
     // UuidResolver methods (most are allowed to block)
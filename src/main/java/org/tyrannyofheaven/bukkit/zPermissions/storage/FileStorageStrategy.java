@@ -45,6 +45,8 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
 
     private static final int SAVE_DELAY = 10; // seconds
 
+    private static final int JOURNAL_DELAY = 1; // seconds
+
     private final InMemoryPermissionService permissionService = new InMemoryPermissionService();
 
     private final FilePermissionDao permissionDao = new FilePermissionDao(permissionService);
@@ -55,6 +57,10 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
 
     private boolean initialized;
 
+    private File journalFile; // null unless journaling
+
+    private long compactionSize = 1024L * 1024L; // Default to 1 MB
+
     private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
     private ScheduledFuture<?> saveTask; // protected by this
@@ -67,9 +73,22 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
 
     @Override
     public void init(Map<String, Object> configMap) {
-        if (saveFile.exists()) {
+        // FIXME currently hidden options
+        Boolean fileJournal = (Boolean)configMap.get("file-journal");
+        if (fileJournal != null && fileJournal) {
+            journalFile = new File(saveFile.getParentFile(), saveFile.getName() + ".journal");
+            permissionDao.setJournaling(true);
+        }
+        debug(plugin, "FileStorageStrategy fileJournal = %s", journalFile != null);
+        Number compactionSize = (Number)configMap.get("file-journal-compaction-size");
+        if (compactionSize != null) {
+            this.compactionSize = compactionSize.longValue() * 1024L;
+            debug(plugin, "FileStorageStrategy compactionSize = %d", this.compactionSize);
+        }
+
+        if (saveFile.exists() || (journalFile != null && journalFile.exists())) {
             try {
-                permissionDao.load(saveFile);
+                permissionDao.load(saveFile, journalFile);
                 initialized = true;
             }
             catch (IOException e) {
@@ -120,9 +139,11 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
             @Override
             public void run() {
                 cancelSaveTask();
+                if (journalFile != null)
+                    save(); // Buffered changes would otherwise be re-applied after loading
 
                 try {
-                    permissionDao.load(saveFile);
+                    permissionDao.load(saveFile, journalFile);
                 }
                 catch (IOException e) {
                     log(plugin, Level.SEVERE, "Error loading permissions database:", e);
@@ -164,7 +185,7 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
             if (permissionDao.isDirty()) {
                 synchronized (this) {
                     if (permissionDao.isDirty() && saveTask == null) { // NB re-test dirty
-                        saveTask = executorService.schedule(this, SAVE_DELAY, TimeUnit.SECONDS);
+                        saveTask = executorService.schedule(this, journalFile != null ? JOURNAL_DELAY : SAVE_DELAY, TimeUnit.SECONDS);
                     }
                 }
             }
@@ -192,7 +213,17 @@ public class FileStorageStrategy implements StorageStrategy, TransactionStrategy
     // All calls are therefore serialized
     private void save() {
         try {
-            permissionDao.save(saveFile);
+            if (journalFile != null) {
+                // Only write what changed, saving everything once the journal gets large
+                permissionDao.appendJournal(journalFile);
+                if (journalFile.length() >= compactionSize) {
+                    debug(plugin, "Compacting permissions journal...");
+                    permissionDao.compact(saveFile, journalFile);
+                }
+            }
+            else {
+                permissionDao.save(saveFile);
+            }
         }
         catch (IOException e) {
             log(plugin, Level.SEVERE, "Error saving permissions database:", e);
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.tyrannyofheaven.bukkit.zPermissions.RefreshCause;
+import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
+
+/**
+ * Rate-limits movement-based permission updates. Each player is updated at
+ * most once per interval. Movement during the interval is coalesced into a
+ * single update (using the player's location at that time) once the interval
+ * is over, so the final position is always applied. Teleports and respawns
+ * are always applied immediately.
+ * 
+ * <p>Must only be used from the main thread.
+ * 
+ * @author zerothangel
+ */
+public class MovementRefreshScheduler implements Runnable {
+
+    private static final long STATS_INTERVAL = 60L * 1000L; // ms
+
+    private final ZPermissionsCore core;
+
+    private final Plugin plugin;
+
+    private long interval; // ms
+
+    private final Map<UUID, Long> lastUpdates = new HashMap<>();
+
+    private final Set<UUID> deferred = new LinkedHashSet<>();
+
+    private int taskId = -1;
+
+    private long appliedCount;
+
+    private long suppressedCount;
+
+    private long lastStats;
+
+    public MovementRefreshScheduler(ZPermissionsCore core, Plugin plugin) {
+        this.core = core;
+        this.plugin = plugin;
+    }
+
+    /**
+     * Set the minimum time between movement-based updates of a player.
+     * 
+     * @param interval the interval in milliseconds. 0 to update on every movement.
+     */
+    public void setInterval(int interval) {
+        if (interval < 0)
+            interval = 0;
+        this.interval = interval;
+    }
+
+    /**
+     * Update the player's permissions for their new location, unless they
+     * were updated too recently. In that case, the update is deferred.
+     * 
+     * @param player the player
+     * @param location the player's new location
+     */
+    public void movement(Player player, Location location) {
+        UUID uuid = player.getUniqueId();
+        if (deferred.contains(uuid)) {
+            // Will be picked up by the deferred update
+            suppressedCount++;
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Long lastUpdate = lastUpdates.get(uuid);
+        if (lastUpdate != null && now - lastUpdate < interval) {
+            suppressedCount++;
+            deferred.add(uuid);
+            if (taskId < 0) {
+                taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, this, 1L, 1L);
+                if (taskId < 0)
+                    debug(plugin, "Failed to schedule MovementRefreshScheduler! Falling back to immediate updates.");
+            }
+            if (taskId >= 0)
+                return;
+            deferred.remove(uuid);
+        }
+
+        update(player, location, now);
+    }
+
+    /**
+     * Update the player's permissions right away (e.g. teleport, respawn).
+     * 
+     * @param player the player
+     * @param location the player's new location
+     */
+    public void immediate(Player player, Location location) {
+        deferred.remove(player.getUniqueId());
+        update(player, location, System.currentTimeMillis());
+    }
+
+    /**
+     * Forget about a player (e.g. they quit).
+     * 
+     * @param uuid the player's UUID
+     */
+    public void remove(UUID uuid) {
+        lastUpdates.remove(uuid);
+        deferred.remove(uuid);
+    }
+
+    // Apply any deferred updates whose interval is up
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        for (Iterator<UUID> i = deferred.iterator(); i.hasNext();) {
+            UUID uuid = i.next();
+            Long lastUpdate = lastUpdates.get(uuid);
+            if (lastUpdate != null && now - lastUpdate < interval)
+                continue;
+
+            i.remove();
+            Player player = Bukkit.getPlayer(uuid);
+            if (player != null)
+                update(player, player.getLocation(), now);
+            else
+                lastUpdates.remove(uuid);
+        }
+
+        if (deferred.isEmpty()) {
+            if (now - lastStats >= STATS_INTERVAL) {
+                debug(plugin, "Movement updates: %d applied, %d suppressed", appliedCount, suppressedCount);
+                lastStats = now;
+            }
+            stop();
+        }
+    }
+
+    public void stop() {
+        if (taskId > -1) {
+            Bukkit.getScheduler().cancelTask(taskId);
+            taskId = -1;
+        }
+        deferred.clear();
+    }
+
+    /**
+     * Record that a movement-based update was actually resolved and applied,
+     * i.e. the player's world or regions had changed.
+     */
+    public void applied() {
+        appliedCount++;
+    }
+
+    // Number of movement-based updates actually performed
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    // Number of movement events coalesced into a later update
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    private void update(Player player, Location location, long now) {
+        lastUpdates.put(player.getUniqueId(), now);
+        core.setBukkitPermissions(player, location, false, RefreshCause.MOVEMENT);
+    }
+
+}
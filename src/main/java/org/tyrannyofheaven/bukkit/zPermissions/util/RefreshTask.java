@@ -26,6 +26,7 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
@@ -34,7 +35,10 @@ import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
 
 /**
  * Periodically calls {@link ZPermissionsCore#refreshPlayer(UUID, RefreshCause)} on the
- * given queue of players.
+ * given queue of players. If a time budget is set, each run refreshes as
+ * many players as are expected to fit within it (based on the measured
+ * cost per player) and the next run is scheduled for the following tick.
+ * Otherwise, a single player is refreshed per run.
  * 
  * @author zerothangel
  */
@@ -46,10 +50,18 @@ public class RefreshTask implements Runnable {
 
     private int delay;
 
+    private long budget; // nanoseconds
+
     private final Queue<UUID> playersToRefresh = new LinkedList<>(); // synchronized on this
 
     private int taskId = -1; // synchronized on this
 
+    private long averageCost; // nanoseconds per player, synchronized on this
+
+    private long drainStart; // synchronized on this
+
+    private int drainCount; // synchronized on this
+
     public RefreshTask(ZPermissionsCore core, Plugin plugin) {
         this.core = core;
         this.plugin = plugin;
@@ -61,10 +73,58 @@ public class RefreshTask implements Runnable {
         this.delay = delay;
     }
 
+    /**
+     * Set the maximum amount of main thread time to spend per run.
+     * 
+     * @param budget the budget in milliseconds. 0 to refresh a single player
+     *   per run.
+     */
+    public void setBudget(int budget) {
+        if (budget < 0)
+            budget = 0;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    /**
+     * Returns the number of players waiting to be refreshed.
+     * 
+     * @return the queue length
+     */
+    public synchronized int getQueueSize() {
+        return playersToRefresh.size();
+    }
+
+    /**
+     * Returns the rate at which the queue is (or was last) being drained.
+     * 
+     * @return players refreshed per second
+     */
+    public synchronized double getDrainRate() {
+        long elapsed = System.nanoTime() - drainStart;
+        if (drainCount == 0 || elapsed <= 0)
+            return 0.0;
+        return drainCount * (double)TimeUnit.SECONDS.toNanos(1L) / elapsed;
+    }
+
+    /**
+     * Returns the measured main thread time it takes to refresh a player.
+     * 
+     * @return average cost in milliseconds
+     */
+    public synchronized double getAverageCost() {
+        return averageCost / (double)TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+
     public synchronized void start(Collection<UUID> playerUuids) {
         if (playerUuids == null || playerUuids.isEmpty())
             return; // Nothing to do
 
+        if (playersToRefresh.isEmpty()) {
+            // Starting a new drain
+            drainStart = System.nanoTime();
+            drainCount = 0;
+        }
+
         // Build a set to maintain uniqueness
         Set<UUID> nextPlayersToRefresh = new LinkedHashSet<>(playersToRefresh);
 
@@ -78,11 +138,11 @@ public class RefreshTask implements Runnable {
         // Schedule task if not already scheduled
         if (taskId < 0) {
             debug(plugin, "Scheduling background refresh");
-            scheduleTask();
+            scheduleTask(delay);
         }
     }
 
-    private void scheduleTask() {
+    private void scheduleTask(int delay) {
         if ((taskId = Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, this, (long)delay)) < 0) {
             error(plugin, "Failed to schedule RefreshTask! Remaining players: %s", delimitedString(", ", playersToRefresh));
         }
@@ -100,20 +160,33 @@ public class RefreshTask implements Runnable {
     public synchronized void run() {
         taskId = -1;
 
-        if (!playersToRefresh.isEmpty()) {
+        long start = System.nanoTime();
+        int count = 0;
+        while (!playersToRefresh.isEmpty()) {
+            // Always refresh at least one, then stop before exceeding the budget
+            if (count > 0 && System.nanoTime() - start + averageCost > budget)
+                break;
+
             UUID playerToRefresh = playersToRefresh.remove();
 
             // Refresh single player
+            long playerStart = System.nanoTime();
             core.invalidateMetadataCache("ignored", playerToRefresh, false);
             core.refreshPlayer(playerToRefresh, RefreshCause.GROUP_CHANGE); // NB Assumes all who call start() are doing so for group- or server-wide changes
+            long cost = System.nanoTime() - playerStart;
+
+            // Moving average, so a single slow refresh doesn't skew things
+            averageCost = averageCost == 0L ? cost : (averageCost * 7L + cost) / 8L;
+            count++;
         }
-        
-        // Schedule next player
+        drainCount += count;
+
+        // Schedule next batch
         if (!playersToRefresh.isEmpty()) {
-            scheduleTask();
+            scheduleTask(budget > 0L ? 1 : delay);
         }
         else
-            debug(plugin, "Done doing background refresh!");
+            debug(plugin, "Done doing background refresh! (%d players, %.1f players/sec)", drainCount, getDrainRate());
     }
 
 }
@@ -16,27 +16,48 @@
 package org.tyrannyofheaven.bukkit.zPermissions.util;
 
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
 import static org.tyrannyofheaven.bukkit.zPermissions.util.Utils.formatPlayerName;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bukkit.Bukkit;
+import org.bukkit.permissions.Permission;
 import org.bukkit.plugin.Plugin;
-import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallback;
+import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallbackWithoutResult;
 import org.tyrannyofheaven.bukkit.zPermissions.PermissionsResolver;
-import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.StorageStrategy;
 
+/**
+ * Searches for players and groups with a matching permission. Direct matches
+ * come from the permission index. Effective searches are performed on a
+ * worker pool, with results and progress delivered on the main thread.
+ * 
+ * @author zerothangel
+ */
 public class SearchTask implements Runnable {
 
     private static final AtomicInteger searchIdGenerator = new AtomicInteger();
 
+    // Milliseconds between progress reports
+    private static final long PROGRESS_INTERVAL = 5000L;
+
+    private static final ConcurrentMap<Integer, SearchTask> activeSearches = new ConcurrentHashMap<>();
+
     private final int searchId;
 
     private final Plugin plugin;
@@ -59,10 +80,34 @@ public class SearchTask implements Runnable {
 
     private final boolean showUuid;
 
-    private int batchSize = 1;
+    private int batchSize = 100;
     
     private int delay = 5;
 
+    private int threads = 2;
+
+    // Entities already reported from the permission index
+    private final Set<UUID> matchedPlayers = new HashSet<>();
+
+    private final Set<String> matchedGroups = new HashSet<>();
+
+    // Children of registered Bukkit permissions, captured on the main thread
+    private Map<String, Map<String, Boolean>> childPermissions;
+
+    private final Queue<String> results = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger checked = new AtomicInteger();
+
+    private volatile boolean cancelled;
+
+    private ForkJoinPool pool;
+
+    private SearchPartition root;
+
+    private int taskId = -1;
+
+    private long lastProgress;
+
     public SearchTask(Plugin plugin, StorageStrategy storageStrategy, PermissionsResolver resolver, String permission, List<UUID> players, List<String> groups, boolean effective, String world, Set<String> regions, boolean showUuid) {
         this.searchId = searchIdGenerator.incrementAndGet();
         this.plugin = plugin;
@@ -97,66 +142,156 @@ public class SearchTask implements Runnable {
         this.delay = delay;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Start the search. Must be called from the main thread.
+     */
+    public void start() {
+        searchIndex();
+
+        if (!effective || (players.isEmpty() && groups.isEmpty())) {
+            log(plugin, "Search result (#%d): All done!", getSearchId());
+            return;
+        }
+
+        childPermissions = getChildPermissions();
+
+        activeSearches.put(getSearchId(), this);
+        lastProgress = System.currentTimeMillis();
+        pool = new ForkJoinPool(Math.max(1, getThreads()));
+        root = new SearchPartition(0, players.size() + groups.size());
+        pool.execute(root);
+        taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, this, getDelay(), getDelay());
+    }
+
+    /**
+     * Cancel a running search.
+     * 
+     * @param searchId the search ID
+     * @return true if the search was running
+     */
+    public static boolean cancel(int searchId) {
+        SearchTask searchTask = activeSearches.get(searchId);
+        if (searchTask != null) {
+            searchTask.cancelled = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancel all running searches, e.g. on shutdown.
+     */
+    public static void cancelAll() {
+        for (SearchTask searchTask : activeSearches.values()) {
+            searchTask.cancelled = true;
+            searchTask.finish();
+        }
+    }
+
+    // Delivers results and progress on the main thread
     @Override
     public void run() {
-        int size = 0;
-        
-        while (size < getBatchSize() && !players.isEmpty()) {
-            UUID uuid = players.remove(0);
-            
-            PermissionEntity entity = storageStrategy.getPermissionService().getEntity("ignored", uuid, false);
-            if (entity != null && !entity.getPermissions().isEmpty()) {
-                if (checkPermissions(entity) || (effective && checkEffectivePermissions(entity))) {
-                    log(plugin, "Search result (#%d): player %s", getSearchId(), formatPlayerName(entity, showUuid));
-                }
-            }
-            
-            size++;
-        }
+        deliverResults();
 
-        while (size < getBatchSize() && !groups.isEmpty()) {
-            String groupName = groups.remove(0);
-            
-            PermissionEntity entity = storageStrategy.getPermissionService().getEntity(groupName, null, true);
-            if (entity != null && !entity.getPermissions().isEmpty()) {
-                if (checkPermissions(entity) || (effective && checkEffectivePermissions(entity))) {
-                    log(plugin, "Search result (#%d): group %s", getSearchId(), entity.getDisplayName());
-                }
-            }
-            
-            size++;
+        if (cancelled) {
+            log(plugin, "Search result (#%d): Cancelled after checking %d of %d", getSearchId(), checked.get(), players.size() + groups.size());
+            finish();
         }
-        
-        if (players.isEmpty() && groups.isEmpty()) {
-            log(plugin, "Search result (#%d): All done!", getSearchId());
+        else if (root.isDone()) {
+            if (root.isCompletedAbnormally())
+                warn(plugin, "Search (#%d) failed: %s", getSearchId(), root.getException());
+            else
+                log(plugin, "Search result (#%d): All done!", getSearchId());
+            finish();
         }
-        else {
-            Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, this, getDelay());
+        else if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL) {
+            log(plugin, "Search progress (#%d): checked %d of %d", getSearchId(), checked.get(), players.size() + groups.size());
+            lastProgress = System.currentTimeMillis();
         }
     }
 
-    private boolean checkPermissions(PermissionEntity entity) {
-        for (Entry e : entity.getPermissions()) {
-            if (e.getPermission().contains(permission))
-                return true;
+    private void deliverResults() {
+        String result;
+        while ((result = results.poll()) != null) {
+            log(plugin, "Search result (#%d): %s", getSearchId(), result);
         }
-        return false;
     }
 
-    private boolean checkEffectivePermissions(final PermissionEntity entity) {
-        Map<String, Boolean> rootPermissions = storageStrategy.getTransactionStrategy().execute(new TransactionCallback<Map<String, Boolean>>() {
-            @Override
-            public Map<String, Boolean> doInTransaction() throws Exception {
-                if (entity.isGroup()) {
-                    return resolver.resolveGroup(entity.getDisplayName(), world, regions);
+    private void finish() {
+        if (activeSearches.remove(getSearchId()) == null)
+            return;
+        Bukkit.getScheduler().cancelTask(taskId);
+        pool.shutdownNow();
+    }
+
+    // Report entities that directly set a matching permission, limited to
+    // the players and groups being searched
+    private void searchIndex() {
+        if (!players.isEmpty()) {
+            Set<UUID> searched = new HashSet<>(players);
+            for (PermissionEntity entity : storageStrategy.getPermissionService().findEntities(permission, false)) {
+                if (!searched.contains(entity.getUuid()))
+                    continue;
+                matchedPlayers.add(entity.getUuid());
+                log(plugin, "Search result (#%d): player %s", getSearchId(), formatPlayerName(entity, showUuid));
+            }
+        }
+        if (!groups.isEmpty()) {
+            Set<String> searched = new HashSet<>();
+            for (String group : groups) {
+                searched.add(group.toLowerCase());
+            }
+            for (PermissionEntity entity : storageStrategy.getPermissionService().findEntities(permission, true)) {
+                if (!searched.contains(entity.getName()))
+                    continue;
+                matchedGroups.add(entity.getName());
+                log(plugin, "Search result (#%d): group %s", getSearchId(), entity.getDisplayName());
+            }
+        }
+    }
+
+    // Called on a worker thread
+    private void check(int index) {
+        PermissionService permissionService = storageStrategy.getPermissionService();
+        if (index < players.size()) {
+            UUID uuid = players.get(index);
+            if (!matchedPlayers.contains(uuid)) {
+                PermissionEntity entity = permissionService.getEntity("ignored", uuid, false);
+                if (entity != null && !permissionService.getEntries("ignored", uuid, false).isEmpty() && checkEffectivePermissions(entity)) {
+                    results.add("player " + formatPlayerName(entity, showUuid));
                 }
-                else {
-                    return resolver.resolvePlayer(entity.getUuid(), world, regions).getPermissions();
+            }
+        }
+        else {
+            String groupName = groups.get(index - players.size());
+            if (!matchedGroups.contains(groupName.toLowerCase())) {
+                PermissionEntity entity = permissionService.getEntity(groupName, null, true);
+                if (entity != null && !permissionService.getEntries(groupName, null, true).isEmpty() && checkEffectivePermissions(entity)) {
+                    results.add("group " + entity.getDisplayName());
                 }
             }
-        }, true);
+        }
+        checked.incrementAndGet();
+    }
+
+    private boolean checkEffectivePermissions(PermissionEntity entity) {
+        Map<String, Boolean> rootPermissions;
+        if (entity.isGroup()) {
+            rootPermissions = resolver.resolveGroup(entity.getDisplayName(), world, regions);
+        }
+        else {
+            rootPermissions = resolver.resolvePlayer(entity.getUuid(), world, regions).getPermissions();
+        }
         Map<String, Boolean> permissions = new HashMap<>();
-        Utils.calculateChildPermissions(permissions, rootPermissions, false);
+        Utils.calculateChildPermissions(permissions, rootPermissions, false, childPermissions);
         for (String k : permissions.keySet()) {
             if (k.contains(permission))
                 return true;
@@ -164,4 +299,50 @@ public class SearchTask implements Runnable {
         return false;
     }
 
+    private static Map<String, Map<String, Boolean>> getChildPermissions() {
+        Map<String, Map<String, Boolean>> result = new HashMap<>();
+        for (Permission perm : Bukkit.getPluginManager().getPermissions()) {
+            if (!perm.getChildren().isEmpty())
+                result.put(perm.getName().toLowerCase(), new HashMap<>(perm.getChildren()));
+        }
+        return result;
+    }
+
+    // Checks a range of entities, splitting it while larger than the batch size
+    private class SearchPartition extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+
+        private final int end;
+
+        public SearchPartition(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled)
+                return;
+
+            if (end - start > Math.max(1, getBatchSize())) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new SearchPartition(start, middle), new SearchPartition(middle, end));
+                return;
+            }
+
+            storageStrategy.getTransactionStrategy().execute(new TransactionCallbackWithoutResult() {
+                @Override
+                public void doInTransactionWithoutResult() throws Exception {
+                    for (int i = start; i < end && !cancelled; i++) {
+                        check(i);
+                    }
+                }
+            }, true);
+        }
+
+    }
+
 }
@@ -474,6 +474,21 @@ public class Utils {
         }
     }
 
+    // As above, but using a snapshot of registered permissions' children (may be used off the main thread)
+    public static void calculateChildPermissions(Map<String, Boolean> permissions, Map<String, Boolean> children, boolean invert, Map<String, Map<String, Boolean>> childPermissions) {
+        for (Map.Entry<String, Boolean> me : children.entrySet()) {
+            String key = me.getKey().toLowerCase();
+            Map<String, Boolean> grandchildren = childPermissions.get(key);
+            boolean value = me.getValue() ^ invert;
+            
+            permissions.put(key, value);
+            
+            if (grandchildren != null) {
+                calculateChildPermissions(permissions, grandchildren, !value, childPermissions);
+            }
+        }
+    }
+
     public static void validatePlayer(PermissionService permissionService, String defaultGroup, UUID uuid, String playerName, List<String> header) {
         if (permissionService.getGroups(uuid).isEmpty() &&
                 permissionService.getEntity(playerName, uuid, false) == null) {
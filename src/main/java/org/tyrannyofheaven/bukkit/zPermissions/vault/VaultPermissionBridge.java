@@ -216,8 +216,7 @@ public class VaultPermissionBridge extends PermissionCompatibility implements Li
     @Override
     public boolean playerHas(String world, OfflinePlayer player, String permission) {
         if (!player.isOnline()) {
-            Map<String, Boolean> perms = service.getPlayerPermissions(world, null, player.getUniqueId());
-            Boolean value = perms.get(permission.toLowerCase());
+            Boolean value = service.getPlayerPermission(world, null, player.getUniqueId(), permission);
             if (value != null) {
                 return value;
             }
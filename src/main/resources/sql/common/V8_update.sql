@@ -0,0 +1,11 @@
+CREATE TABLE ${JournalEntry} (
+  id BIGINT,
+  version BIGINT NOT NULL,
+  name VARCHAR(255),
+  is_group BOOL NOT NULL,
+  timestamp TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
+CREATE SEQUENCE ${JournalEntry}_seq;
+CREATE INDEX ON ${JournalEntry} (version);
+CREATE INDEX ON ${JournalEntry} (timestamp);
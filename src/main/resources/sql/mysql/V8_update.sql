@@ -0,0 +1,10 @@
+CREATE TABLE ${JournalEntry} (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  version BIGINT NOT NULL,
+  name VARCHAR(255),
+  is_group TINYINT(1) NOT NULL,
+  timestamp DATETIME NOT NULL,
+  PRIMARY KEY (id)
+);
+CREATE INDEX ix_${JournalEntry}_version ON ${JournalEntry} (version);
+CREATE INDEX ix_${JournalEntry}_timestamp ON ${JournalEntry} (timestamp);
@@ -3,9 +3,13 @@ package org.tyrannyofheaven.bukkit.zPermissions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +19,7 @@ import java.util.UUID;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.PermissionsResolver.ResolverResult;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
@@ -26,6 +31,10 @@ public abstract class AbstractResolverTest {
 
     private static final UUID TEST_PLAYER_UUID = UUID.randomUUID();
 
+    private static final String TEST_PLAYER2 = "Player2";
+
+    private static final UUID TEST_PLAYER2_UUID = UUID.randomUUID();
+
     protected static final String TEST_GROUP1 = "Group1";
 
     private static final String TEST_GROUP2 = "Group2";
@@ -218,6 +227,68 @@ public abstract class AbstractResolverTest {
         assertPermission(permissions, "basic.perm3");
     }
 
+    @Test
+    public void testRegionChangeAfterUpdate() {
+        setPermissions(TEST_PLAYER, TEST_PLAYER_UUID,
+                false,
+                "basic.perm1",
+                TEST_REGION1 + "/" + TEST_WORLD1 + ":basic.perm2");
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2", false);
+
+        // Region change only
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1, TEST_REGION1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+
+        // Base permissions change, then region change
+        setPermissions(TEST_PLAYER, TEST_PLAYER_UUID, false, TEST_WORLD1 + ":basic.perm3");
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2", false);
+        assertPermission(permissions, "basic.perm3");
+
+        // Group change, then region change
+        assertTrue(createGroup(TEST_GROUP1));
+        setPermissionsFalse(TEST_GROUP1, null, true, "basic.perm4");
+        begin();
+        try {
+            getPermissionService().setGroup(TEST_PLAYER_UUID, TEST_PLAYER, TEST_GROUP1, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1, TEST_REGION1);
+        assertPermission(permissions, "basic.perm2");
+        assertPermission(permissions, "basic.perm3");
+        assertTrue(permissions.containsKey("basic.perm4"));
+        assertPermission(permissions, "basic.perm4", false);
+    }
+
+    @Test
+    public void testResultCache() {
+        setPermissions(TEST_PLAYER, TEST_PLAYER_UUID, false, "basic.perm1");
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1, TEST_REGION1);
+        assertPermission(permissions, "basic.perm1");
+
+        // Same location, no changes
+        long hits = getResolver().getResultCacheHits();
+        assertTrue(permissions == resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1, TEST_REGION1));
+        assertEquals(hits + 1, getResolver().getResultCacheHits());
+
+        // Data changed
+        setPermissionsFalse(TEST_PLAYER, TEST_PLAYER_UUID, false, "basic.perm1");
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1, TEST_REGION1);
+        assertPermission(permissions, "basic.perm1", false);
+        assertEquals(hits + 1, getResolver().getResultCacheHits());
+    }
+
     @Test
     public void testDefaultGroupResolve() {
         Map<String, Boolean> permissions;
@@ -1231,6 +1302,132 @@ public abstract class AbstractResolverTest {
         assertPermission(permissions, "basic.perm1");
     }
 
+    @Test
+    public void testSeparableLayers() {
+        assertTrue(createGroup(TEST_GROUP1));
+        setPermissions(TEST_GROUP1, null, true, "basic.perm1", TEST_WORLD1 + ":basic.perm2");
+
+        begin();
+        try {
+            getPermissionService().setGroup(TEST_PLAYER_UUID, TEST_PLAYER, TEST_GROUP1, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        ResolverResult result;
+
+        // No player permissions, so interleaving doesn't matter
+        result = getResolver().resolvePlayer(TEST_PLAYER_UUID, TEST_WORLD1.toLowerCase(), Collections.<String>emptySet());
+        assertNotNull(result.getGroupPermissions());
+        assertEquals(result.getPermissions(), result.getGroupPermissions());
+        assertTrue(result.getPlayerPermissions().isEmpty());
+
+        // Interleaved player permissions cannot be separated
+        setPermissionsFalse(TEST_PLAYER, TEST_PLAYER_UUID, false, "basic.perm1");
+        result = getResolver().resolvePlayer(TEST_PLAYER_UUID, TEST_WORLD1.toLowerCase(), Collections.<String>emptySet());
+        assertNull(result.getGroupPermissions());
+        assertNull(result.getPlayerPermissions());
+        assertPermission(result.getPermissions(), "basic.perm1", false);
+
+        // But can be when applied last
+        resolver.setInterleavedPlayerPermissions(false);
+        result = getResolver().resolvePlayer(TEST_PLAYER_UUID, TEST_WORLD1.toLowerCase(), Collections.<String>emptySet());
+        assertPermission(result.getGroupPermissions(), "basic.perm1");
+        assertPermission(result.getGroupPermissions(), "basic.perm2");
+        assertEquals(1, result.getPlayerPermissions().size());
+        assertPermission(result.getPlayerPermissions(), "basic.perm1", false);
+        assertPermission(result.getPermissions(), "basic.perm1", false);
+        assertPermission(result.getPermissions(), "basic.perm2");
+    }
+
+    @Test
+    public void testAssignedGroupsDistinguishGroupLayer() {
+        assertTrue(createGroup(TEST_GROUP1));
+        assertTrue(createGroup(TEST_GROUP2));
+
+        begin();
+        try {
+            getPermissionService().setParent(TEST_GROUP2, TEST_GROUP1);
+            getPermissionService().setGroup(TEST_PLAYER_UUID, TEST_PLAYER, TEST_GROUP2, null);
+            getPermissionService().addMember(TEST_GROUP1, TEST_PLAYER2_UUID, TEST_PLAYER2, null);
+            getPermissionService().addMember(TEST_GROUP2, TEST_PLAYER2_UUID, TEST_PLAYER2, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        resolver.setInterleavedPlayerPermissions(false);
+        ResolverResult result1 = getResolver().resolvePlayer(TEST_PLAYER_UUID, TEST_WORLD1.toLowerCase(), Collections.<String>emptySet());
+        ResolverResult result2 = getResolver().resolvePlayer(TEST_PLAYER2_UUID, TEST_WORLD1.toLowerCase(), Collections.<String>emptySet());
+
+        // Same resolution order...
+        assertEquals(new ArrayList<>(result1.getGroups()), new ArrayList<>(result2.getGroups()));
+
+        // ...but different group layers, told apart by the assigned groups
+        assertPermission(result1.getGroupPermissions(), "assignedgroup.Group1", false);
+        assertPermission(result2.getGroupPermissions(), "assignedgroup.Group1");
+        assertFalse(result1.getAssignedGroups().equals(result2.getAssignedGroups()));
+    }
+
+    // Point queries should agree with full resolution
+    private void assertPointQueries(String world, String... permissions) {
+        Set<String> regions = new LinkedHashSet<>();
+        regions.add(TEST_REGION1.toLowerCase());
+        regions.add(TEST_REGION2.toLowerCase());
+
+        Boolean[] values = new Boolean[permissions.length];
+        begin();
+        try {
+            // NB before full resolution, so nothing is cached
+            for (int i = 0; i < permissions.length; i++) {
+                values[i] = getResolver().resolvePlayerPermission(TEST_PLAYER_UUID, world.toLowerCase(), regions, permissions[i]);
+            }
+            Map<String, Boolean> resolved = getResolver().resolvePlayer(TEST_PLAYER_UUID, world.toLowerCase(), regions).getPermissions();
+            for (int i = 0; i < permissions.length; i++) {
+                assertEquals(permissions[i], resolved.get(permissions[i]), values[i]);
+            }
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testPointQuery() {
+        assertTrue(createGroup(TEST_GROUP1));
+        setPermissions(TEST_GROUP1, null, true,
+                "basic.perm1", TEST_WORLD1 + ":basic.perm2",
+                TEST_REGION1 + "/basic.perm3", TEST_REGION2 + "/" + TEST_WORLD1 + ":basic.perm4");
+        setPermissionsFalse(TEST_GROUP1, null, true,
+                TEST_WORLD1 + ":basic.perm1", TEST_REGION2 + "/basic.perm3");
+
+        begin();
+        try {
+            getPermissionService().setGroup(TEST_PLAYER_UUID, TEST_PLAYER, TEST_GROUP1, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        String[] permissions = { "basic.perm1", "basic.perm2", "basic.perm3", "basic.perm4", "basic.perm5", "group.group1" };
+        assertPointQueries(TEST_WORLD1, permissions);
+        assertPointQueries(TEST_WORLD2, permissions);
+
+        setPermissions(TEST_PLAYER, TEST_PLAYER_UUID, false, TEST_REGION1 + "/basic.perm1", "basic.perm3");
+        setPermissionsFalse(TEST_PLAYER, TEST_PLAYER_UUID, false, "basic.perm2");
+        assertPointQueries(TEST_WORLD1, permissions);
+        assertPointQueries(TEST_WORLD2, permissions);
+
+        resolver.setInterleavedPlayerPermissions(false);
+        assertPointQueries(TEST_WORLD1, permissions);
+        assertPointQueries(TEST_WORLD2, permissions);
+    }
+
     @Test
     public void testAutoOverride() {
         // Set up groups
@@ -1290,6 +1487,47 @@ public abstract class AbstractResolverTest {
         assertPermission(permissions, "basic.perm2");
     }
 
+    // Dynamic permission children must follow the resolved order, even when
+    // a priority change only reorders existing nodes
+    @Test
+    public void testPrioritySwapOrdering() {
+        assertTrue(createGroup(TEST_GROUP1));
+        setPermissions(TEST_GROUP1, null, true, "basic.perm1");
+        assertTrue(createGroup(TEST_GROUP2));
+        setPermissions(TEST_GROUP2, null, true, "basic.perm2");
+
+        begin();
+        try {
+            getPermissionService().setPriority(TEST_GROUP1, 100);
+            getPermissionService().addMember(TEST_GROUP1, TEST_PLAYER_UUID, TEST_PLAYER, null);
+            getPermissionService().addMember(TEST_GROUP2, TEST_PLAYER_UUID, TEST_PLAYER, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        Map<String, Boolean> children = new LinkedHashMap<>(resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1));
+
+        // Swap priorities
+        begin();
+        try {
+            getPermissionService().setPriority(TEST_GROUP1, 0);
+            getPermissionService().setPriority(TEST_GROUP2, 100);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        Map<String, Boolean> permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertEquals(children.keySet(), permissions.keySet());
+        assertFalse(new ArrayList<>(children.keySet()).equals(new ArrayList<>(permissions.keySet())));
+
+        assertTrue(ZPermissionsPlugin.updateChildren(children, permissions));
+        assertEquals(new ArrayList<>(permissions.keySet()), new ArrayList<>(children.keySet()));
+    }
+
     @Test
     public void testRegionOrdering() {
         setPermissionsFalse(TEST_PLAYER, TEST_PLAYER_UUID,
@@ -1599,4 +1837,68 @@ public abstract class AbstractResolverTest {
         assertPermission(permissions, "basic.perm2");
     }
 
+    @Test
+    public void testGroupCacheInvalidation() {
+        assertTrue(createGroup(TEST_GROUP1));
+        assertTrue(createGroup(TEST_GROUP2));
+        assertTrue(createGroup(TEST_GROUP3));
+
+        begin();
+        try {
+            getPermissionService().setParent(TEST_GROUP2, TEST_GROUP1);
+            getPermissionService().setGroup(TEST_PLAYER_UUID, TEST_PLAYER, TEST_GROUP2, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        setPermissions(TEST_GROUP1, null, true, "basic.perm1");
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2", false);
+
+        // Change ancestor after results have been cached
+        setPermissions(TEST_GROUP1, null, true, TEST_WORLD1 + ":basic.perm2");
+
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD2);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2", false);
+
+        // Re-parent
+        setPermissions(TEST_GROUP3, null, true, "basic.perm3");
+        begin();
+        try {
+            getPermissionService().setParent(TEST_GROUP2, TEST_GROUP3);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1", false);
+        assertPermission(permissions, "basic.perm2", false);
+        assertPermission(permissions, "basic.perm3");
+
+        // Delete parent
+        begin();
+        try {
+            getPermissionService().deleteEntity(TEST_GROUP3, null, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        permissions = resolve(TEST_PLAYER, TEST_PLAYER_UUID, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm3", false);
+        assertPermission(permissions, "group.Group2");
+    }
+
 }
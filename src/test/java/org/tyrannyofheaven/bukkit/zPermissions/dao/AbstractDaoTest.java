@@ -20,11 +20,24 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.canonicalizeUuid;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.InMemoryPermissionService.MemoryState;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
@@ -40,6 +53,8 @@ public abstract class AbstractDaoTest {
 
     private static final String TEST_GROUP2 = "Group2";
 
+    private static final String TEST_GROUP3 = "Group3";
+
     private static final String TEST_PERMISSION = "foo.bar";
 
     private static final String TEST_METADATA = "my_metadata";
@@ -588,6 +603,160 @@ public abstract class AbstractDaoTest {
         }
     }
 
+    // Multi-level inheritance, check ancestry & descendants as graph changes
+    @Test
+    public void testAncestryDescendants() {
+        begin();
+        try {
+            assertTrue(getPermissionService().createGroup(TEST_GROUP1));
+            assertTrue(getPermissionService().createGroup(TEST_GROUP2));
+            assertTrue(getPermissionService().createGroup(TEST_GROUP3));
+            getPermissionService().setParent(TEST_GROUP2, TEST_GROUP1);
+            getPermissionService().setParent(TEST_GROUP3, TEST_GROUP2);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP1, TEST_GROUP2, TEST_GROUP3), getPermissionService().getAncestry(TEST_GROUP3));
+            assertEquals(new HashSet<>(Arrays.asList(TEST_GROUP2.toLowerCase(), TEST_GROUP3.toLowerCase())), getPermissionService().getDescendants(TEST_GROUP1));
+            assertTrue(getPermissionService().getDescendants(TEST_GROUP3).isEmpty());
+
+            // Attempt to set cycle through grandchild
+            boolean good = false;
+            try {
+                getPermissionService().setParent(TEST_GROUP1, TEST_GROUP3);
+            }
+            catch (PermissionServiceException e) {
+                good = true;
+            }
+            assertTrue(good);
+
+            // Detach middle group from its parent
+            getPermissionService().setParent(TEST_GROUP2, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP2, TEST_GROUP3), getPermissionService().getAncestry(TEST_GROUP3));
+            assertTrue(getPermissionService().getDescendants(TEST_GROUP1).isEmpty());
+
+            // Purge middle group
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP2, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP3), getPermissionService().getAncestry(TEST_GROUP3));
+            assertTrue(getPermissionService().getAncestry(TEST_GROUP2).isEmpty());
+
+            // Clean up
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP1, null, true));
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP3, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    // Results handed out to readers should not change underneath them
+    @Test
+    public void testReadIsolation() {
+        begin();
+        try {
+            assertTrue(getPermissionService().createGroup(TEST_GROUP1));
+            getPermissionService().setPermission(TEST_GROUP1, null, true, null, null, TEST_PERMISSION, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        List<Entry> entries = getPermissionService().getEntries(TEST_GROUP1, null, true);
+        assertEquals(1, entries.size());
+        assertTrue(entries.get(0).isValue());
+
+        begin();
+        try {
+            getPermissionService().setPermission(TEST_GROUP1, null, true, null, null, TEST_PERMISSION, false);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        assertTrue(entries.get(0).isValue());
+        assertFalse(getPermissionService().getPermission(TEST_GROUP1, null, true, null, null, TEST_PERMISSION));
+        assertFalse(getPermissionService().getEntries(TEST_GROUP1, null, true).get(0).isValue());
+
+        begin();
+        try {
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP1, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        assertEquals(1, entries.size());
+        assertTrue(getPermissionService().getEntries(TEST_GROUP1, null, true).isEmpty());
+    }
+
+    // Writes that change nothing should not publish a new version
+    @Test
+    public void testUnchangedDisplayName() {
+        begin();
+        try {
+            getPermissionService().setPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        long version = getPermissionService().getDataVersion();
+        begin();
+        try {
+            getPermissionService().updateDisplayName(TEST_PLAYER_UUID, TEST_PLAYER);
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(version, getPermissionService().getDataVersion());
+
+        begin();
+        try {
+            getPermissionService().updateDisplayName(TEST_PLAYER_UUID, TEST_PLAYER + "2");
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(TEST_PLAYER + "2", getPermissionService().getEntity(TEST_PLAYER, TEST_PLAYER_UUID, false).getDisplayName());
+
+        begin();
+        try {
+            assertTrue(getPermissionService().deleteEntity(TEST_PLAYER, TEST_PLAYER_UUID, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
     @Test
     public void testGetEntities() {
         begin();
@@ -768,4 +937,299 @@ public abstract class AbstractDaoTest {
         return null;
     }
 
+    @Test
+    public void testMergeMemoryState() {
+        MemoryState changes = new MemoryState();
+        PermissionEntity group1 = InMemoryPermissionService.getEntity(changes, TEST_GROUP1, null, true);
+        PermissionEntity group2 = InMemoryPermissionService.getEntity(changes, TEST_GROUP2, null, true);
+
+        Entry entry = new Entry();
+        entry.setEntity(group1);
+        entry.setPermission(TEST_PERMISSION);
+        entry.setValue(true);
+        group1.getPermissions().add(entry);
+
+        Inheritance inheritance = new Inheritance();
+        inheritance.setChild(group1);
+        inheritance.setParent(group2);
+        group1.getInheritancesAsChild().add(inheritance);
+        group2.getInheritancesAsParent().add(inheritance);
+
+        Membership membership = new Membership();
+        membership.setMember(canonicalizeUuid(TEST_PLAYER_UUID));
+        membership.setDisplayName(TEST_PLAYER);
+        membership.setGroup(group1);
+        group1.getMemberships().add(membership);
+
+        getPermissionService().mergeMemoryState(changes, Arrays.asList(TEST_GROUP1.toLowerCase(), TEST_GROUP2.toLowerCase()), Collections.<String>emptyList());
+
+        assertEquals(Boolean.TRUE, getPermissionService().getPermission(TEST_GROUP1, null, true, null, null, TEST_PERMISSION));
+        assertEquals(Arrays.asList(TEST_GROUP2, TEST_GROUP1), getPermissionService().getAncestry(TEST_GROUP1));
+        assertEquals(1, getPermissionService().getGroups(TEST_PLAYER_UUID).size());
+        assertEquals(TEST_GROUP1, getPermissionService().getGroups(TEST_PLAYER_UUID).get(0).getGroup().getDisplayName());
+
+        // Group2 deleted, Group1 no longer has the permission
+        changes = new MemoryState();
+        InMemoryPermissionService.getEntity(changes, TEST_GROUP1, null, true);
+
+        getPermissionService().mergeMemoryState(changes, Arrays.asList(TEST_GROUP1.toLowerCase(), TEST_GROUP2.toLowerCase()), Collections.<String>emptyList());
+
+        assertNull(getPermissionService().getPermission(TEST_GROUP1, null, true, null, null, TEST_PERMISSION));
+        assertEquals(Collections.singletonList(TEST_GROUP1), getPermissionService().getAncestry(TEST_GROUP1));
+        assertNull(getPermissionService().getEntity(TEST_GROUP2, null, true));
+        assertTrue(getPermissionService().getGroups(TEST_PLAYER_UUID).isEmpty());
+    }
+
+    @Test
+    public void testMemoryStateDiff() {
+        final List<MemoryStateDiff> diffs = new ArrayList<>();
+        getPermissionService().addListener(new PermissionServiceListener() {
+            @Override
+            public void groupChanged(String groupName) {
+            }
+
+            @Override
+            public void playerChanged(UUID uuid) {
+            }
+
+            @Override
+            public void memoryStateChanged(MemoryStateDiff diff) {
+                diffs.add(diff);
+            }
+        });
+
+        // Group2 inherits from Group1, player is a member of Group3
+        MemoryState memoryState = new MemoryState();
+        PermissionEntity group1 = InMemoryPermissionService.getEntity(memoryState, TEST_GROUP1, null, true);
+        PermissionEntity group2 = InMemoryPermissionService.getEntity(memoryState, TEST_GROUP2, null, true);
+        PermissionEntity group3 = InMemoryPermissionService.getEntity(memoryState, TEST_GROUP3, null, true);
+        Inheritance inheritance = new Inheritance();
+        inheritance.setChild(group2);
+        inheritance.setParent(group1);
+        group2.getInheritancesAsChild().add(inheritance);
+        group1.getInheritancesAsParent().add(inheritance);
+        Membership membership = new Membership();
+        membership.setMember(canonicalizeUuid(TEST_PLAYER_UUID));
+        membership.setDisplayName(TEST_PLAYER);
+        membership.setGroup(group3);
+        group3.getMemberships().add(membership);
+        InMemoryPermissionService.rememberMembership(memoryState, membership);
+        getPermissionService().setMemoryState(memoryState);
+
+        assertEquals(1, diffs.size());
+        assertEquals(new HashSet<>(Arrays.asList(TEST_GROUP1.toLowerCase(), TEST_GROUP2.toLowerCase(), TEST_GROUP3.toLowerCase())), diffs.get(0).getGroups());
+        assertEquals(Collections.singleton(TEST_PLAYER_UUID), diffs.get(0).getPlayers());
+
+        // Only Group1's permissions change
+        memoryState = new MemoryState();
+        group1 = InMemoryPermissionService.getEntity(memoryState, TEST_GROUP1, null, true);
+        InMemoryPermissionService.getEntity(memoryState, TEST_GROUP3, null, true);
+        Entry entry = new Entry();
+        entry.setEntity(group1);
+        entry.setPermission(TEST_PERMISSION);
+        entry.setValue(true);
+        group1.getPermissions().add(entry);
+        getPermissionService().mergeMemoryState(memoryState, Arrays.asList(TEST_GROUP1.toLowerCase(), TEST_GROUP3.toLowerCase()), Collections.<String>emptyList());
+
+        assertEquals(2, diffs.size());
+        assertEquals(Collections.singleton(TEST_GROUP1.toLowerCase()), diffs.get(1).getGroups());
+        assertEquals(Collections.singleton(TEST_GROUP2.toLowerCase()), diffs.get(1).getDescendants());
+        // Group3 was reloaded without members
+        assertEquals(Collections.singleton(TEST_PLAYER_UUID), diffs.get(1).getPlayers());
+    }
+
+    @Test
+    public void testFindEntities() {
+        begin();
+        try {
+            getPermissionService().createGroup(TEST_GROUP1);
+            getPermissionService().createGroup(TEST_GROUP2);
+            getPermissionService().setPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, "foo.bar.baz", true);
+            getPermissionService().setPermission(TEST_GROUP1, null, true, null, null, "foo.bar", true);
+            getPermissionService().setPermission(TEST_GROUP2, null, true, null, "world", "other.bar.thing", false);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        // Whole nodes, segments and substrings
+        assertEquals(1, getPermissionService().findEntities("foo.bar.baz", false).size());
+        assertTrue(getPermissionService().findEntities("foo.bar.baz", true).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(TEST_GROUP1, TEST_GROUP2)), getDisplayNames(getPermissionService().findEntities("bar", true)));
+        assertEquals(Collections.singleton(TEST_GROUP2), getDisplayNames(getPermissionService().findEntities("r.bar.th", true)));
+        assertEquals(Collections.singleton(TEST_GROUP1), getDisplayNames(getPermissionService().findEntities("O.BA", true)));
+        assertTrue(getPermissionService().findEntities("r.baz.x", false).isEmpty());
+        assertEquals(1, getPermissionService().findEntities("ar.ba", false).size());
+
+        begin();
+        try {
+            assertTrue(getPermissionService().unsetPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, "foo.bar.baz"));
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP2, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        // Index follows changes
+        assertTrue(getPermissionService().findEntities("foo", false).isEmpty());
+        assertTrue(getPermissionService().findEntities("thing", true).isEmpty());
+        assertEquals(Collections.singleton(TEST_GROUP1), getDisplayNames(getPermissionService().findEntities("bar", true)));
+
+        begin();
+        try {
+            // Clean up
+            assertTrue(getPermissionService().deleteEntity(TEST_PLAYER, TEST_PLAYER_UUID, false));
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP1, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testPlayerLoader() {
+        final int[] loads = new int[1];
+        getPermissionService().setPlayerLoader(new PlayerLoader() {
+            @Override
+            public MemoryState loadPlayer(UUID uuid, boolean wait) {
+                loads[0]++;
+                MemoryState memoryState = new MemoryState();
+                PermissionEntity player = InMemoryPermissionService.getEntity(memoryState, TEST_PLAYER, uuid, false);
+                Entry entry = new Entry();
+                entry.setEntity(player);
+                entry.setPermission(TEST_PERMISSION);
+                entry.setValue(true);
+                player.getPermissions().add(entry);
+                return memoryState;
+            }
+        });
+
+        // Loaded on first access only
+        assertEquals(Boolean.TRUE, getPermissionService().getPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION));
+        assertEquals(1, getPermissionService().getEntries(TEST_PLAYER, TEST_PLAYER_UUID, false).size());
+        assertEquals(1, loads[0]);
+
+        // Pinned players stay, others are evicted
+        assertEquals(0, getPermissionService().evictPlayers(Collections.singleton(TEST_PLAYER_UUID), 0L, 0));
+        assertEquals(1, getPermissionService().evictPlayers(Collections.<UUID>emptySet(), 0L, 0));
+        assertTrue(getPermissionService().getEntities(false).isEmpty());
+
+        // Reloaded when next needed
+        assertNotNull(getPermissionService().getEntity(TEST_PLAYER, TEST_PLAYER_UUID, false));
+        assertEquals(2, loads[0]);
+    }
+
+    @Test
+    public void testPlayerLoaderNoWait() {
+        final List<Boolean> loads = new ArrayList<>();
+        getPermissionService().setPlayerLoader(new PlayerLoader() {
+            @Override
+            public MemoryState loadPlayer(UUID uuid, boolean wait) {
+                loads.add(wait);
+                if (!wait)
+                    return null; // as if loading asynchronously
+                MemoryState memoryState = new MemoryState();
+                InMemoryPermissionService.getEntity(memoryState, TEST_PLAYER, uuid, false);
+                return memoryState;
+            }
+        });
+
+        // Readers don't wait, so the player is missing for now
+        assertNull(getPermissionService().getPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION));
+        assertTrue(getPermissionService().getEntities(false).isEmpty());
+
+        // Writers do
+        begin();
+        try {
+            getPermissionService().setPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(false, true), loads);
+        assertEquals(Boolean.TRUE, getPermissionService().getPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION));
+        assertEquals(2, loads.size());
+
+        begin();
+        try {
+            // Clean up
+            assertTrue(getPermissionService().deleteEntity(TEST_PLAYER, TEST_PLAYER_UUID, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    private static Set<String> getDisplayNames(List<PermissionEntity> entities) {
+        Set<String> result = new HashSet<>();
+        for (PermissionEntity entity : entities) {
+            result.add(entity.getDisplayName());
+        }
+        return result;
+    }
+
+    @Test
+    public void testMemoryStateFile() throws IOException {
+        begin();
+        try {
+            getPermissionService().createGroup(TEST_GROUP1);
+            getPermissionService().createGroup(TEST_GROUP2);
+            getPermissionService().setParent(TEST_GROUP1, TEST_GROUP2);
+            getPermissionService().setPermission(TEST_GROUP1, null, true, "region", "world", TEST_PERMISSION, true);
+            getPermissionService().setMetadata(TEST_GROUP1, null, true, TEST_METADATA, TEST_REAL_VALUE);
+            getPermissionService().addMember(TEST_GROUP1, TEST_PLAYER_UUID, TEST_PLAYER, null);
+            getPermissionService().setPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION, false);
+            getPermissionService().setMetadata(TEST_PLAYER, TEST_PLAYER_UUID, false, TEST_METADATA, TEST_STRING_VALUE);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        File file = File.createTempFile("snapshot", ".dat");
+        try {
+            Date timestamp = new Date();
+            MemoryStateFile snapshotFile = new MemoryStateFile(file);
+            snapshotFile.save(MemoryStateFile.dump(getPermissionService().getSnapshot(), 42L, timestamp, true));
+
+            // Only usable at the same data version
+            assertNull(snapshotFile.load(43L, timestamp, true));
+            assertNull(snapshotFile.load(42L, new Date(timestamp.getTime() + 1L), true));
+
+            // ...and with the same player loading mode
+            assertNull(snapshotFile.load(42L, timestamp, false));
+
+            MemoryState memoryState = snapshotFile.load(42L, timestamp, true);
+            assertNotNull(memoryState);
+            getPermissionService().setMemoryState(memoryState);
+        }
+        finally {
+            file.delete();
+        }
+
+        assertEquals(Boolean.TRUE, getPermissionService().getPermission(TEST_GROUP1, null, true, "region", "world", TEST_PERMISSION));
+        assertEquals(TEST_REAL_VALUE, getPermissionService().getMetadata(TEST_GROUP1, null, true, TEST_METADATA));
+        assertEquals(Arrays.asList(TEST_GROUP2, TEST_GROUP1), getPermissionService().getAncestry(TEST_GROUP1));
+        assertEquals(1, getPermissionService().getGroups(TEST_PLAYER_UUID).size());
+        assertEquals(Boolean.FALSE, getPermissionService().getPermission(TEST_PLAYER, TEST_PLAYER_UUID, false, null, null, TEST_PERMISSION));
+        assertEquals(TEST_STRING_VALUE, getPermissionService().getMetadata(TEST_PLAYER, TEST_PLAYER_UUID, false, TEST_METADATA));
+
+        begin();
+        try {
+            // Clean up
+            assertTrue(getPermissionService().deleteEntity(TEST_PLAYER, TEST_PLAYER_UUID, false));
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP1, null, true));
+            assertTrue(getPermissionService().deleteEntity(TEST_GROUP2, null, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
 }
@@ -15,13 +15,28 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 
 public class MemoryDaoTest extends AbstractDaoTest {
 
+    private final FilePermissionDao permissionDao;
+
     public MemoryDaoTest() {
-        getPermissionService().setPermissionDao(new FilePermissionDao(getPermissionService()));
+        permissionDao = new FilePermissionDao(getPermissionService());
+        getPermissionService().setPermissionDao(permissionDao);
     }
 
     @Override
@@ -46,4 +61,60 @@ public class MemoryDaoTest extends AbstractDaoTest {
         return getPermissionService().getRegion(name);
     }
 
+    @Test
+    public void testJournal() throws IOException {
+        UUID playerUuid = UUID.randomUUID();
+        File dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File file = new File(dir, "data.yml"); // never written
+        File journalFile = new File(dir, "data.yml.journal");
+        try {
+            permissionDao.setJournaling(true);
+
+            getPermissionService().createGroup("Group1");
+            getPermissionService().createGroup("Group2");
+            getPermissionService().setParent("Group1", "Group2");
+            getPermissionService().setPriority("Group1", 10);
+            getPermissionService().setPermission("Group1", null, true, "region", "world", "foo.bar", true);
+            getPermissionService().setPermission("Group2", null, true, null, null, "foo.baz", true);
+            getPermissionService().setMetadata("Group1", null, true, "prefix", "[G1]");
+            getPermissionService().addMember("Group1", playerUuid, "Player", null);
+            getPermissionService().setPermission("Player", playerUuid, false, null, null, "foo.bar", false);
+            permissionDao.appendJournal(journalFile);
+
+            getPermissionService().unsetPermission("Group2", null, true, null, null, "foo.baz");
+            getPermissionService().setPermission("Group1", null, true, "region", "world", "foo.bar", false);
+            getPermissionService().setMetadata("Group1", null, true, "prefix", "[Group1]");
+            permissionDao.appendJournal(journalFile);
+
+            // Record cut short by a crash
+            OutputStream out = new FileOutputStream(journalFile, true);
+            try {
+                out.write(new byte[] { 0, 0, 0, 100, 3 });
+            }
+            finally {
+                out.close();
+            }
+            long length = journalFile.length();
+
+            InMemoryPermissionService permissionService = new InMemoryPermissionService();
+            FilePermissionDao loader = new FilePermissionDao(permissionService);
+            permissionService.setPermissionDao(loader);
+            loader.load(file, journalFile);
+
+            assertEquals(length - 5, journalFile.length());
+            assertEquals(Boolean.FALSE, permissionService.getPermission("Group1", null, true, "region", "world", "foo.bar"));
+            assertNull(permissionService.getPermission("Group2", null, true, null, null, "foo.baz"));
+            assertEquals("[Group1]", permissionService.getMetadata("Group1", null, true, "prefix"));
+            assertEquals(10, permissionService.getEntity("Group1", null, true).getPriority());
+            assertEquals(Arrays.asList("Group2", "Group1"), permissionService.getAncestry("Group1"));
+            assertEquals(1, permissionService.getGroups(playerUuid).size());
+            assertEquals(Boolean.FALSE, permissionService.getPermission("Player", playerUuid, false, null, null, "foo.bar"));
+        }
+        finally {
+            journalFile.delete();
+            dir.delete();
+        }
+    }
+
 }
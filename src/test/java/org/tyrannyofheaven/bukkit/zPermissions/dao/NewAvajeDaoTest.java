@@ -15,9 +15,27 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.tyrannyofheaven.bukkit.util.uuid.UuidUtils.canonicalizeUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.JournalEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
@@ -59,6 +77,7 @@ public class NewAvajeDaoTest extends AbstractDaoTest {
                 config.addClass(Entry.class);
                 config.addClass(Membership.class);
                 config.addClass(EntityMetadata.class);
+                config.addClass(JournalEntry.class);
 
                 ebeanServer = EbeanServerFactory.create(config);
             }
@@ -96,4 +115,503 @@ public class NewAvajeDaoTest extends AbstractDaoTest {
         return getEbeanServer().find(PermissionRegion.class).where().eq("name", name).findUnique();
     }
 
+    // Run queued flushes as a single write transaction
+    private void flush(AvajePermissionDao dao, List<Runnable> flushes) {
+        dao.beginWrite();
+        begin();
+        try {
+            for (Runnable flush : flushes) {
+                flush.run();
+            }
+            dao.commitWrite();
+            commit();
+        }
+        finally {
+            end();
+            dao.endWrite();
+        }
+        flushes.clear();
+    }
+
+    // Delete the whole journal, including anything left by earlier runs
+    private void deleteJournal(AvajePermissionDao dao) {
+        begin();
+        try {
+            dao.pruneJournal(new Date(System.currentTimeMillis() + 24L * 60L * 60L * 1000L));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    private void loadChanges(AvajePermissionDao dao, long fromVersion, long toVersion, boolean expected) {
+        begin();
+        try {
+            assertEquals(expected, dao.loadChanges(fromVersion, toVersion));
+        }
+        finally {
+            end();
+        }
+    }
+
+    private JournalEntry newJournalEntry(long version, String name, Date timestamp) {
+        JournalEntry entry = new JournalEntry();
+        entry.setVersion(version);
+        entry.setName(name);
+        entry.setGroup(true);
+        entry.setTimestamp(timestamp);
+        return entry;
+    }
+
+    @Test
+    public void testCoalesceAcrossRegionCleanup() {
+        final List<Runnable> flushes = new ArrayList<>();
+        InMemoryPermissionService permissionService = new InMemoryPermissionService();
+        AvajePermissionDao dao = new AvajePermissionDao(permissionService, getEbeanServer(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                flushes.add(command);
+            }
+        });
+        permissionService.setPermissionDao(dao);
+
+        permissionService.createGroup("CoalesceGroup");
+        permissionService.setPermission("CoalesceGroup", null, true, "CoalesceRegion", "CoalesceWorld", "foo.bar", true);
+        flush(dao, flushes);
+
+        // Unset removes the now-unused region and world, re-set creates them
+        // again. The entry's delete must not be coalesced into the later set.
+        assertTrue(permissionService.unsetPermission("CoalesceGroup", null, true, "CoalesceRegion", "CoalesceWorld", "foo.bar"));
+        permissionService.setPermission("CoalesceGroup", null, true, "CoalesceRegion", "CoalesceWorld", "foo.bar", false);
+        flush(dao, flushes);
+
+        List<Entry> entries = getEbeanServer().find(Entry.class).where()
+                .eq("entity.name", "coalescegroup")
+                .eq("permission", "foo.bar")
+                .findList();
+        assertEquals(1, entries.size());
+        assertEquals("coalesceregion", entries.get(0).getRegion().getName());
+        assertEquals("coalesceworld", entries.get(0).getWorld().getName());
+        assertEquals(false, entries.get(0).isValue());
+
+        permissionService.deleteEntity("CoalesceGroup", null, true);
+        flush(dao, flushes);
+    }
+
+    @Test
+    public void testWriteRowsOfAnotherServer() {
+        UUID memberUuid = UUID.randomUUID();
+
+        // Another server writes first
+        InMemoryPermissionService otherService = new InMemoryPermissionService();
+        otherService.setPermissionDao(new AvajePermissionDao(otherService, getEbeanServer(), null));
+        begin();
+        try {
+            otherService.createGroup("SharedGroup");
+            otherService.setPermission("SharedGroup", null, true, null, null, "foo.bar", true);
+            otherService.addMember("SharedGroup", memberUuid, "SharedMember", null);
+            otherService.setMetadata("SharedGroup", null, true, "shared.meta", "before");
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        // This server doesn't know their ids, so must find the same rows
+        final List<Runnable> flushes = new ArrayList<>();
+        InMemoryPermissionService permissionService = new InMemoryPermissionService();
+        AvajePermissionDao dao = new AvajePermissionDao(permissionService, getEbeanServer(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                flushes.add(command);
+            }
+        });
+        permissionService.setPermissionDao(dao);
+
+        permissionService.createGroup("SharedGroup");
+        permissionService.setPermission("SharedGroup", null, true, null, null, "foo.bar", false);
+        permissionService.addMember("SharedGroup", memberUuid, "SharedMember", new Date(1000000000000L));
+        permissionService.setMetadata("SharedGroup", null, true, "shared.meta", "after");
+        flush(dao, flushes);
+
+        List<Entry> entries = getEbeanServer().find(Entry.class).where()
+                .eq("entity.name", "sharedgroup")
+                .eq("permission", "foo.bar")
+                .findList();
+        assertEquals(1, entries.size());
+        assertEquals(false, entries.get(0).isValue());
+
+        List<Membership> memberships = getEbeanServer().find(Membership.class).where()
+                .eq("group.name", "sharedgroup")
+                .findList();
+        assertEquals(1, memberships.size());
+        assertEquals(1000000000000L, memberships.get(0).getExpiration().getTime());
+
+        List<EntityMetadata> metadata = getEbeanServer().find(EntityMetadata.class).where()
+                .eq("entity.name", "sharedgroup")
+                .eq("name", "shared.meta")
+                .findList();
+        assertEquals(1, metadata.size());
+        assertEquals("after", metadata.get(0).getValue());
+
+        permissionService.deleteEntity("SharedGroup", null, true);
+        flush(dao, flushes);
+    }
+
+    @Test
+    public void testWriteBehindBatchMode() {
+        UUID playerUuid = UUID.randomUUID();
+
+        final List<Runnable> flushes = new ArrayList<>();
+        InMemoryPermissionService permissionService = new InMemoryPermissionService();
+        AvajePermissionDao dao = new AvajePermissionDao(permissionService, getEbeanServer(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                flushes.add(command);
+            }
+        });
+        dao.setBatchSize(2); // Smaller than each batch below
+        permissionService.setPermissionDao(dao);
+
+        // New rows
+        permissionService.createGroup("BatchGroup");
+        permissionService.setPermission("BatchGroup", null, true, null, null, "foo.bar", true);
+        permissionService.addMember("BatchGroup", playerUuid, "BatchPlayer", null);
+        permissionService.setMetadata("BatchGroup", null, true, "batch.meta", "one");
+        permissionService.setPermission("BatchPlayer", playerUuid, false, null, null, "foo.baz", true);
+        flush(dao, flushes);
+
+        assertEquals(1L, dao.getBatchCount());
+        assertEquals(dao.getLastBatchSize(), dao.getOperationCount());
+        assertEquals(0L, dao.getCoalescedCount());
+
+        // Known rows, updated in place. Two of them are superseded.
+        permissionService.setPermission("BatchGroup", null, true, null, null, "foo.bar", true);
+        permissionService.setPermission("BatchGroup", null, true, null, null, "foo.bar", false);
+        permissionService.addMember("BatchGroup", playerUuid, "BatchPlayer", new Date(1000000000000L));
+        permissionService.setMetadata("BatchGroup", null, true, "batch.meta", "two");
+        permissionService.setMetadata("BatchGroup", null, true, "batch.meta", "three");
+        long operations = dao.getOperationCount();
+        flush(dao, flushes);
+
+        assertEquals(2L, dao.getBatchCount());
+        assertEquals(5, dao.getLastBatchSize());
+        assertEquals(operations + 5L, dao.getOperationCount());
+        assertEquals(2L, dao.getCoalescedCount());
+        assertTrue(dao.getAverageBatchLatency() >= 0L);
+
+        List<Entry> entries = getEbeanServer().find(Entry.class).where()
+                .eq("entity.name", "batchgroup")
+                .eq("permission", "foo.bar")
+                .findList();
+        assertEquals(1, entries.size());
+        assertEquals(false, entries.get(0).isValue());
+
+        entries = getEbeanServer().find(Entry.class).where()
+                .eq("entity.name", canonicalizeUuid(playerUuid))
+                .eq("permission", "foo.baz")
+                .findList();
+        assertEquals(1, entries.size());
+        assertEquals(true, entries.get(0).isValue());
+
+        List<Membership> memberships = getEbeanServer().find(Membership.class).where()
+                .eq("group.name", "batchgroup")
+                .findList();
+        assertEquals(1, memberships.size());
+        assertEquals(1000000000000L, memberships.get(0).getExpiration().getTime());
+
+        List<EntityMetadata> metadata = getEbeanServer().find(EntityMetadata.class).where()
+                .eq("entity.name", "batchgroup")
+                .eq("name", "batch.meta")
+                .findList();
+        assertEquals(1, metadata.size());
+        assertEquals("three", metadata.get(0).getValue());
+
+        // Deletes
+        assertTrue(permissionService.unsetPermission("BatchGroup", null, true, null, null, "foo.bar"));
+        assertTrue(permissionService.removeMember("BatchGroup", playerUuid));
+        assertTrue(permissionService.unsetMetadata("BatchGroup", null, true, "batch.meta"));
+        flush(dao, flushes);
+
+        assertEquals(3L, dao.getBatchCount());
+        assertEquals(3, dao.getLastBatchSize());
+        assertEquals(2L, dao.getCoalescedCount());
+
+        assertEquals(0, getEbeanServer().find(Entry.class).where()
+                .eq("entity.name", "batchgroup")
+                .findRowCount());
+        assertEquals(0, getEbeanServer().find(Membership.class).where()
+                .eq("group.name", "batchgroup")
+                .findRowCount());
+        assertEquals(0, getEbeanServer().find(EntityMetadata.class).where()
+                .eq("entity.name", "batchgroup")
+                .findRowCount());
+
+        permissionService.deleteEntity("BatchGroup", null, true);
+        permissionService.deleteEntity("BatchPlayer", playerUuid, false);
+        flush(dao, flushes);
+    }
+
+    @Test
+    public void testLoad() {
+        UUID playerUuid = UUID.randomUUID();
+
+        // Written through the usual (immediate) DAO
+        InMemoryPermissionService source = getPermissionService();
+        begin();
+        try {
+            source.createGroup("LoadParent");
+            source.createGroup("LoadGroup");
+            source.setParent("LoadGroup", "LoadParent");
+            source.setPriority("LoadGroup", 42);
+            source.setPermission("LoadParent", null, true, null, null, "load.basic", true);
+            source.setPermission("LoadGroup", null, true, null, "LoadWorld", "load.world", false);
+            source.setPermission("LoadGroup", null, true, "LoadRegion", "LoadWorld", "load.region", true);
+            source.setMetadata("LoadGroup", null, true, "load.string", "value");
+            source.setMetadata("LoadGroup", null, true, "load.integer", 42L);
+            source.setMetadata("LoadGroup", null, true, "load.real", 4.2);
+            source.setMetadata("LoadGroup", null, true, "load.boolean", true);
+            source.addMember("LoadGroup", playerUuid, "LoadPlayer", new Date(1000000000000L));
+            source.addMember("LoadParent", playerUuid, "LoadPlayer", null);
+            source.setPermission("LoadPlayer", playerUuid, false, "LoadRegion", null, "load.player", false);
+            source.setMetadata("LoadPlayer", playerUuid, false, "load.prefix", "[Load]");
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        InMemoryPermissionService loaded = new InMemoryPermissionService();
+        AvajePermissionDao dao = new AvajePermissionDao(loaded, getEbeanServer(), null);
+        loaded.setPermissionDao(dao);
+        begin();
+        try {
+            dao.load();
+        }
+        finally {
+            end();
+        }
+
+        for (String group : Arrays.asList("LoadParent", "LoadGroup")) {
+            assertSameEntity(source, loaded, group, null, true);
+            assertEquals(describeMemberships(source.getMembers(group)), describeMemberships(loaded.getMembers(group)));
+            assertEquals(source.getAncestry(group), loaded.getAncestry(group));
+        }
+        assertEquals(42, loaded.getEntity("LoadGroup", null, true).getPriority());
+        assertSameEntity(source, loaded, "LoadPlayer", playerUuid, false);
+        assertEquals(describeMemberships(source.getGroups(playerUuid)), describeMemberships(loaded.getGroups(playerUuid)));
+        assertEquals(2, loaded.getGroups(playerUuid).size());
+
+        begin();
+        try {
+            source.deleteEntity("LoadGroup", null, true);
+            source.deleteEntity("LoadParent", null, true);
+            source.deleteEntity("LoadPlayer", playerUuid, false);
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testLoadChanges() {
+        InMemoryPermissionService writer = new InMemoryPermissionService();
+        AvajePermissionDao writerDao = new AvajePermissionDao(writer, getEbeanServer(), null);
+        writer.setPermissionDao(writerDao);
+        deleteJournal(writerDao);
+
+        InMemoryPermissionService reader = new InMemoryPermissionService();
+        AvajePermissionDao readerDao = new AvajePermissionDao(reader, getEbeanServer(), null);
+        reader.setPermissionDao(readerDao);
+        begin();
+        try {
+            readerDao.load();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            writerDao.clearJournal();
+            writer.createGroup("JournalGroup");
+            writer.setPermission("JournalGroup", null, true, "JournalRegion", "JournalWorld", "journal.region", true);
+            writerDao.writeJournal(1L);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        loadChanges(readerDao, 0L, 1L, true);
+        assertEquals(Boolean.TRUE, reader.getPermission("JournalGroup", null, true, "JournalRegion", "JournalWorld", "journal.region"));
+        assertNotNull(reader.getRegion("JournalRegion"));
+        assertNotNull(reader.getWorld("JournalWorld"));
+
+        // Last use of the region and world goes away
+        begin();
+        try {
+            writerDao.clearJournal();
+            assertTrue(writer.unsetPermission("JournalGroup", null, true, "JournalRegion", "JournalWorld", "journal.region"));
+            writer.setPermission("JournalGroup", null, true, null, null, "journal.basic", true);
+            writerDao.writeJournal(2L);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        loadChanges(readerDao, 1L, 2L, true);
+        assertEquals(Boolean.TRUE, reader.getPermission("JournalGroup", null, true, null, null, "journal.basic"));
+        assertEquals(1, reader.getEntries("JournalGroup", null, true).size());
+        assertNull(reader.getRegion("JournalRegion"));
+        assertNull(reader.getWorld("JournalWorld"));
+
+        // Nothing to do
+        loadChanges(readerDao, 2L, 2L, false);
+
+        begin();
+        try {
+            writer.deleteEntity("JournalGroup", null, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+        deleteJournal(writerDao);
+    }
+
+    @Test
+    public void testLoadChangesFallback() {
+        InMemoryPermissionService writer = new InMemoryPermissionService();
+        AvajePermissionDao writerDao = new AvajePermissionDao(writer, getEbeanServer(), null);
+        writer.setPermissionDao(writerDao);
+        deleteJournal(writerDao);
+
+        InMemoryPermissionService reader = new InMemoryPermissionService();
+        AvajePermissionDao readerDao = new AvajePermissionDao(reader, getEbeanServer(), null);
+        reader.setPermissionDao(readerDao);
+
+        // Versions 1 and 3, version 2's journal is missing
+        for (long version : new long[] { 1L, 3L }) {
+            begin();
+            try {
+                writerDao.clearJournal();
+                writer.createGroup("JournalGapGroup" + version);
+                writerDao.writeJournal(version);
+                commit();
+            }
+            finally {
+                end();
+            }
+        }
+
+        loadChanges(readerDao, 0L, 3L, false);
+        assertNull(reader.getEntity("JournalGapGroup1", null, true));
+        loadChanges(readerDao, 0L, 1L, true);
+        assertNotNull(reader.getEntity("JournalGapGroup1", null, true));
+
+        // Too many changes in one version
+        List<JournalEntry> journal = new ArrayList<>();
+        Date now = new Date();
+        for (int i = 0; i <= AvajePermissionDao.MAX_JOURNAL_CHANGES; i++) {
+            journal.add(newJournalEntry(4L, "journalmissing" + i, now));
+        }
+        begin();
+        try {
+            getEbeanServer().save(journal);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        loadChanges(readerDao, 3L, 4L, false);
+
+        begin();
+        try {
+            writer.deleteEntity("JournalGapGroup1", null, true);
+            writer.deleteEntity("JournalGapGroup3", null, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+        deleteJournal(writerDao);
+    }
+
+    @Test
+    public void testPruneJournal() {
+        AvajePermissionDao dao = new AvajePermissionDao(new InMemoryPermissionService(), getEbeanServer(), null);
+        deleteJournal(dao);
+
+        long now = System.currentTimeMillis();
+        begin();
+        try {
+            getEbeanServer().save(Arrays.asList(newJournalEntry(1L, "journalold", new Date(now - 2L * 60L * 60L * 1000L)),
+                    newJournalEntry(2L, "journalnew", new Date(now))));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(1, dao.pruneJournal(new Date(now - 60L * 60L * 1000L)));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        List<JournalEntry> journal = getEbeanServer().find(JournalEntry.class).findList();
+        assertEquals(1, journal.size());
+        assertEquals(2L, journal.get(0).getVersion());
+
+        deleteJournal(dao);
+        assertEquals(0, getEbeanServer().find(JournalEntry.class).findRowCount());
+    }
+
+    private static void assertSameEntity(PermissionService expected, PermissionService actual, String name, UUID uuid, boolean group) {
+        PermissionEntity expectedEntity = expected.getEntity(name, uuid, group);
+        PermissionEntity actualEntity = actual.getEntity(name, uuid, group);
+        assertNotNull(expectedEntity);
+        assertNotNull(actualEntity);
+        assertEquals(expectedEntity.getName(), actualEntity.getName());
+        assertEquals(expectedEntity.getDisplayName(), actualEntity.getDisplayName());
+        assertEquals(describeEntries(expected.getEntries(name, uuid, group)), describeEntries(actual.getEntries(name, uuid, group)));
+        assertEquals(describeMetadata(expected.getAllMetadata(name, uuid, group)), describeMetadata(actual.getAllMetadata(name, uuid, group)));
+    }
+
+    private static Set<String> describeEntries(List<Entry> entries) {
+        Set<String> result = new HashSet<>();
+        for (Entry entry : entries) {
+            result.add(String.format("%s/%s/%s=%s", entry.getWorld() == null ? null : entry.getWorld().getName(),
+                    entry.getRegion() == null ? null : entry.getRegion().getName(), entry.getPermission(), entry.isValue()));
+        }
+        assertEquals(entries.size(), result.size());
+        return result;
+    }
+
+    private static Set<String> describeMetadata(List<EntityMetadata> metadata) {
+        Set<String> result = new HashSet<>();
+        for (EntityMetadata em : metadata) {
+            result.add(String.format("%s=%s", em.getName(), em.getValue()));
+        }
+        assertEquals(metadata.size(), result.size());
+        return result;
+    }
+
+    private static List<String> describeMemberships(List<Membership> memberships) {
+        List<String> result = new ArrayList<>();
+        for (Membership membership : memberships) {
+            result.add(String.format("%s/%s/%s/%s", membership.getGroup().getName(), membership.getMember(), membership.getDisplayName(),
+                    membership.getExpiration() == null ? null : membership.getExpiration().getTime()));
+        }
+        return result;
+    }
+
 }